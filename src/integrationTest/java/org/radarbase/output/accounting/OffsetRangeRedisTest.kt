@@ -5,6 +5,7 @@ import org.junit.jupiter.api.Assertions.*
 import org.junit.jupiter.api.BeforeEach
 import org.junit.jupiter.api.Test
 import org.radarbase.output.accounting.OffsetRedisPersistence.Companion.redisOffsetReader
+import org.radarbase.output.util.FlushScheduler
 import redis.clients.jedis.JedisPool
 import java.io.IOException
 import java.nio.file.Path
@@ -15,6 +16,7 @@ class OffsetRangeRedisTest {
     private lateinit var testFile: Path
     private lateinit var redisHolder: RedisHolder
     private lateinit var offsetPersistence: OffsetPersistenceFactory
+    private lateinit var flushScheduler: FlushScheduler
     private val lastModified = Instant.now()
 
     @BeforeEach
@@ -22,12 +24,38 @@ class OffsetRangeRedisTest {
     fun setUp() {
         testFile = Paths.get("test/topic")
         redisHolder = RedisHolder(JedisPool())
-        offsetPersistence = OffsetRedisPersistence(redisHolder)
+        flushScheduler = FlushScheduler()
+        offsetPersistence = OffsetRedisPersistence(redisHolder, flushScheduler)
     }
 
     @AfterEach
     fun tearDown() {
-        redisHolder.execute { it.del(testFile.toString()) }
+        redisHolder.execute { it.del(testFile.toString(), "$testFile/partitions", "$testFile/version") }
+        flushScheduler.close()
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun prefetchOverlappingBatches() {
+        val otherFile = Paths.get("test/other")
+        val range = TopicPartitionOffsetRange.parseFilename("a+0+0+1", lastModified)
+        val otherRange = TopicPartitionOffsetRange.parseFilename("b+0+2+3", lastModified)
+        offsetPersistence.writer(testFile).use { it.add(range) }
+        offsetPersistence.writer(otherFile).use { it.add(otherRange) }
+
+        val persistence = OffsetRedisPersistence(redisHolder, flushScheduler)
+        // the second batch is prefetched before the first batch is read
+        persistence.prefetch(listOf(testFile))
+        persistence.prefetch(listOf(otherFile))
+
+        // offsets can now only be read from the prefetch
+        redisHolder.execute { redis ->
+            listOf(testFile, otherFile).forEach {
+                redis.del(it.toString(), "$it/partitions", "$it/version")
+            }
+        }
+        assertTrue(requireNotNull(persistence.read(testFile)).contains(range))
+        assertTrue(requireNotNull(persistence.read(otherFile)).contains(otherRange))
     }
 
     @Test
@@ -65,6 +93,125 @@ class OffsetRangeRedisTest {
         assertFalse(set.contains(TopicPartitionOffsetRange.parseFilename("b+0+0+1", lastModified)))
     }
 
+    @Test
+    @Throws(IOException::class)
+    fun writeBinary() {
+        val binaryPersistence = OffsetRedisPersistence(redisHolder, flushScheduler, binary = true)
+        assertNull(binaryPersistence.read(testFile))
+
+        binaryPersistence.writer(testFile).use { rangeFile ->
+            rangeFile.add(TopicPartitionOffsetRange.parseFilename("a+0+0+1", lastModified))
+            rangeFile.add(TopicPartitionOffsetRange.parseFilename("a+0+1+2", lastModified))
+            rangeFile.add(TopicPartitionOffsetRange.parseFilename("a+1+4+4", lastModified))
+        }
+
+        val set = binaryPersistence.read(testFile)
+        requireNotNull(set)
+        assertTrue(set.contains(TopicPartitionOffsetRange.parseFilename("a+0+0+2", lastModified)))
+        assertTrue(set.contains(TopicPartitionOffsetRange.parseFilename("a+1+4+4", lastModified)))
+        assertFalse(set.contains(TopicPartitionOffsetRange.parseFilename("a+0+0+3", lastModified)))
+
+        binaryPersistence.writer(testFile, set).use { rangeFile ->
+            rangeFile.offsets.compact("a", mapOf(TopicPartition("a", 0) to 0L))
+            rangeFile.triggerWrite()
+        }
+        // read the stored hash instead of any cached offsets
+        val compactedSet = OffsetRedisPersistence(redisHolder, flushScheduler, binary = true).read(testFile)
+        requireNotNull(compactedSet)
+        assertEquals(1, compactedSet.size(TopicPartition("a", 0)))
+        // a partition without a watermark keeps its offsets
+        assertTrue(compactedSet.contains(TopicPartitionOffsetRange.parseFilename("a+1+4+4", lastModified)))
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun migrateToBinary() {
+        offsetPersistence.writer(testFile).use { rangeFile ->
+            rangeFile.add(TopicPartitionOffsetRange.parseFilename("a+0+0+1", lastModified))
+        }
+
+        val binaryPersistence = OffsetRedisPersistence(redisHolder, flushScheduler, binary = true)
+        val set = binaryPersistence.read(testFile)
+        requireNotNull(set)
+        assertTrue(set.contains(TopicPartitionOffsetRange.parseFilename("a+0+0+1", lastModified)))
+
+        binaryPersistence.writer(testFile, set).use { it.triggerWrite() }
+
+        assertNull(redisHolder.execute { it[testFile.toString()] })
+        val migratedSet = binaryPersistence.read(testFile)
+        requireNotNull(migratedSet)
+        assertTrue(migratedSet.contains(TopicPartitionOffsetRange.parseFilename("a+0+0+1", lastModified)))
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun migrateFromBinary() {
+        val binaryPersistence = OffsetRedisPersistence(redisHolder, flushScheduler, binary = true)
+        binaryPersistence.writer(testFile).use { rangeFile ->
+            rangeFile.add(TopicPartitionOffsetRange.parseFilename("a+0+0+1", lastModified))
+        }
+
+        // binary offsets are read even if the binary format is disabled
+        val set = OffsetRedisPersistence(redisHolder, flushScheduler).read(testFile)
+        requireNotNull(set)
+        assertTrue(set.contains(TopicPartitionOffsetRange.parseFilename("a+0+0+1", lastModified)))
+
+        OffsetRedisPersistence(redisHolder, flushScheduler).writer(testFile, set).use { rangeFile ->
+            rangeFile.add(TopicPartitionOffsetRange.parseFilename("a+0+2+3", lastModified))
+        }
+
+        assertFalse(redisHolder.execute { it.exists("$testFile/partitions") })
+        val migratedSet = OffsetRedisPersistence(redisHolder, flushScheduler).read(testFile)
+        requireNotNull(migratedSet)
+        assertTrue(migratedSet.contains(TopicPartitionOffsetRange.parseFilename("a+0+0+3", lastModified)))
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun reuseCachedOffsets() {
+        val writer = offsetPersistence.writer(testFile)
+        writer.use { rangeFile ->
+            rangeFile.add(TopicPartitionOffsetRange.parseFilename("a+0+0+1", lastModified))
+        }
+
+        val set = offsetPersistence.read(testFile)
+        assertSame(writer.offsets, set)
+        offsetPersistence.writer(testFile, set).close()
+        assertSame(set, offsetPersistence.read(testFile))
+        offsetPersistence.writer(testFile, set).close()
+
+        // another instance changes the offsets
+        OffsetRedisPersistence(redisHolder, flushScheduler).writer(testFile).use { rangeFile ->
+            rangeFile.add(TopicPartitionOffsetRange.parseFilename("a+1+0+1", lastModified))
+        }
+
+        val updatedSet = offsetPersistence.read(testFile)
+        requireNotNull(updatedSet)
+        assertNotSame(set, updatedSet)
+        assertTrue(updatedSet.contains(TopicPartitionOffsetRange.parseFilename("a+1+0+1", lastModified)))
+        assertFalse(updatedSet.contains(TopicPartitionOffsetRange.parseFilename("a+0+0+1", lastModified)))
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun prefetch() {
+        offsetPersistence.writer(testFile).use { rangeFile ->
+            rangeFile.add(TopicPartitionOffsetRange.parseFilename("a+0+0+1", lastModified))
+        }
+
+        val otherPersistence = OffsetRedisPersistence(redisHolder, flushScheduler)
+        otherPersistence.prefetch(listOf(testFile, Paths.get("test/other")))
+        // prefetched offsets are used without accessing Redis
+        redisHolder.execute { it.del(testFile.toString()) }
+
+        val set = otherPersistence.read(testFile)
+        requireNotNull(set)
+        assertTrue(set.contains(TopicPartitionOffsetRange.parseFilename("a+0+0+1", lastModified)))
+        assertNull(otherPersistence.read(Paths.get("test/other")))
+        // prefetched offsets are only read once
+        assertNull(otherPersistence.read(testFile))
+    }
+
     @Test
     @Throws(IOException::class)
     fun cleanUp() {
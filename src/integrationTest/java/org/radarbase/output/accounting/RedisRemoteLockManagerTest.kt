@@ -1,17 +1,22 @@
 package org.radarbase.output.accounting
 
 import org.hamcrest.MatcherAssert.assertThat
+import org.hamcrest.Matchers.equalTo
+import org.hamcrest.Matchers.`is`
 import org.hamcrest.Matchers.not
 import org.hamcrest.Matchers.nullValue
 import org.junit.jupiter.api.AfterEach
 import org.junit.jupiter.api.BeforeEach
 import org.junit.jupiter.api.Test
 import redis.clients.jedis.JedisPool
+import redis.clients.jedis.params.SetParams
+import java.time.Duration
 
 internal class RedisRemoteLockManagerTest {
     private lateinit var redisHolder: RedisHolder
     private lateinit var lockManager1: RemoteLockManager
     private lateinit var lockManager2: RemoteLockManager
+    private val leaseManagers = mutableListOf<RemoteLockManager>()
 
     @BeforeEach
     fun setUp() {
@@ -22,6 +27,10 @@ internal class RedisRemoteLockManagerTest {
 
     @AfterEach
     fun tearDown() {
+        lockManager1.close()
+        lockManager2.close()
+        leaseManagers.forEach { it.close() }
+        leaseManagers.clear()
         redisHolder.close()
     }
 
@@ -65,4 +74,73 @@ internal class RedisRemoteLockManagerTest {
             assertThat(l2, not(nullValue()))
         }
     }
+
+    @Test
+    fun testAcquireLocks() {
+        lockManager1.acquireLock("t1").use {
+            val locks = lockManager2.acquireLocks(listOf("t1", "t2", "t3"))
+            try {
+                assertThat(locks.keys, equalTo(setOf("t2", "t3")))
+            } finally {
+                locks.values.forEach { it.close() }
+            }
+        }
+        lockManager1.acquireLock("t2").use { l2 ->
+            assertThat(l2, not(nullValue()))
+        }
+    }
+
+    @Test
+    fun testLeaseRenewal() {
+        val leaseManager1 = shortLeaseManager()
+        val leaseManager2 = shortLeaseManager()
+        leaseManager1.acquireLock("t").use { l1 ->
+            requireNotNull(l1)
+            // lease is renewed beyond its initial expiry
+            Thread.sleep(1000)
+            assertThat(l1.isActive, `is`(true))
+            assertThat(leaseManager2.acquireLock("t"), nullValue())
+
+            // lock is taken over after it was removed externally
+            redisHolder.execute { it.del("locks/t.lock") }
+            leaseManager2.acquireLock("t").use { l2 ->
+                assertThat(l2, not(nullValue()))
+                Thread.sleep(300)
+                assertThat(l1.isActive, `is`(false))
+                // releasing a lost lock does not release the new owner's lock
+                l1.close()
+                assertThat(leaseManager1.acquireLock("t"), nullValue())
+            }
+        }
+    }
+
+    @Test
+    fun testLeaseExpires() {
+        val leaseManager1 = shortLeaseManager()
+        val leaseManager2 = shortLeaseManager()
+        // lock is not released, as if the process stopped
+        redisHolder.execute { it.set("locks/t.lock", "other", SetParams().px(300)) }
+        assertThat(leaseManager1.acquireLock("t"), nullValue())
+        Thread.sleep(500)
+        leaseManager2.acquireLock("t").use { l2 ->
+            assertThat(l2, not(nullValue()))
+        }
+    }
+
+    @Test
+    fun testCloseStopsRenewal() {
+        val leaseManager1 = shortLeaseManager()
+        val leaseManager2 = shortLeaseManager()
+        val l1 = requireNotNull(leaseManager1.acquireLock("t"))
+        leaseManager1.close()
+        Thread.sleep(500)
+        assertThat(l1.isActive, `is`(false))
+        leaseManager2.acquireLock("t").use { l2 ->
+            assertThat(l2, not(nullValue()))
+        }
+    }
+
+    private fun shortLeaseManager(): RemoteLockManager =
+        RedisRemoteLockManager(redisHolder, "locks", Duration.ofMillis(300))
+            .also { leaseManagers += it }
 }
@@ -0,0 +1,107 @@
+package org.radarbase.output.cleaner
+
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.io.TempDir
+import org.radarbase.output.accounting.Accountant
+import org.radarbase.output.accounting.RedisHolder
+import org.radarbase.output.accounting.TopicPartitionOffsetRange
+import org.radarbase.output.config.LocalConfig
+import org.radarbase.output.source.TopicFile
+import org.radarbase.output.target.LocalTargetStorage
+import redis.clients.jedis.JedisPool
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.Paths
+import java.time.Instant
+
+class ExtractionManifestStoreTest {
+    private lateinit var redisHolder: RedisHolder
+    private lateinit var manifestStore: ExtractionManifestStore
+    private val topic = "manifest_topic"
+
+    @BeforeEach
+    fun setUp() {
+        redisHolder = RedisHolder(JedisPool())
+        manifestStore = ExtractionManifestStore(redisHolder)
+    }
+
+    @AfterEach
+    fun tearDown() {
+        redisHolder.execute { it.del("${Accountant.offsetsKey(topic)}/manifests", "${Accountant.offsetsKey(topic)}/rewrites") }
+    }
+
+    @Test
+    fun readWriteRemove() {
+        val source = Paths.get("in/$topic/partition=0/$topic+0+0+9.avro")
+        assertNull(manifestStore.read(topic, source))
+
+        val manifest = ExtractionManifest(0L, 9L, mapOf(Paths.get("out/a.csv") to ExtractionManifest.Target(10L, 100L)))
+        manifestStore.write(topic, mapOf(source to manifest))
+        assertEquals(manifest, manifestStore.read(topic, source))
+
+        manifestStore.remove(topic, listOf(source))
+        assertNull(manifestStore.read(topic, source))
+    }
+
+    @Test
+    fun manifestCheck(@TempDir dir: Path) {
+        val target = dir.resolve("a.csv")
+        Files.write(target, listOf("a", "b"))
+        val source = Paths.get("in/$topic/partition=0/$topic+0+0+9.avro")
+        val file = TopicFile(topic, source, Instant.now(),
+                TopicPartitionOffsetRange(topic, 0, 0L, 9L))
+        val otherFile = file.copy(path = Paths.get("in/$topic/partition=0/$topic+0+10+19.avro"),
+                range = TopicPartitionOffsetRange(topic, 0, 10L, 19L))
+
+        manifestStore.write(topic, mapOf(source to ExtractionManifest(0L, 9L,
+                mapOf(target to ExtractionManifest.Target(10L, Files.size(target))))))
+
+        val fallbackFiles = ArrayList<TopicFile>()
+        val fallback = object : ExtractionCheck {
+            override fun isExtracted(file: TopicFile): Boolean {
+                fallbackFiles += file
+                return false
+            }
+            override fun close() = Unit
+        }
+
+        ManifestExtractionCheck(manifestStore, LocalTargetStorage(LocalConfig()), fallback).use { check ->
+            assertTrue(check.isExtracted(file))
+            assertFalse(check.isExtracted(otherFile))
+            assertEquals(listOf(otherFile), fallbackFiles)
+
+            Files.delete(target)
+            assertFalse(check.isExtracted(file))
+            assertEquals(listOf(otherFile), fallbackFiles)
+
+            // a replaced target that is smaller than recorded is checked by the fallback
+            Files.write(target, listOf("a"))
+            assertFalse(check.isExtracted(file))
+            assertEquals(listOf(otherFile, file), fallbackFiles)
+        }
+
+        // a rewritten target is checked by the fallback, even if it grew
+        Files.write(target, listOf("a", "b", "c"))
+        manifestStore.markRewritten(topic, target)
+        assertEquals(mapOf(target to 1L), manifestStore.rewrites(topic))
+        ManifestExtractionCheck(manifestStore, LocalTargetStorage(LocalConfig()), fallback).use { check ->
+            assertFalse(check.isExtracted(file))
+            assertEquals(listOf(otherFile, file, file), fallbackFiles)
+        }
+        manifestStore.write(topic, mapOf(source to ExtractionManifest(0L, 9L,
+                mapOf(target to ExtractionManifest.Target(10L, Files.size(target), 1L)))))
+        ManifestExtractionCheck(manifestStore, LocalTargetStorage(LocalConfig()), fallback).use { check ->
+            assertTrue(check.isExtracted(file))
+        }
+        fallbackFiles.clear()
+
+        ManifestExtractionCheck(manifestStore, LocalTargetStorage(LocalConfig()), fallback, verifyRate = 1.0).use { check ->
+            Files.write(target, listOf("a", "b"))
+            assertFalse(check.isExtracted(file))
+            assertEquals(listOf(file), fallbackFiles)
+        }
+    }
+}
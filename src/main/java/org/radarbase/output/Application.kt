@@ -29,18 +29,25 @@ import org.radarbase.output.source.SourceStorage
 import org.radarbase.output.source.SourceStorageFactory
 import org.radarbase.output.target.TargetStorage
 import org.radarbase.output.target.TargetStorageFactory
+import org.radarbase.output.util.FlushScheduler
 import org.radarbase.output.util.Timer
 import org.radarbase.output.worker.FileCacheStore
 import org.radarbase.output.worker.Job
 import org.radarbase.output.worker.RadarKafkaRestructure
+import org.radarbase.output.worker.TargetPathClaims
 import org.slf4j.LoggerFactory
 import redis.clients.jedis.JedisPool
+import java.io.Closeable
 import java.io.IOException
 import java.nio.file.Files
 import java.text.NumberFormat
+import java.time.Duration
 import java.time.LocalDateTime
 import java.time.format.DateTimeFormatter
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.ExecutorService
 import java.util.concurrent.Executors
+import java.util.concurrent.ThreadPoolExecutor
 import java.util.concurrent.TimeUnit
 import java.util.concurrent.atomic.LongAdder
 import kotlin.Long.Companion.MAX_VALUE
@@ -49,7 +56,7 @@ import kotlin.system.exitProcess
 /** Main application.  */
 class Application(
         config: RestructureConfig
-) : FileStoreFactory {
+) : FileStoreFactory, Closeable {
 
     override val config = config.apply { validate() }
     override val recordConverter: RecordConverterFactory = config.format.createConverter()
@@ -67,9 +74,27 @@ class Application(
 
     override val redisHolder: RedisHolder = RedisHolder(JedisPool(config.redis.uri))
     override val remoteLockManager: RemoteLockManager = RedisRemoteLockManager(
-            redisHolder, config.redis.lockPrefix)
+            redisHolder, config.redis.lockPrefix, Duration.ofSeconds(config.redis.lockLease))
 
-    override val offsetPersistenceFactory: OffsetPersistenceFactory = OffsetRedisPersistence(redisHolder)
+    override val flushScheduler: FlushScheduler = config.offsets.createFlushScheduler()
+
+    override val offsetPersistenceFactory: OffsetPersistenceFactory = when {
+        config.offsets.type == "file" && config.offsets.binary -> OffsetBinaryFilePersistence(
+                targetStorage, flushScheduler, config.paths.output)
+        config.offsets.type == "file" -> OffsetFilePersistence(
+                targetStorage, flushScheduler, config.paths.output)
+        else -> OffsetRedisPersistence(redisHolder, flushScheduler, config.offsets.binary)
+    }
+
+    private val closeExecutor: ExecutorService? = config.worker.uploadThreads
+            .takeIf { it > 0 }
+            ?.let { numThreads ->
+                // When all threads are busy and the queue is full, the caller closes the file itself.
+                ThreadPoolExecutor(numThreads, numThreads, 0L, TimeUnit.MILLISECONDS,
+                        ArrayBlockingQueue(numThreads),
+                        { r -> Thread(r, "file-upload").apply { isDaemon = true } },
+                        ThreadPoolExecutor.CallerRunsPolicy())
+            }
 
     private val jobs = listOf(
             Job("restructure", config.worker.enable, config.service.interval, ::runRestructure),
@@ -77,11 +102,13 @@ class Application(
             .filter { it.isEnabled }
 
     @Throws(IOException::class)
-    override fun newFileCacheStore(accountant: Accountant) = FileCacheStore(this, accountant)
+    override fun newFileCacheStore(accountant: Accountant, pathClaims: TargetPathClaims?) =
+            FileCacheStore(this, accountant, pathClaims, closeExecutor)
 
     fun start() {
+        // topics are processed in the common pool, while the calling thread only locks them
         System.setProperty("java.util.concurrent.ForkJoinPool.common.parallelism",
-                (config.worker.numThreads - 1).toString())
+                config.worker.numThreads.toString())
 
         try {
             Files.createDirectories(config.paths.temp)
@@ -126,6 +153,7 @@ class Application(
             }
             logger.info("Cleaned up {} files",
                     cleaner.deletedFileCount.format())
+            logger.debug("Offset writes: {}", flushScheduler.drainStatistics())
         }
     }
 
@@ -140,12 +168,28 @@ class Application(
             logger.info("Processed {} files and {} records",
                     restructure.processedFileCount.format(),
                     restructure.processedRecordsCount.format())
+            logger.debug("Offset writes: {}", flushScheduler.drainStatistics())
+        }
+    }
+
+    override fun close() {
+        remoteLockManager.close()
+        closeExecutor?.let { executor ->
+            executor.shutdown()
+            // files that are still being uploaded write their offsets when done
+            if (!executor.awaitTermination(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                logger.warn("Files are still being uploaded after {} seconds", CLOSE_TIMEOUT_SECONDS)
+            }
         }
+        // write scheduled offsets before closing the Redis pool
+        flushScheduler.close()
+        redisHolder.close()
     }
 
     companion object {
         private val logger = LoggerFactory.getLogger(Application::class.java)
         const val CACHE_SIZE_DEFAULT = 100
+        private const val CLOSE_TIMEOUT_SECONDS = 300L
 
         private fun LongAdder.format(): String =
                 NumberFormat.getNumberInstance().format(sum())
@@ -203,7 +247,7 @@ class Application(
                 exitProcess(1)
             }
 
-            application.start()
+            application.use { it.start() }
         }
     }
 }
@@ -26,7 +26,9 @@ import org.radarbase.output.format.RecordConverterFactory
 import org.radarbase.output.path.RecordPathFactory
 import org.radarbase.output.source.SourceStorage
 import org.radarbase.output.target.TargetStorage
+import org.radarbase.output.util.FlushScheduler
 import org.radarbase.output.worker.FileCacheStore
+import org.radarbase.output.worker.TargetPathClaims
 import java.io.IOException
 
 /** Factory for all factory classes and settings.  */
@@ -40,7 +42,13 @@ interface FileStoreFactory {
     val remoteLockManager: RemoteLockManager
     val redisHolder: RedisHolder
     val offsetPersistenceFactory: OffsetPersistenceFactory
+    /** Scheduler of postponed writes, shared by all writers of this factory. */
+    val flushScheduler: FlushScheduler
 
+    /**
+     * Create a new file cache store. Stores that may write to the same files concurrently should
+     * share the same [pathClaims].
+     */
     @Throws(IOException::class)
-    fun newFileCacheStore(accountant: Accountant): FileCacheStore
+    fun newFileCacheStore(accountant: Accountant, pathClaims: TargetPathClaims? = null): FileCacheStore
 }
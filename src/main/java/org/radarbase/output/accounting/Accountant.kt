@@ -16,26 +16,28 @@
 
 package org.radarbase.output.accounting
 
+import com.almworks.integers.LongArray
 import org.radarbase.output.FileStoreFactory
-import org.radarbase.output.util.DirectFunctionalValue
+import org.radarbase.output.accounting.OffsetIntervals.Companion.toEpochNanos
 import org.radarbase.output.util.Timer.time
 import org.slf4j.LoggerFactory
 import java.io.Closeable
 import java.io.Flushable
 import java.io.IOException
 import java.nio.file.Files
+import java.nio.file.Path
 import java.nio.file.Paths
 import java.time.Instant
 
 open class Accountant @Throws(IOException::class)
-constructor(factory: FileStoreFactory, topic: String) : Flushable, Closeable {
+constructor(factory: FileStoreFactory, private val topic: String) : Flushable, Closeable {
     private val offsetFile: OffsetPersistenceFactory.Writer
 
     val offsets: OffsetRangeSet
         get() = offsetFile.offsets
 
     init {
-        val offsetsKey = Paths.get("offsets", "$topic.json")
+        val offsetsKey = offsetsKey(topic)
 
         val offsetPersistence = factory.offsetPersistenceFactory
         val offsets = offsetPersistence.read(offsetsKey)
@@ -54,18 +56,28 @@ constructor(factory: FileStoreFactory, topic: String) : Flushable, Closeable {
                 .resolve("$topic.csv")
 
         return if (Files.exists(offsetsPath)) {
-            OffsetFilePersistence(factory.targetStorage).read(offsetsPath)
+            OffsetFilePersistence(factory.targetStorage, factory.flushScheduler).read(offsetsPath)
                     .also { Files.delete(offsetsPath) }
         } else null
     }
 
     open fun remove(range: TopicPartitionOffsetRange) = time("accounting.remove") {
-        offsetFile.offsets.remove(range)
+        offsetFile.remove(range)
         offsetFile.triggerWrite()
     }
 
+    /**
+     * Compact the offsets of this topic with given low watermarks, the smallest offset
+     * of each partition that still has source files. Partitions without a watermark are kept.
+     */
+    open fun compact(watermarks: Map<TopicPartition, Long>) = time("accounting.compact") {
+        if (offsetFile.compact(topic, watermarks)) {
+            offsetFile.triggerWrite()
+        }
+    }
+
     open fun process(ledger: Ledger) = time("accounting.process") {
-        offsetFile.addAll(ledger.offsets)
+        offsetFile.addAll(ledger)
         offsetFile.triggerWrite()
     }
 
@@ -90,11 +102,59 @@ constructor(factory: FileStoreFactory, topic: String) : Flushable, Closeable {
         offsetFile.flush()
     }
 
+    /**
+     * Offsets that were written. Consecutive offsets of the same topic partition and
+     * modification time are collected into a single run. Runs are stored per topic partition
+     * in primitive arrays, and merged into the offsets without copying them. This class is not
+     * thread-safe.
+     */
     class Ledger {
-        internal val offsets: OffsetRangeSet = OffsetRangeSet { DirectFunctionalValue(it) }
+        private val partitions: MutableMap<TopicPartition, Runs> = HashMap()
+        private var lastPartition: TopicPartition? = null
+        private var lastRuns: Runs? = null
+        private var lastModified: Instant? = null
+        private var lastModifiedNanos = 0L
+
+        /** Whether no offsets were added. */
+        val isEmpty: Boolean
+            get() = partitions.isEmpty()
 
         fun add(transaction: Transaction) = time("accounting.add") {
-            offsets.add(transaction.topicPartition, transaction.offset, transaction.lastModified)
+            val partition = transaction.topicPartition
+            val runs = lastRuns?.takeIf { partition == lastPartition }
+                    ?: partitions.getOrPut(partition) { Runs() }.also {
+                        lastPartition = partition
+                        lastRuns = it
+                    }
+            if (transaction.lastModified != lastModified) {
+                lastModified = transaction.lastModified
+                lastModifiedNanos = transaction.lastModified.toEpochNanos()
+            }
+            runs.add(transaction.offset, lastModifiedNanos)
+        }
+
+        /** Process the runs of each topic partition, as parallel arrays. */
+        internal fun forEachRuns(
+                action: (TopicPartition, from: LongArray, to: LongArray, lastModified: LongArray) -> Unit
+        ) = partitions.forEach { (partition, runs) ->
+            action(partition, runs.from, runs.to, runs.lastModified)
+        }
+
+        private class Runs {
+            val from = LongArray(4)
+            val to = LongArray(4)
+            val lastModified = LongArray(4)
+
+            fun add(offset: Long, modifiedNanos: Long) {
+                val last = from.size() - 1
+                if (last >= 0 && offset == to[last] + 1 && modifiedNanos == lastModified[last]) {
+                    to[last] = offset
+                } else {
+                    from.add(offset)
+                    to.add(offset)
+                    lastModified.add(modifiedNanos)
+                }
+            }
         }
     }
 
@@ -103,5 +163,24 @@ constructor(factory: FileStoreFactory, topic: String) : Flushable, Closeable {
     companion object {
         private val logger = LoggerFactory.getLogger(Accountant::class.java)
         private val OFFSETS_FILE_NAME = Paths.get("offsets")
+
+        /** Key of the offsets of given topic in the offset persistence store. */
+        fun offsetsKey(topic: String): Path = Paths.get("offsets", "$topic.json")
+
+        /**
+         * Try to lock all given topics at once, and prefetch the offsets of the topics that
+         * were locked. Offsets are only prefetched after locking, so that no other process can
+         * change them before they are read.
+         * @return locks of the topics that were locked.
+         */
+        @Throws(IOException::class)
+        fun lockTopics(
+                factory: FileStoreFactory,
+                topics: Collection<String>,
+        ): Map<String, RemoteLockManager.RemoteLock> = time("accounting.lockTopics") {
+            factory.remoteLockManager.acquireLocks(topics).also { locks ->
+                factory.offsetPersistenceFactory.prefetch(locks.keys.map { offsetsKey(it) })
+            }
+        }
     }
 }
@@ -0,0 +1,276 @@
+package org.radarbase.output.accounting
+
+import org.radarbase.output.accounting.OffsetFilePersistence.Companion.resolveWithExtension
+import org.radarbase.output.target.TargetStorage
+import org.radarbase.output.util.FlushScheduler
+import org.radarbase.output.util.PostponedWriter
+import org.radarbase.output.util.Timer.time
+import org.slf4j.LoggerFactory
+import java.io.ByteArrayOutputStream
+import java.io.IOException
+import java.nio.BufferUnderflowException
+import java.nio.ByteBuffer
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ThreadLocalRandom
+
+/**
+ * Stores offsets in binary files on the target storage, relative to [root]. Each offsets path
+ * consists of a snapshot file with all offsets, and a journal file to which offsets that were
+ * added since the snapshot are appended. Once the journal grows larger than the snapshot, a new
+ * snapshot is written and the journal is removed. Journal entries are tagged with the generation
+ * of their snapshot, so entries of an older snapshot are ignored.
+ *
+ * If no snapshot exists yet, offsets are read from the CSV format of [OffsetFilePersistence].
+ */
+class OffsetBinaryFilePersistence(
+        private val targetStorage: TargetStorage,
+        private val flushScheduler: FlushScheduler,
+        private val root: Path,
+) : OffsetPersistenceFactory {
+    private val legacyPersistence = OffsetFilePersistence(targetStorage, flushScheduler, root)
+
+    /** Snapshot state of offsets that were read, to continue its journal in a writer. */
+    private val readStates: MutableMap<Path, SnapshotState> = ConcurrentHashMap()
+
+    override fun read(path: Path): OffsetRangeSet? {
+        val snapshotPath = root.resolveWithExtension(path, SNAPSHOT_EXTENSION)
+        return try {
+            if (targetStorage.status(snapshotPath) == null) {
+                return legacyPersistence.read(path)
+            }
+            val snapshot = readFile(snapshotPath)
+            val (offsets, generation) = time("accounting.readSnapshot") { decodeSnapshot(snapshot) }
+
+            val journalPath = snapshotPath.journalPath()
+            val journalSize = if (targetStorage.status(journalPath) != null) {
+                val journal = readFile(journalPath)
+                time("accounting.readJournal") { applyJournal(offsets, generation, journal) }
+                journal.size.toLong()
+            } else 0L
+
+            readStates[path] = SnapshotState(offsets, generation, snapshot.size.toLong(), journalSize)
+            offsets
+        } catch (ex: IOException) {
+            logger.error("Error reading offsets file. Processing all offsets.", ex)
+            null
+        } catch (ex: IllegalArgumentException) {
+            logger.error("Error parsing offsets file {}. Processing all offsets.", snapshotPath, ex)
+            null
+        }
+    }
+
+    @Throws(IOException::class)
+    private fun readFile(path: Path): ByteArray = targetStorage.newInputStream(path).use { it.readBytes() }
+
+    override fun writer(
+            path: Path,
+            startSet: OffsetRangeSet?
+    ): OffsetPersistenceFactory.Writer {
+        // Only continue the existing journal if the writer starts from the offsets that were read.
+        val state = readStates.remove(path)?.takeIf { startSet != null && it.offsets === startSet }
+        return BinaryFileWriter(root.resolveWithExtension(path, SNAPSHOT_EXTENSION), startSet, state)
+    }
+
+    private data class SnapshotState(
+            val offsets: OffsetRangeSet,
+            val generation: Long,
+            val snapshotSize: Long,
+            val journalSize: Long,
+    )
+
+    private inner class BinaryFileWriter(
+            private val snapshotPath: Path,
+            startSet: OffsetRangeSet?,
+            state: SnapshotState?,
+    ) : PostponedWriter("offsets", flushScheduler),
+            OffsetPersistenceFactory.Writer {
+        override val offsets: OffsetRangeSet = startSet ?: OffsetRangeSet()
+        private val journalPath = snapshotPath.journalPath()
+        private val lock = Any()
+
+        /** Offsets added since the last write. */
+        private var pending = OffsetRangeSet()
+        /** Whether offsets were changed in a way that cannot be journaled. */
+        private var needsSnapshot = state == null
+
+        private var generation = state?.generation ?: 0L
+        private var snapshotSize = state?.snapshotSize ?: 0L
+        private var journalSize = state?.journalSize ?: 0L
+
+        override fun add(range: TopicPartitionOffsetRange) = synchronized(lock) {
+            offsets.add(range)
+            pending.add(range)
+        }
+
+        override fun addAll(rangeSet: OffsetRangeSet) = synchronized(lock) {
+            offsets.addAll(rangeSet)
+            pending.addAll(rangeSet)
+        }
+
+        override fun addAll(ledger: Accountant.Ledger) = synchronized(lock) {
+            offsets.addAll(ledger)
+            pending.addAll(ledger)
+        }
+
+        override fun remove(range: TopicPartitionOffsetRange) = synchronized(lock) {
+            offsets.remove(range)
+            needsSnapshot = true
+        }
+
+        override fun compact(topic: String, watermarks: Map<TopicPartition, Long>): Boolean = synchronized(lock) {
+            offsets.compact(topic, watermarks)
+                    .also { if (it) needsSnapshot = true }
+        }
+
+        override fun doWrite(): Unit = time("accounting.offsets") {
+            try {
+                val (writeSnapshot, journal) = synchronized(lock) {
+                    val writeSnapshot = needsSnapshot || journalSize > maxOf(snapshotSize, MIN_JOURNAL_SIZE)
+                    val journal = if (writeSnapshot) null else encodeJournal(pending, generation)
+                    needsSnapshot = false
+                    pending = OffsetRangeSet()
+                    Pair(writeSnapshot, journal)
+                }
+                if (writeSnapshot) {
+                    writeSnapshot()
+                } else if (journal != null && journal.isNotEmpty()) {
+                    appendJournal(journal)
+                }
+            } catch (e: IOException) {
+                logger.error("Failed to write offsets: {}", e.toString())
+                synchronized(lock) { needsSnapshot = true }
+            }
+        }
+
+        @Throws(IOException::class)
+        private fun writeSnapshot() = time("accounting.writeSnapshot") {
+            val newGeneration = ThreadLocalRandom.current().nextLong()
+            val snapshot = encodeSnapshot(offsets, newGeneration)
+            store(snapshot, snapshotPath)
+            generation = newGeneration
+            snapshotSize = snapshot.size.toLong()
+            journalSize = 0L
+            if (targetStorage.status(journalPath) != null) {
+                targetStorage.delete(journalPath)
+            }
+        }
+
+        @Throws(IOException::class)
+        private fun appendJournal(journal: ByteArray) = time("accounting.appendJournal") {
+            if (journalSize == 0L && targetStorage.status(journalPath) == null) {
+                store(journal, journalPath)
+            } else {
+                val tmpPath = Files.createTempFile("offsets", ".journal")
+                Files.write(tmpPath, journal)
+                targetStorage.append(tmpPath, journalPath)
+            }
+            journalSize += journal.size
+        }
+
+        @Throws(IOException::class)
+        private fun store(bytes: ByteArray, path: Path) {
+            val tmpPath = Files.createTempFile("offsets", ".bin")
+            Files.write(tmpPath, bytes)
+            path.parent?.let { targetStorage.createDirectories(it) }
+            targetStorage.store(tmpPath, path)
+        }
+    }
+
+    companion object {
+        private val logger = LoggerFactory.getLogger(OffsetBinaryFilePersistence::class.java)
+
+        private const val SNAPSHOT_EXTENSION = ".offsets"
+        private const val JOURNAL_EXTENSION = ".journal"
+        private val SNAPSHOT_MAGIC = byteArrayOf('R'.toByte(), 'O'.toByte(), 'F'.toByte(), 'S'.toByte())
+        private const val SNAPSHOT_VERSION = 1L
+        /** Minimum journal size in bytes before it is compacted into a new snapshot. */
+        private const val MIN_JOURNAL_SIZE = 65_536L
+
+        private fun Path.journalPath(): Path = resolveSibling("$fileName$JOURNAL_EXTENSION")
+
+        internal fun encodeSnapshot(offsets: OffsetRangeSet, generation: Long): ByteArray {
+            val out = ByteArrayOutputStream()
+            out.write(SNAPSHOT_MAGIC)
+            out.writeVarLong(SNAPSHOT_VERSION)
+            out.writeVarLong(zigZag(generation))
+            out.writePartitions(offsets)
+            return out.toByteArray()
+        }
+
+        internal fun decodeSnapshot(bytes: ByteArray): Pair<OffsetRangeSet, Long> {
+            val input = ByteBuffer.wrap(bytes)
+            try {
+                val magic = ByteArray(SNAPSHOT_MAGIC.size).also { input.get(it) }
+                require(magic.contentEquals(SNAPSHOT_MAGIC)) { "Not an offsets snapshot" }
+                val version = input.readVarLong()
+                require(version == SNAPSHOT_VERSION) { "Unknown offsets snapshot version $version" }
+                val generation = unZigZag(input.readVarLong())
+                val offsets = OffsetRangeSet()
+                input.readPartitions(offsets)
+                return Pair(offsets, generation)
+            } catch (ex: BufferUnderflowException) {
+                throw IllegalArgumentException("Offsets snapshot is truncated", ex)
+            }
+        }
+
+        /** Encode a journal entry, or return an empty array if there are no offsets. */
+        internal fun encodeJournal(offsets: OffsetRangeSet, generation: Long): ByteArray {
+            if (offsets.isEmpty) {
+                return ByteArray(0)
+            }
+            val entry = ByteArrayOutputStream()
+            entry.writeVarLong(zigZag(generation))
+            entry.writePartitions(offsets)
+            return ByteArrayOutputStream().apply { writeByteArray(entry.toByteArray()) }.toByteArray()
+        }
+
+        /**
+         * Add all journal entries of given generation to given offsets. A truncated last entry,
+         * caused by an interrupted append, is ignored.
+         */
+        internal fun applyJournal(offsets: OffsetRangeSet, generation: Long, bytes: ByteArray) {
+            val input = ByteBuffer.wrap(bytes)
+            while (input.hasRemaining()) {
+                val entry = try {
+                    ByteBuffer.wrap(input.readByteArray())
+                } catch (ex: BufferUnderflowException) {
+                    logger.warn("Ignoring truncated offsets journal entry")
+                    return
+                } catch (ex: IllegalArgumentException) {
+                    logger.warn("Ignoring truncated offsets journal entry")
+                    return
+                }
+                try {
+                    if (unZigZag(entry.readVarLong()) == generation) {
+                        entry.readPartitions(offsets)
+                    }
+                } catch (ex: BufferUnderflowException) {
+                    throw IllegalArgumentException("Offsets journal entry is corrupt", ex)
+                }
+            }
+        }
+
+        private fun ByteArrayOutputStream.writePartitions(offsets: OffsetRangeSet) {
+            val partitions = offsets.map { topicPartition, intervals ->
+                Pair(topicPartition, intervals.toBytes())
+            }
+            writeVarLong(partitions.size.toLong())
+            partitions.forEach { (topicPartition, intervals) ->
+                writeString(topicPartition.topic)
+                writeVarLong(topicPartition.partition.toLong())
+                writeByteArray(intervals)
+            }
+        }
+
+        private fun ByteBuffer.readPartitions(offsets: OffsetRangeSet) {
+            val numPartitions = readVarLong()
+            require(numPartitions >= 0 && numPartitions <= remaining()) { "Invalid number of partitions $numPartitions" }
+            repeat(numPartitions.toInt()) {
+                val topicPartition = TopicPartition(readString(), readVarLong().toInt())
+                offsets.addAll(topicPartition, OffsetIntervals.fromBytes(readByteArray()))
+            }
+        }
+    }
+}
@@ -17,6 +17,7 @@
 package org.radarbase.output.accounting
 
 import org.radarbase.output.target.TargetStorage
+import org.radarbase.output.util.FlushScheduler
 import org.radarbase.output.util.PostponedWriter
 import org.radarbase.output.util.Timer.time
 import org.slf4j.LoggerFactory
@@ -24,21 +25,24 @@ import java.io.IOException
 import java.nio.file.Files
 import java.nio.file.Path
 import java.time.Instant
-import java.util.concurrent.TimeUnit
 import java.util.regex.Pattern
 
 /**
  * Accesses a OffsetRange file using the CSV format. On writing, this will create the file if
- * not present.
+ * not present. If [root] is given, offset paths are stored relative to it, with a
+ * `.offsets.csv` extension instead of their own.
  */
 class OffsetFilePersistence(
-        private val targetStorage: TargetStorage
+        private val targetStorage: TargetStorage,
+        private val flushScheduler: FlushScheduler,
+        private val root: Path? = null,
 ): OffsetPersistenceFactory {
     override fun read(path: Path): OffsetRangeSet? {
+        val storagePath = storagePath(path)
         return try {
-            if (targetStorage.status(path) != null) {
+            if (targetStorage.status(storagePath) != null) {
                 OffsetRangeSet().also { set ->
-                    targetStorage.newBufferedReader(path).use { br ->
+                    targetStorage.newBufferedReader(storagePath).use { br ->
                         // ignore header
                         br.readLine() ?: return@use
 
@@ -59,6 +63,8 @@ class OffsetFilePersistence(
             startSet: OffsetRangeSet?
     ): OffsetPersistenceFactory.Writer = FileWriter(path, startSet)
 
+    private fun storagePath(path: Path): Path = root?.resolveWithExtension(path, ".offsets.csv") ?: path
+
     private fun parseLine(line: String): TopicPartitionOffsetRange {
         val cols = COMMA_PATTERN.split(line)
         var topic = cols[3]
@@ -83,14 +89,21 @@ class OffsetFilePersistence(
     companion object {
         private val COMMA_PATTERN: Pattern = Pattern.compile(",")
         private val logger = LoggerFactory.getLogger(OffsetFilePersistence::class.java)
+
+        /** Resolve given path, replacing its file extension with given extension. */
+        internal fun Path.resolveWithExtension(path: Path, extension: String): Path {
+            val resolved = resolve(path)
+            return resolved.resolveSibling(resolved.fileName.toString().substringBeforeLast('.') + extension)
+        }
     }
 
     private inner class FileWriter(
-            private val path: Path,
+            path: Path,
             startSet: OffsetRangeSet?
-    ): PostponedWriter("offsets", 1, TimeUnit.SECONDS),
+    ): PostponedWriter("offsets", flushScheduler),
             OffsetPersistenceFactory.Writer {
         override val offsets: OffsetRangeSet = startSet ?: OffsetRangeSet()
+        private val path = storagePath(path)
 
         override fun doWrite() = time("accounting.offsets") {
             try {
@@ -114,6 +127,7 @@ class OffsetFilePersistence(
                     }
                 }
 
+                path.parent?.let { targetStorage.createDirectories(it) }
                 targetStorage.store(tmpPath, path)
             } catch (e: IOException) {
                 logger.error("Failed to write offsets: {}", e.toString())
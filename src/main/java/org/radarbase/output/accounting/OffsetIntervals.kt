@@ -1,23 +1,31 @@
 package org.radarbase.output.accounting
 
 import com.almworks.integers.LongArray
+import java.io.ByteArrayOutputStream
+import java.nio.BufferUnderflowException
+import java.nio.ByteBuffer
 import java.time.Instant
+import kotlin.math.max
 
+/**
+ * Sorted, disjoint offset intervals with their last processing time. All values are stored in
+ * primitive arrays, with the last processing time as nanoseconds since the epoch.
+ */
 class OffsetIntervals {
     private val offsetsFrom: LongArray
     private val offsetsTo: LongArray
-    private val lastProcessed: MutableList<Instant>
+    private val lastProcessed: LongArray
 
     constructor() {
         offsetsFrom = LongArray(8)
         offsetsTo = LongArray(8)
-        lastProcessed = ArrayList(8)
+        lastProcessed = LongArray(8)
     }
 
     constructor(other: OffsetIntervals) {
         offsetsFrom = LongArray(other.offsetsFrom)
         offsetsTo = LongArray(other.offsetsTo)
-        lastProcessed = ArrayList(other.lastProcessed)
+        lastProcessed = LongArray(other.lastProcessed)
     }
 
     fun contains(range: OffsetRangeSet.Range): Boolean {
@@ -27,23 +35,53 @@ class OffsetIntervals {
         val rangeTo = range.to ?: range.from
         return (index >= 0
                 && rangeTo <= offsetsTo[index]
-                && range.lastProcessed <= lastProcessed[index])
+                && range.lastProcessed.toEpochNanos() <= lastProcessed[index])
     }
 
     fun contains(offset: Long, lastModified: Instant): Boolean {
+        val modifiedNanos = lastModified.toEpochNanos()
         //  -index-1 if not found
         val searchIndex = offsetsFrom.binarySearch(offset)
         if (searchIndex >= 0) {
-            return lastModified <= lastProcessed[searchIndex]
+            return modifiedNanos <= lastProcessed[searchIndex]
         }
 
         val indexBefore = -searchIndex - 2
         return (indexBefore >= 0
                 && offset <= offsetsTo[indexBefore]
-                && lastModified <= lastProcessed[indexBefore])
+                && modifiedNanos <= lastProcessed[indexBefore])
     }
 
-    fun add(offset: Long, lastModified: Instant) {
+    /**
+     * Offsets in given range that are not contained in these intervals, as a sorted list of
+     * disjoint ranges. The range is fully contained if the result is empty.
+     */
+    fun uncovered(range: OffsetRangeSet.Range): List<OffsetRangeSet.Range> {
+        val rangeTo = range.to ?: range.from
+        val modifiedNanos = range.lastProcessed.toEpochNanos()
+        val searchIndex = offsetsFrom.binarySearch(range.from)
+        var index = if (searchIndex >= 0) searchIndex else maxOf(-searchIndex - 2, 0)
+        val result = ArrayList<OffsetRangeSet.Range>()
+        // first offset that is not yet known to be contained
+        var next = range.from
+        while (index < offsetsFrom.size() && next <= rangeTo && offsetsFrom[index] <= rangeTo) {
+            if (offsetsTo[index] >= next && modifiedNanos <= lastProcessed[index]) {
+                if (offsetsFrom[index] > next) {
+                    result += OffsetRangeSet.Range(next, offsetsFrom[index] - 1, range.lastProcessed)
+                }
+                next = offsetsTo[index] + 1
+            }
+            index++
+        }
+        if (next <= rangeTo) {
+            result += OffsetRangeSet.Range(next, rangeTo, range.lastProcessed)
+        }
+        return result
+    }
+
+    fun add(offset: Long, lastModified: Instant) = add(offset, lastModified.toEpochNanos())
+
+    private fun add(offset: Long, lastModified: Long) {
         var index = offsetsFrom.binarySearch(offset)
         if (index >= 0) {
             lastProcessed[index] = max(lastProcessed[index], lastModified)
@@ -74,6 +112,10 @@ class OffsetIntervals {
     fun add(range: OffsetRangeSet.Range) {
         val (from, to, lastModified) = range
         checkNotNull(to)
+        add(from, to, lastModified.toEpochNanos())
+    }
+
+    private fun add(from: Long, to: Long, lastModified: Long) {
         var index = offsetsFrom.binarySearch(from)
         if (index < 0) {
             // index where this range would be entered
@@ -121,21 +163,196 @@ class OffsetIntervals {
         }
     }
 
+    /**
+     * Add all intervals of another set of intervals. Both sets are merged in a single pass,
+     * in time linear in the number of intervals. If only a few intervals are added to a large
+     * set, they are inserted one by one instead.
+     */
+    fun addAll(other: OffsetIntervals) {
+        if (other.size() == 0) {
+            return
+        }
+        if (size() == 0) {
+            offsetsFrom.addAll(other.offsetsFrom)
+            offsetsTo.addAll(other.offsetsTo)
+            lastProcessed.addAll(other.lastProcessed)
+            return
+        }
+        if (other.size() * SMALL_MERGE_FACTOR < size()) {
+            repeat(other.size()) { i ->
+                add(other.offsetsFrom[i], other.offsetsTo[i], other.lastProcessed[i])
+            }
+            return
+        }
+        mergeSorted(other.size(), other.offsetsFrom::get, other.offsetsTo::get, other.lastProcessed::get)
+    }
+
+    /**
+     * Add runs of offsets, given as parallel arrays of first and last offsets and processing
+     * times in nanoseconds since the epoch. Runs may overlap. If they are sorted by their first
+     * offset, they are merged in a single pass without copying them.
+     */
+    internal fun addRuns(from: LongArray, to: LongArray, lastProcessed: LongArray) {
+        val otherSize = from.size()
+        if (otherSize == 0) {
+            return
+        }
+        if (otherSize * SMALL_MERGE_FACTOR < size() || !from.isSortedAscending()) {
+            repeat(otherSize) { i ->
+                add(from[i], to[i], lastProcessed[i])
+            }
+            return
+        }
+        mergeSorted(otherSize, from::get, to::get, lastProcessed::get)
+    }
+
+    /**
+     * Add all given ranges. If the ranges are sorted by their start offset, they are merged in
+     * a single pass, in time linear in the number of intervals and ranges.
+     */
+    fun addAll(ranges: List<OffsetRangeSet.Range>) {
+        if (ranges.size * SMALL_MERGE_FACTOR < size()) {
+            ranges.forEach { add(it.ensureToOffset()) }
+            return
+        }
+        val sortedRanges = if (ranges.zipWithNext().all { (a, b) -> a.from <= b.from }) {
+            ranges
+        } else ranges.sortedBy { it.from }
+
+        mergeSorted(
+                sortedRanges.size,
+                { sortedRanges[it].from },
+                { sortedRanges[it].to ?: sortedRanges[it].from },
+                { sortedRanges[it].lastProcessed.toEpochNanos() })
+    }
+
+    /**
+     * Merge given sorted intervals with the current intervals. Overlapping and adjacent
+     * intervals are combined, taking the latest processing time.
+     */
+    private inline fun mergeSorted(
+            otherSize: Int,
+            otherFrom: (Int) -> Long,
+            otherTo: (Int) -> Long,
+            otherLastProcessed: (Int) -> Long,
+    ) {
+        val currentSize = size()
+        val mergedFrom = LongArray(currentSize + otherSize)
+        val mergedTo = LongArray(currentSize + otherSize)
+        val mergedLastProcessed = LongArray(currentSize + otherSize)
+
+        var i = 0
+        var j = 0
+        while (i < currentSize || j < otherSize) {
+            val from: Long
+            val to: Long
+            val lastModified: Long
+            if (j >= otherSize || (i < currentSize && offsetsFrom[i] <= otherFrom(j))) {
+                from = offsetsFrom[i]
+                to = offsetsTo[i]
+                lastModified = lastProcessed[i]
+                i++
+            } else {
+                from = otherFrom(j)
+                to = otherTo(j)
+                lastModified = otherLastProcessed(j)
+                j++
+            }
+            val last = mergedFrom.size() - 1
+            if (last >= 0 && from <= mergedTo[last] + 1) {
+                if (to > mergedTo[last]) {
+                    mergedTo[last] = to
+                }
+                if (lastModified > mergedLastProcessed[last]) {
+                    mergedLastProcessed[last] = lastModified
+                }
+            } else {
+                mergedFrom.add(from)
+                mergedTo.add(to)
+                mergedLastProcessed.add(lastModified)
+            }
+        }
+
+        offsetsFrom.clear()
+        offsetsFrom.addAll(mergedFrom)
+        offsetsTo.clear()
+        offsetsTo.addAll(mergedTo)
+        lastProcessed.clear()
+        lastProcessed.addAll(mergedLastProcessed)
+    }
+
+    /**
+     * Collapse all intervals that end below given low watermark into a single interval. Offsets
+     * below the watermark are assumed to no longer exist in the source, so gaps between those
+     * intervals are filled up to the watermark. If the next interval starts at or below the
+     * watermark, the collapsed intervals are merged into it, so that intervals remain disjoint
+     * and merged. The collapsed interval takes the latest processing time of the collapsed ones.
+     * @return whether the intervals were changed.
+     */
+    fun compact(watermark: Long): Boolean {
+        //  -index-1 if not found; offsetsTo is sorted because intervals are disjoint
+        val searchIndex = offsetsTo.binarySearch(watermark - 1)
+        val numBelow = if (searchIndex >= 0) searchIndex + 1 else -searchIndex - 1
+        if (numBelow == 0) {
+            return false
+        }
+        val mergeNext = numBelow < size() && offsetsFrom[numBelow] <= watermark
+        if (numBelow == 1 && !mergeNext && offsetsTo[0] == watermark - 1) {
+            return false
+        }
+        var maxProcessed = lastProcessed[0]
+        for (i in 1 until numBelow) {
+            maxProcessed = max(maxProcessed, lastProcessed[i])
+        }
+        if (mergeNext) {
+            offsetsFrom[numBelow] = offsetsFrom[0]
+            lastProcessed[numBelow] = max(maxProcessed, lastProcessed[numBelow])
+            removeRange(0, numBelow)
+        } else {
+            offsetsTo[0] = watermark - 1
+            lastProcessed[0] = maxProcessed
+            if (numBelow > 1) {
+                removeRange(1, numBelow)
+            }
+        }
+        return true
+    }
+
+    /**
+     * Encode these intervals in a compact binary format. Each interval is stored as variable
+     * length integers, relative to the previous interval.
+     */
+    fun toBytes(): ByteArray {
+        val out = ByteArrayOutputStream(8 + size() * 8)
+        out.writeVarLong(BINARY_FORMAT_VERSION)
+        out.writeVarLong(size().toLong())
+        var previousTo = 0L
+        var previousProcessed = 0L
+        repeat(size()) { i ->
+            out.writeVarLong(zigZag(offsetsFrom[i] - previousTo))
+            out.writeVarLong(offsetsTo[i] - offsetsFrom[i])
+            out.writeVarLong(zigZag(lastProcessed[i] - previousProcessed))
+            previousTo = offsetsTo[i]
+            previousProcessed = lastProcessed[i]
+        }
+        return out.toByteArray()
+    }
+
     fun forEach(
             action: (offsetFrom: Long, offsetTo: Long, lastModified: Instant) -> Unit
-    ) = repeat(lastProcessed.size) { i ->
-        action(offsetsFrom[i], offsetsTo[i], lastProcessed[i])
+    ) = repeat(lastProcessed.size()) { i ->
+        action(offsetsFrom[i], offsetsTo[i], lastProcessed[i].toInstant())
     }
 
-    fun toList(): List<OffsetRangeSet.Range> = List(lastProcessed.size) { i ->
-        OffsetRangeSet.Range(offsetsFrom[i], offsetsTo[i], lastProcessed[i])
+    fun toList(): List<OffsetRangeSet.Range> = List(lastProcessed.size()) { i ->
+        OffsetRangeSet.Range(offsetsFrom[i], offsetsTo[i], lastProcessed[i].toInstant())
     }
 
     fun size(): Int = offsetsFrom.size()
 
     override fun toString(): String {
-        return ("[" + lastProcessed.indices.joinToString(", ") { i ->
-            "(${offsetsFrom[i]} - ${offsetsTo[i]}, ${lastProcessed[i]})"
+        return ("[" + (0 until lastProcessed.size()).joinToString(", ") { i ->
+            "(${offsetsFrom[i]} - ${offsetsTo[i]}, ${lastProcessed[i].toInstant()})"
         } + "]")
     }
 
@@ -176,14 +393,10 @@ class OffsetIntervals {
         }
     }
 
-    private fun insert(index: Int, from: Long, to: Long, lastModified: Instant) {
+    private fun insert(index: Int, from: Long, to: Long, lastModified: Long) {
         offsetsFrom.insert(index, from)
         offsetsTo.insert(index, to)
-        if (index > lastProcessed.size) {
-            lastProcessed.add(lastModified)
-        } else {
-            lastProcessed.add(index, lastModified)
-        }
+        lastProcessed.insert(index, lastModified)
     }
 
     private fun removeAt(index: Int) {
@@ -195,10 +408,65 @@ class OffsetIntervals {
     private fun removeRange(from: Int, to: Int) {
         offsetsFrom.removeRange(from, to)
         offsetsTo.removeRange(from, to)
-        lastProcessed.subList(from, to).clear()
+        lastProcessed.removeRange(from, to)
     }
 
     companion object {
-        private fun <T: Comparable<T>> max(a: T, b: T): T = if (a >= b) a else b
+        private const val BINARY_FORMAT_VERSION = 1L
+
+        /**
+         * Decode intervals encoded by [toBytes].
+         * @throws IllegalArgumentException if the bytes are not a valid encoding.
+         */
+        fun fromBytes(bytes: ByteArray): OffsetIntervals {
+            val input = ByteBuffer.wrap(bytes)
+            try {
+                val version = input.readVarLong()
+                require(version == BINARY_FORMAT_VERSION) { "Unknown offsets format version $version" }
+                val size = input.readVarLong().toInt()
+                require(size >= 0 && size <= bytes.size) { "Invalid number of intervals $size" }
+                return OffsetIntervals().apply {
+                    var previousTo = 0L
+                    var previousProcessed = 0L
+                    repeat(size) {
+                        val from = previousTo + unZigZag(input.readVarLong())
+                        val to = from + input.readVarLong()
+                        val processed = previousProcessed + unZigZag(input.readVarLong())
+                        offsetsFrom.add(from)
+                        offsetsTo.add(to)
+                        lastProcessed.add(processed)
+                        previousTo = to
+                        previousProcessed = processed
+                    }
+                }
+            } catch (ex: BufferUnderflowException) {
+                throw IllegalArgumentException("Offsets are truncated", ex)
+            }
+        }
+
+        /** Add intervals one by one if this many times fewer are added than are present. */
+        private const val SMALL_MERGE_FACTOR = 16
+        private const val NANOS_PER_SECOND = 1_000_000_000L
+        private val MIN_EPOCH_SECOND = Long.MIN_VALUE / NANOS_PER_SECOND
+        private val MAX_EPOCH_SECOND = Long.MAX_VALUE / NANOS_PER_SECOND - 1
+
+        private fun LongArray.isSortedAscending(): Boolean {
+            for (i in 1 until size()) {
+                if (get(i - 1) > get(i)) {
+                    return false
+                }
+            }
+            return true
+        }
+
+        /** Nanoseconds since the epoch, clamped to the range that fits in a long. */
+        internal fun Instant.toEpochNanos(): Long = when {
+            epochSecond <= MIN_EPOCH_SECOND -> Long.MIN_VALUE
+            epochSecond >= MAX_EPOCH_SECOND -> Long.MAX_VALUE
+            else -> epochSecond * NANOS_PER_SECOND + nano
+        }
+
+        private fun Long.toInstant(): Instant = Instant.ofEpochSecond(
+                Math.floorDiv(this, NANOS_PER_SECOND), Math.floorMod(this, NANOS_PER_SECOND))
     }
 }
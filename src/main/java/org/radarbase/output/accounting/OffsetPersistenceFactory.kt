@@ -30,6 +30,13 @@ interface OffsetPersistenceFactory {
      */
     fun read(path: Path): OffsetRangeSet?
 
+    /**
+     * Load the offsets of given paths in bulk, so that subsequent reads of these paths do not
+     * need to access the persistence store individually. A prefetched path is only used by
+     * its next read. By default, this does nothing.
+     */
+    fun prefetch(paths: Collection<Path>) = Unit
+
     /**
      * Create a writer to write offsets to the persistence store.
      * Always close the writer after use.
@@ -51,6 +58,24 @@ interface OffsetPersistenceFactory {
          */
         fun addAll(rangeSet: OffsetRangeSet) = offsets.addAll(rangeSet)
 
+        /**
+         * Add all offsets collected in given ledger to the writer.
+         */
+        fun addAll(ledger: Accountant.Ledger) = offsets.addAll(ledger)
+
+        /**
+         * Remove a single offset range from the writer.
+         */
+        fun remove(range: TopicPartitionOffsetRange) = offsets.remove(range)
+
+        /**
+         * Compact offsets of given topic with given low watermarks.
+         * @see OffsetRangeSet.compact
+         * @return whether any offsets were changed.
+         */
+        fun compact(topic: String, watermarks: Map<TopicPartition, Long>): Boolean =
+                offsets.compact(topic, watermarks)
+
         /**
          * Trigger an asynchronous write operation. If this is called multiple times before the
          * operation is executed, the operation will be executed only once.
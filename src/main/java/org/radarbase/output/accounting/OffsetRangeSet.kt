@@ -67,19 +67,26 @@ class OffsetRangeSet {
     /** Add all offset stream of given set to the current set.  */
     fun addAll(set: OffsetRangeSet) {
         set.ranges.entries.forEach { (otherPartition, otherRanges) ->
-            otherPartition.modifyIntervals { rangeList ->
-                otherRanges.read { it.toList() }
-                        .forEach { rangeList.add(it) }
-            }
+            val otherIntervals = otherRanges.read { OffsetIntervals(it) }
+            otherPartition.modifyIntervals { it.addAll(otherIntervals) }
         }
     }
 
-    fun addAll(topicPartition: TopicPartition, ranges: List<Range>) {
-        topicPartition.modifyIntervals { intervals ->
-            ranges.forEach { intervals.add(it) }
+    /** Add all offsets collected in given ledger, without copying them first.  */
+    fun addAll(ledger: Accountant.Ledger) {
+        ledger.forEachRuns { topicPartition, from, to, lastProcessed ->
+            topicPartition.modifyIntervals { it.addRuns(from, to, lastProcessed) }
         }
     }
 
+    fun addAll(topicPartition: TopicPartition, intervals: OffsetIntervals) {
+        topicPartition.modifyIntervals { it.addAll(intervals) }
+    }
+
+    fun addAll(topicPartition: TopicPartition, ranges: List<Range>) {
+        topicPartition.modifyIntervals { it.addAll(ranges) }
+    }
+
     /** Whether this range value completely contains the given range.  */
     operator fun contains(range: TopicPartitionOffsetRange): Boolean {
         return range.topicPartition.readIntervals { it.contains(range.range) }
@@ -90,11 +97,35 @@ class OffsetRangeSet {
         return partition.readIntervals { it.contains(offset, lastModified) }
     }
 
+    /**
+     * Offsets of given range that are not contained in this set, as a sorted list of disjoint
+     * ranges.
+     */
+    fun uncovered(range: TopicPartitionOffsetRange): List<Range> {
+        return range.topicPartition.readIntervals { it.uncovered(range.range) }
+    }
+
     /** Number of distinct offsets in given topic/partition.  */
     fun size(topicPartition: TopicPartition): Int {
         return topicPartition.readIntervals { it.size() }
     }
 
+    /**
+     * Compact the offsets of given topic with per-partition low watermarks. See
+     * [OffsetIntervals.compact]. Partitions of the topic without a watermark are left
+     * unchanged, since it is unknown which of their offsets still exist in the source.
+     * @return whether any offsets were changed.
+     */
+    fun compact(topic: String, watermarks: Map<TopicPartition, Long>): Boolean {
+        var isChanged = false
+        watermarks.forEach { (partition, watermark) ->
+            if (partition.topic == topic) {
+                ranges[partition]?.modify { if (it.compact(watermark)) isChanged = true }
+            }
+        }
+        return isChanged
+    }
+
     fun remove(range: TopicPartitionOffsetRange) {
         return range.topicPartition.modifyIntervals { it.remove(range.range) }
     }
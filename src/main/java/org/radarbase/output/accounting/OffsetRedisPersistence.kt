@@ -21,49 +21,194 @@ import com.fasterxml.jackson.databind.ObjectWriter
 import com.fasterxml.jackson.databind.SerializationFeature
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule
 import com.fasterxml.jackson.module.kotlin.jacksonObjectMapper
+import org.radarbase.output.util.FlushScheduler
 import org.radarbase.output.util.PostponedWriter
 import org.radarbase.output.util.Timer.time
 import org.slf4j.LoggerFactory
+import redis.clients.jedis.Jedis
 import java.io.IOException
+import java.nio.charset.StandardCharsets.UTF_8
 import java.nio.file.Path
-import java.util.concurrent.TimeUnit
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentMap
 
 /**
- * Accesses a OffsetRange json object a Redis entry.
+ * Accesses a OffsetRange json object a Redis entry. If [binary] is set, offsets are instead
+ * stored in a Redis hash with one binary encoded field per topic partition, and only changed
+ * partitions are written. Offsets in the legacy JSON format are still read if no hash is present
+ * yet, and removed after the first binary write. Conversely, a binary hash is always read if
+ * present, even if [binary] is not set, and it is removed after the first JSON write. This way,
+ * the format can be switched in either direction without losing offsets.
+ *
+ * Every write increments a version counter next to the offsets. Offsets of a closed writer are
+ * kept in memory with their version, and handed to the next [read] of the same path if the
+ * version in Redis did not change in the meantime. In service mode, this avoids reloading all
+ * offsets on every run, unless another instance has changed them. Offsets of many paths can be
+ * fetched in a single round trip with [prefetch].
  */
 class OffsetRedisPersistence(
-        private val redisHolder: RedisHolder
+        private val redisHolder: RedisHolder,
+        private val flushScheduler: FlushScheduler,
+        private val binary: Boolean = false,
 ) : OffsetPersistenceFactory {
 
+    /** Offsets of closed writers, with the version they were last written as. */
+    private val cache: ConcurrentMap<Path, VersionedOffsets> = ConcurrentHashMap()
+    /** Version of the offsets that were last read, to be continued by a writer. */
+    private val readVersions: ConcurrentMap<Path, VersionedOffsets> = ConcurrentHashMap()
+    /**
+     * Stored offsets that were prefetched but not yet read. Prefetches of later batches may
+     * arrive before all offsets of earlier batches were read, so they are merged.
+     */
+    private val prefetched: ConcurrentMap<Path, StoredOffsets> = ConcurrentHashMap()
+
     override fun read(path: Path): OffsetRangeSet? {
         return try {
-            redisHolder.execute { redis ->
-                redis[path.toString()]?.let { value ->
-                    redisOffsetReader.readValue<RedisOffsetRangeSet>(value)
-                            .partitions
-                            .fold(OffsetRangeSet(), { set, (topic, partition, ranges) ->
-                                set.apply { addAll(TopicPartition(topic, partition), ranges) }
-                            })
-                }
+            val cached = cache.remove(path)
+            val stored = prefetched.remove(path)
+                    ?.takeIf { it.isLoaded || it.version == cached?.version }
+                    ?: redisHolder.execute { redis ->
+                        val version = redis[path.toVersionKey()]?.toLongOrNull()
+                        if (version != null && cached?.version == version) {
+                            StoredOffsets(version, isLoaded = false)
+                        } else fetch(redis, path, version)
+                    }
+
+            val version = stored.version
+            val offsets = if (version != null && cached?.version == version) {
+                logger.debug("Using cached offsets of {} at version {}", path, version)
+                cached.offsets
+            } else stored.parse()
+
+            if (offsets != null && version != null) {
+                readVersions[path] = VersionedOffsets(offsets, version)
             }
+            offsets
         } catch (ex: IOException) {
             logger.error("Error reading offsets from Redis: {}. Processing all offsets.", ex.toString())
             null
+        } catch (ex: IllegalArgumentException) {
+            logger.error("Error parsing offsets from Redis: {}. Processing all offsets.", ex.toString())
+            null
+        }
+    }
+
+    /**
+     * Fetch the offsets of given paths in a single round trip. Paths of which the offsets in
+     * the cache are still up to date only have their version fetched.
+     */
+    override fun prefetch(paths: Collection<Path>) {
+        if (paths.isEmpty()) {
+            return
+        }
+        try {
+            val result = ConcurrentHashMap<Path, StoredOffsets>()
+            redisHolder.execute { redis ->
+                val pipeline = redis.pipelined()
+                val responses = paths.map { path ->
+                    Triple(pipeline.get(path.toVersionKey()),
+                            pipeline.hgetAll(path.toHashKey()),
+                            pipeline.get(path.toString()))
+                }
+                pipeline.sync()
+
+                paths.forEachIndexed { i, path ->
+                    val (versionResponse, hashResponse, jsonResponse) = responses[i]
+                    val version = versionResponse.get()?.toLongOrNull()
+                    result[path] = if (version != null && cache[path]?.version == version) {
+                        StoredOffsets(version, isLoaded = false)
+                    } else {
+                        val hash = hashResponse.get().takeIf { it.isNotEmpty() }
+                        StoredOffsets(version, hash, if (hash == null) jsonResponse.get() else null)
+                    }
+                }
+            }
+            prefetched.putAll(result)
+        } catch (ex: IOException) {
+            logger.warn("Failed to prefetch offsets from Redis: {}", ex.toString())
         }
     }
 
+    private fun fetch(redis: Jedis, path: Path, version: Long?): StoredOffsets {
+        val hash = redis.hgetAll(path.toHashKey()).takeIf { it.isNotEmpty() }
+        return StoredOffsets(version, hash, if (hash == null) redis[path.toString()] else null)
+    }
+
+    /**
+     * Offsets as stored in Redis, either as a [hash] of binary fields or as a [json] value.
+     * If the offsets are not [isLoaded], only their version was fetched.
+     */
+    private class StoredOffsets(
+            val version: Long?,
+            val hash: Map<ByteArray, ByteArray>? = null,
+            val json: String? = null,
+            val isLoaded: Boolean = true,
+    ) {
+        @Throws(IOException::class)
+        fun parse(): OffsetRangeSet? = when {
+            hash != null -> parseBinary(hash)
+            json != null -> parseJson(json)
+            else -> null
+        }
+
+        private fun parseBinary(fields: Map<ByteArray, ByteArray>) = OffsetRangeSet().apply {
+            fields.forEach { (field, value) ->
+                val fieldName = String(field, UTF_8)
+                if (fieldName != VERSION_FIELD) {
+                    addAll(fieldName.toTopicPartition(), OffsetIntervals.fromBytes(value))
+                }
+            }
+        }
+
+        @Throws(IOException::class)
+        private fun parseJson(value: String) = redisOffsetReader.readValue<RedisOffsetRangeSet>(value)
+                .partitions
+                .fold(OffsetRangeSet(), { set, (topic, partition, ranges) ->
+                    set.apply { addAll(TopicPartition(topic, partition), ranges) }
+                })
+    }
+
     override fun writer(
             path: Path,
             startSet: OffsetRangeSet?
-    ): OffsetPersistenceFactory.Writer = RedisWriter(path, startSet)
+    ): OffsetPersistenceFactory.Writer = if (binary) {
+        BinaryRedisWriter(path, startSet)
+    } else RedisWriter(path, startSet)
 
-    private inner class RedisWriter(
-            private val path: Path,
+    private class VersionedOffsets(
+            val offsets: OffsetRangeSet,
+            val version: Long,
+    )
+
+    /**
+     * Writer that keeps track of the version of the offsets in Redis. On close, its offsets are
+     * cached if that version is known.
+     */
+    private abstract inner class VersionedRedisWriter(
+            protected val path: Path,
             startSet: OffsetRangeSet?
-    ) : PostponedWriter("offsets", 1, TimeUnit.SECONDS),
+    ) : PostponedWriter("offsets", flushScheduler),
             OffsetPersistenceFactory.Writer {
-        override val offsets: OffsetRangeSet = startSet ?: OffsetRangeSet()
+        final override val offsets: OffsetRangeSet = startSet ?: OffsetRangeSet()
+        protected val versionKey = path.toVersionKey()
 
+        /** Version of the offsets in Redis, or null if it is not known to match [offsets]. */
+        @Volatile
+        protected var version: Long? = readVersions.remove(path)
+                ?.takeIf { startSet != null && it.offsets === startSet }
+                ?.version
+
+        @Throws(IOException::class)
+        override fun close() {
+            super.close()
+            version?.let { cache[path] = VersionedOffsets(offsets, it) }
+        }
+    }
+
+    private inner class RedisWriter(
+            path: Path,
+            startSet: OffsetRangeSet?
+    ) : VersionedRedisWriter(path, startSet) {
         override fun doWrite(): Unit = time("accounting.offsets") {
             try {
                 val offsets = RedisOffsetRangeSet(offsets.map { topicPartition, offsetIntervals ->
@@ -73,11 +218,77 @@ class OffsetRedisPersistence(
                             offsetIntervals.toList())
                 })
 
+                val value = redisOffsetWriter.writeValueAsString(offsets)
+                version = redisHolder.execute { redis ->
+                    val transaction = redis.multi()
+                    transaction.set(path.toString(), value)
+                    // remove binary offsets after switching back to JSON
+                    transaction.del(path.toHashKey())
+                    val newVersion = transaction.incr(versionKey)
+                    transaction.exec()
+                    newVersion.get()
+                }
+            } catch (e: IOException) {
+                logger.error("Failed to write offsets to Redis: {}", e.toString())
+                version = null
+            }
+        }
+    }
+
+    /**
+     * Writes offsets to a Redis hash. Each partition is encoded on every write, but only
+     * partitions of which the encoding changed since the last write are sent to Redis.
+     */
+    private inner class BinaryRedisWriter(
+            path: Path,
+            startSet: OffsetRangeSet?
+    ) : VersionedRedisWriter(path, startSet) {
+        private val hashKey = path.toHashKey()
+        /** Last written encoding per field, or null if it is not known what is stored. */
+        private var written: MutableMap<String, ByteArray>? = null
+
+        override fun doWrite(): Unit = time("accounting.offsets") {
+            try {
+                val encoded = offsets.map { topicPartition, offsetIntervals ->
+                    Pair(topicPartition.toFieldName(), offsetIntervals.toBytes())
+                }.toMap()
+
                 redisHolder.execute { redis ->
-                    redis.set(path.toString(), redisOffsetWriter.writeValueAsString(offsets))
+                    val previous = written
+                            ?: redis.hkeys(hashKey)
+                                    .map { String(it, UTF_8) }
+                                    .filter { it != VERSION_FIELD }
+                                    .associateWithTo(HashMap()) { ByteArray(0) }
+
+                    val changed = encoded.filter { (field, value) ->
+                        !value.contentEquals(previous[field])
+                    }
+                    val removed = previous.keys.filter { it !in encoded }
+
+                    if (written != null && version != null && changed.isEmpty() && removed.isEmpty()) {
+                        return@execute
+                    }
+
+                    val transaction = redis.multi()
+                    transaction.hset(hashKey, changed.entries.associateTo(HashMap()) { (field, value) ->
+                        Pair(field.toByteArray(UTF_8), value)
+                    }.apply { put(VERSION_FIELD_BYTES, BINARY_VERSION) })
+                    if (removed.isNotEmpty()) {
+                        transaction.hdel(hashKey, *removed.map { it.toByteArray(UTF_8) }.toTypedArray())
+                    }
+                    // remove legacy offsets after migrating
+                    transaction.del(path.toString())
+                    val newVersion = transaction.incr(versionKey)
+                    transaction.exec()
+                    version = newVersion.get()
+
+                    previous.keys.removeAll(removed)
+                    previous.putAll(changed)
+                    written = previous
                 }
             } catch (e: IOException) {
                 logger.error("Failed to write offsets to Redis: {}", e.toString())
+                version = null
             }
         }
     }
@@ -91,6 +302,22 @@ class OffsetRedisPersistence(
                 val partition: Int,
                 val ranges: List<OffsetRangeSet.Range>)
 
+        private const val VERSION_FIELD = "version"
+        private val VERSION_FIELD_BYTES = VERSION_FIELD.toByteArray(UTF_8)
+        private val BINARY_VERSION = "1".toByteArray(UTF_8)
+
+        private fun Path.toVersionKey(): String = "$this/version"
+
+        private fun Path.toHashKey(): ByteArray = "$this/partitions".toByteArray(UTF_8)
+
+        private fun TopicPartition.toFieldName(): String = "$topic+$partition"
+
+        private fun String.toTopicPartition(): TopicPartition {
+            val separator = lastIndexOf('+')
+            require(separator > 0) { "Invalid topic partition field $this" }
+            return TopicPartition(substring(0, separator), substring(separator + 1).toInt())
+        }
+
         private val logger = LoggerFactory.getLogger(OffsetRedisPersistence::class.java)
         private val mapper = jacksonObjectMapper().apply {
             registerModule(JavaTimeModule())
@@ -2,44 +2,158 @@ package org.radarbase.output.accounting
 
 import org.slf4j.LoggerFactory
 import redis.clients.jedis.params.SetParams
+import java.io.IOException
 import java.time.Duration
 import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.TimeUnit
 
+/**
+ * Manages locks in Redis. Locks are acquired with a short [lease], which is renewed by a
+ * heartbeat while the lock is held. If this process stops without releasing a lock, other
+ * processes can acquire it as soon as its lease expires. If a lease cannot be renewed in time,
+ * the lock is no longer [RemoteLockManager.RemoteLock.isActive]. The heartbeat stops when the
+ * manager is closed.
+ */
 class RedisRemoteLockManager(
         private val redisHolder: RedisHolder,
-        private val keyPrefix: String
+        private val keyPrefix: String,
+        private val lease: Duration = Duration.ofSeconds(60),
 ) : RemoteLockManager {
     private val uuid: String = UUID.randomUUID().toString()
+    private val leaseMillis = lease.toMillis()
+    private val setParams = SetParams()
+            .nx() // only set if not already set
+            .px(leaseMillis)
+    private val activeLocks: MutableSet<RemoteLock> = ConcurrentHashMap.newKeySet()
+    private val renewFuture: ScheduledFuture<*>
 
     init {
+        require(leaseMillis >= MIN_LEASE_MILLIS) { "Lock lease must be at least $MIN_LEASE_MILLIS milliseconds" }
         logger.info("Managing locks as ID {}", uuid)
+        val renewInterval = leaseMillis / 3
+        renewFuture = heartbeat.scheduleWithFixedDelay(::renewLocks, renewInterval, renewInterval, TimeUnit.MILLISECONDS)
     }
 
     override fun acquireLock(name: String): RemoteLockManager.RemoteLock? {
         val lockKey = "$keyPrefix/$name.lock"
+        val acquireTime = System.nanoTime()
         return redisHolder.execute { redis ->
             redis.set(lockKey, uuid, setParams)?.let {
-                RemoteLock(lockKey)
+                RemoteLock(lockKey, acquireTime)
             }
         }
     }
 
+    override fun acquireLocks(names: Collection<String>): Map<String, RemoteLockManager.RemoteLock> {
+        if (names.isEmpty()) {
+            return emptyMap()
+        }
+        val lockKeys = names.map { Pair(it, "$keyPrefix/$it.lock") }
+        val acquireTime = System.nanoTime()
+        return redisHolder.execute { redis ->
+            val pipeline = redis.pipelined()
+            val responses = lockKeys.map { (_, lockKey) -> pipeline.set(lockKey, uuid, setParams) }
+            pipeline.sync()
+            lockKeys
+                    .filterIndexed { i, _ -> responses[i].get() != null }
+                    .associate { (name, lockKey) -> Pair(name, RemoteLock(lockKey, acquireTime)) }
+        }
+    }
+
+    override fun close() {
+        renewFuture.cancel(false)
+        if (activeLocks.isNotEmpty()) {
+            logger.warn("Stopped renewing {} locks that are still held", activeLocks.size)
+        }
+    }
+
+    /** Extend the lease of all active locks in a single round trip. */
+    private fun renewLocks() {
+        if (activeLocks.isEmpty()) {
+            return
+        }
+        val locks = activeLocks.toList()
+        val renewTime = System.nanoTime()
+        try {
+            val results = redisHolder.execute { redis ->
+                val pipeline = redis.pipelined()
+                val responses = locks.map { lock ->
+                    pipeline.eval(RENEW_SCRIPT, listOf(lock.lockKey), listOf(uuid, leaseMillis.toString()))
+                }
+                pipeline.sync()
+                responses.map { it.get() }
+            }
+            locks.forEachIndexed { i, lock ->
+                if (results[i] == 1L) {
+                    lock.renewedAt = renewTime
+                } else {
+                    lock.lose()
+                }
+            }
+        } catch (ex: IOException) {
+            logger.warn("Failed to renew locks: {}", ex.toString())
+        } catch (ex: Exception) {
+            logger.error("Failed to renew locks", ex)
+        }
+    }
+
     private inner class RemoteLock(
-            private val lockKey: String
+            val lockKey: String,
+            acquireTime: Long,
     ) : RemoteLockManager.RemoteLock {
+        /** Time that the lease was last renewed, in nanoseconds. */
+        @Volatile
+        var renewedAt: Long = acquireTime
+        @Volatile
+        private var isLost = false
+
+        init {
+            activeLocks.add(this)
+        }
+
+        override val isActive: Boolean
+            get() = !isLost && System.nanoTime() - renewedAt < lease.toNanos()
+
+        fun lose() {
+            if (!isLost) {
+                isLost = true
+                activeLocks.remove(this)
+                logger.warn("Lost lock {}", lockKey)
+            }
+        }
+
         override fun close() {
-            return redisHolder.execute { redis ->
-                if (redis.get(lockKey) == uuid) {
-                    redis.del(lockKey)
-                }
+            activeLocks.remove(this)
+            redisHolder.execute { redis ->
+                // only remove the lock if it is still held by this manager
+                redis.eval(RELEASE_SCRIPT, listOf(lockKey), listOf(uuid))
             }
         }
     }
 
     companion object {
         private val logger = LoggerFactory.getLogger(RedisRemoteLockManager::class.java)
-        private val setParams = SetParams()
-                .nx() // only set if not already set
-                .px(Duration.ofDays(1).toMillis()) // limit the duration of a lock to 24 hours
+        private const val MIN_LEASE_MILLIS = 300L
+
+        private val heartbeat = Executors.newSingleThreadScheduledExecutor { r ->
+            Thread(r, "lock-heartbeat").apply { isDaemon = true }
+        }
+
+        private const val RENEW_SCRIPT = """
+            if redis.call('get', KEYS[1]) == ARGV[1] then
+                return redis.call('pexpire', KEYS[1], ARGV[2])
+            else
+                return 0
+            end"""
+
+        private const val RELEASE_SCRIPT = """
+            if redis.call('get', KEYS[1]) == ARGV[1] then
+                return redis.call('del', KEYS[1])
+            else
+                return 0
+            end"""
     }
 }
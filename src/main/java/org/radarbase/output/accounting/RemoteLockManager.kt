@@ -2,11 +2,31 @@ package org.radarbase.output.accounting
 
 import java.io.Closeable
 
-interface RemoteLockManager {
+interface RemoteLockManager : Closeable {
     fun acquireLock(name: String): RemoteLock?
-    fun <T> tryRunLocked(name: String, action: () -> T): T? = acquireLock(name)?.use {
-        action()
+
+    /**
+     * Try to acquire the locks of all given names. Implementations may do this in a single
+     * round trip.
+     * @return acquired locks by name. Names that are locked elsewhere are omitted.
+     */
+    fun acquireLocks(names: Collection<String>): Map<String, RemoteLock> = names
+            .mapNotNull { name -> acquireLock(name)?.let { Pair(name, it) } }
+            .toMap()
+
+    fun <T> tryRunLocked(name: String, action: RemoteLock.() -> T): T? = acquireLock(name)?.use {
+        it.action()
     }
 
-    interface RemoteLock: Closeable
+    /** Stop managing locks. Locks that are still held are no longer kept alive. */
+    override fun close() = Unit
+
+    interface RemoteLock: Closeable {
+        /**
+         * Whether the lock is still held. Long-running actions should check this regularly,
+         * and stop if the lock was lost.
+         */
+        val isActive: Boolean
+            get() = true
+    }
 }
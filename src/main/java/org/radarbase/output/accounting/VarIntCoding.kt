@@ -0,0 +1,66 @@
+package org.radarbase.output.accounting
+
+import java.io.ByteArrayOutputStream
+import java.nio.ByteBuffer
+import java.nio.charset.StandardCharsets.UTF_8
+
+/*
+ * Variable length integer encoding for binary offset storage. Each byte stores seven bits of
+ * the value, least significant first, with the highest bit set if more bytes follow. Signed
+ * values are zigzag encoded first, so that small negative values also take few bytes.
+ */
+
+internal fun zigZag(value: Long): Long = (value shl 1) xor (value shr 63)
+
+internal fun unZigZag(value: Long): Long = (value ushr 1) xor -(value and 1)
+
+internal fun ByteArrayOutputStream.writeVarLong(value: Long) {
+    var remaining = value
+    while (remaining and 0x7FL.inv() != 0L) {
+        write(((remaining and 0x7F) or 0x80).toInt())
+        remaining = remaining ushr 7
+    }
+    write(remaining.toInt())
+}
+
+/** Write a length-prefixed UTF-8 string. */
+internal fun ByteArrayOutputStream.writeString(value: String) {
+    val bytes = value.toByteArray(UTF_8)
+    writeVarLong(bytes.size.toLong())
+    write(bytes)
+}
+
+/** Write a length-prefixed byte array. */
+internal fun ByteArrayOutputStream.writeByteArray(bytes: ByteArray) {
+    writeVarLong(bytes.size.toLong())
+    write(bytes)
+}
+
+/**
+ * Read a variable length integer.
+ * @throws java.nio.BufferUnderflowException if the buffer ends before the integer does.
+ * @throws IllegalArgumentException if the integer is too long.
+ */
+internal fun ByteBuffer.readVarLong(): Long {
+    var result = 0L
+    var shift = 0
+    while (shift < 64) {
+        val b = get().toInt()
+        result = result or ((b and 0x7F).toLong() shl shift)
+        if (b and 0x80 == 0) {
+            return result
+        }
+        shift += 7
+    }
+    throw IllegalArgumentException("Variable length integer is too long")
+}
+
+/** Read a length-prefixed byte array. */
+internal fun ByteBuffer.readByteArray(): ByteArray {
+    val length = readVarLong()
+    require(length >= 0 && length <= remaining()) { "Invalid length $length" }
+    return ByteArray(length.toInt()).also { get(it) }
+}
+
+/** Read a length-prefixed UTF-8 string. */
+internal fun ByteBuffer.readString(): String = String(readByteArray(), UTF_8)
@@ -0,0 +1,105 @@
+package org.radarbase.output.cleaner
+
+import org.radarbase.output.accounting.*
+import java.io.ByteArrayOutputStream
+import java.nio.BufferUnderflowException
+import java.nio.ByteBuffer
+import java.nio.file.Path
+import java.nio.file.Paths
+
+/**
+ * Record of the target files that all records of a source file were written to, with the number
+ * of records per target file and the size and rewrite count of each target file once they were
+ * committed. Only complete source files, of which all records were written and committed, get a
+ * manifest.
+ */
+data class ExtractionManifest(
+        /** First offset of the source file. */
+        val from: Long,
+        /** Last offset of the source file. */
+        val to: Long,
+        /** Targets that records were written to. */
+        val targets: Map<Path, Target>,
+) {
+    /** Target file of a source file. */
+    data class Target(
+            /** Number of records written to the target file. */
+            val count: Long,
+            /**
+             * Size of the target file after the records were committed. Target files only grow,
+             * unless they were replaced, so a smaller target file may no longer contain them.
+             */
+            val size: Long = 0L,
+            /**
+             * Number of times the target file had been rewritten after the records were
+             * committed, see [ExtractionManifestStore.markRewritten]. A target that was rewritten
+             * since may have grown past [size] without containing the records.
+             */
+            val rewrites: Long = 0L,
+    )
+
+    fun toBytes(): ByteArray {
+        val out = ByteArrayOutputStream()
+        out.writeVarLong(VERSION)
+        out.writeVarLong(from)
+        out.writeVarLong(to - from)
+        out.writeVarLong(targets.size.toLong())
+        targets.forEach { (path, target) ->
+            out.writeString(path.toString())
+            out.writeVarLong(target.count)
+            out.writeVarLong(target.size)
+            out.writeVarLong(target.rewrites)
+        }
+        return out.toByteArray()
+    }
+
+    /**
+     * Collects the targets of a single source file. Target sizes and rewrite counts are not
+     * known until the records are committed, so they are left at zero. This class is not
+     * thread-safe.
+     */
+    class Builder(private val from: Long) {
+        private val counts = HashMap<Path, Long>()
+        /** Number of records that were added. */
+        var count = 0L
+            private set
+
+        fun add(target: Path) {
+            counts.merge(target, 1L, Long::plus)
+            count++
+        }
+
+        fun build(): ExtractionManifest = ExtractionManifest(
+                from, from + count - 1, counts.mapValues { (_, count) -> Target(count) })
+    }
+
+    companion object {
+        private const val VERSION = 2L
+        /** Version without target rewrite counts. */
+        private const val VERSION_WITHOUT_REWRITES = 1L
+
+        /** Parse a manifest, throwing an [IllegalArgumentException] if it cannot be read. */
+        fun fromBytes(bytes: ByteArray): ExtractionManifest {
+            val input = ByteBuffer.wrap(bytes)
+            try {
+                val version = input.readVarLong()
+                require(version == VERSION || version == VERSION_WITHOUT_REWRITES) { "Unknown manifest version $version" }
+                val from = input.readVarLong()
+                val to = from + input.readVarLong()
+                val numTargets = input.readVarLong()
+                require(numTargets >= 0 && numTargets <= input.remaining()) { "Invalid number of targets $numTargets" }
+                val targets = HashMap<Path, Target>()
+                repeat(numTargets.toInt()) {
+                    val path = Paths.get(input.readString())
+                    targets[path] = Target(
+                            count = input.readVarLong(),
+                            size = input.readVarLong(),
+                            rewrites = if (version == VERSION) input.readVarLong() else 0L)
+                }
+                return ExtractionManifest(from, to, targets)
+            } catch (ex: BufferUnderflowException) {
+                throw IllegalArgumentException("Manifest is truncated", ex)
+            }
+        }
+    }
+}
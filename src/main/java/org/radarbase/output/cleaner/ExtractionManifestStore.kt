@@ -0,0 +1,73 @@
+package org.radarbase.output.cleaner
+
+import org.radarbase.output.accounting.Accountant
+import org.radarbase.output.accounting.RedisHolder
+import java.io.IOException
+import java.nio.charset.StandardCharsets.UTF_8
+import java.nio.file.Path
+import java.nio.file.Paths
+
+/**
+ * Stores [ExtractionManifest] entries in Redis, in a hash per topic next to its offsets. Hash
+ * fields are the source file paths. A second hash per topic counts how often each target file
+ * was rewritten in a way that may have removed records.
+ */
+class ExtractionManifestStore(private val redisHolder: RedisHolder) {
+    /** Store manifests of given source files of a topic. */
+    @Throws(IOException::class)
+    fun write(topic: String, manifests: Map<Path, ExtractionManifest>) {
+        if (manifests.isEmpty()) {
+            return
+        }
+        redisHolder.execute { redis ->
+            redis.hset(topic.toManifestKey(), manifests.entries.associate { (path, manifest) ->
+                Pair(path.toString().toByteArray(UTF_8), manifest.toBytes())
+            })
+        }
+    }
+
+    /**
+     * Read the manifest of given source file of a topic.
+     * @return manifest or null if none was stored.
+     * @throws IllegalArgumentException if the stored manifest cannot be parsed.
+     */
+    @Throws(IOException::class)
+    fun read(topic: String, path: Path): ExtractionManifest? = redisHolder.execute { redis ->
+        redis.hget(topic.toManifestKey(), path.toString().toByteArray(UTF_8))
+    }?.let { ExtractionManifest.fromBytes(it) }
+
+    /** Remove manifests of given source files of a topic. */
+    @Throws(IOException::class)
+    fun remove(topic: String, paths: Collection<Path>) {
+        if (paths.isEmpty()) {
+            return
+        }
+        redisHolder.execute { redis ->
+            redis.hdel(topic.toManifestKey(), *paths.map { it.toString().toByteArray(UTF_8) }.toTypedArray())
+        }
+    }
+
+    /**
+     * Record that given target file of a topic was rewritten, and may no longer contain all
+     * records that it contained before. Manifests written before then no longer apply to it.
+     */
+    @Throws(IOException::class)
+    fun markRewritten(topic: String, target: Path) {
+        redisHolder.execute { redis ->
+            redis.hincrBy(topic.toRewritesKey(), target.toString().toByteArray(UTF_8), 1L)
+        }
+    }
+
+    /** Number of times that target files of a topic were rewritten. Absent targets never were. */
+    @Throws(IOException::class)
+    fun rewrites(topic: String): Map<Path, Long> = redisHolder.execute { redis ->
+        redis.hgetAll(topic.toRewritesKey())
+    }.entries.associate { (target, count) ->
+        Pair(Paths.get(String(target, UTF_8)), String(count, UTF_8).toLong())
+    }
+
+    companion object {
+        private fun String.toManifestKey(): ByteArray = "${Accountant.offsetsKey(this)}/manifests".toByteArray(UTF_8)
+        private fun String.toRewritesKey(): ByteArray = "${Accountant.offsetsKey(this)}/rewrites".toByteArray(UTF_8)
+    }
+}
@@ -0,0 +1,78 @@
+package org.radarbase.output.cleaner
+
+import org.radarbase.output.source.TopicFile
+import org.radarbase.output.target.TargetStorage
+import org.slf4j.LoggerFactory
+import java.io.IOException
+import java.nio.file.Path
+import java.util.concurrent.ThreadLocalRandom
+
+/**
+ * Checks extraction of a source file using its [ExtractionManifest]. A file with a manifest is
+ * extracted if all its target files still exist, were not rewritten since, and are at least as
+ * large as when the manifest was written. A target file that was rewritten or is smaller may
+ * have been replaced, for example after it was found to be corrupt, so then the file is checked
+ * with the [fallback] check. Files without a valid manifest are also checked with the
+ * [fallback] check. A fraction [verifyRate] of files with a manifest is additionally verified
+ * with the [fallback] check. This class is not thread-safe.
+ */
+class ManifestExtractionCheck(
+        private val manifestStore: ExtractionManifestStore,
+        private val targetStorage: TargetStorage,
+        private val fallback: ExtractionCheck,
+        private val verifyRate: Double = 0.0,
+) : ExtractionCheck {
+    /** Target rewrite counts per topic, or null if they could not be read. */
+    private val rewrites = HashMap<String, Map<Path, Long>?>()
+
+    override fun isExtracted(file: TopicFile): Boolean {
+        val manifest = readManifest(file)
+        val range = file.range.range
+        if (manifest == null || manifest.from != range.from || (range.to != null && manifest.to != range.to)) {
+            return fallback.isExtracted(file)
+        }
+        val targetRewrites = rewrites.getOrPut(file.topic) { readRewrites(file.topic) }
+                ?: return fallback.isExtracted(file)
+
+        manifest.targets.forEach { (target, info) ->
+            val status = targetStorage.status(target)
+            if (status == null || status.size == 0L) {
+                logger.warn("Target {} of {} no longer exists.", target, file.path)
+                return false
+            }
+            if (status.size < info.size || (targetRewrites[target] ?: 0L) != info.rewrites) {
+                logger.info("Target {} of {} was replaced, checking its records.", target, file.path)
+                return fallback.isExtracted(file)
+            }
+        }
+
+        return if (verifyRate > 0.0 && ThreadLocalRandom.current().nextDouble() < verifyRate) {
+            fallback.isExtracted(file)
+        } else true
+    }
+
+    private fun readRewrites(topic: String): Map<Path, Long>? = try {
+        manifestStore.rewrites(topic)
+    } catch (ex: IOException) {
+        logger.warn("Failed to read target rewrites of topic {}: {}", topic, ex.toString())
+        null
+    }
+
+    private fun readManifest(file: TopicFile): ExtractionManifest? = try {
+        manifestStore.read(file.topic, file.path)
+    } catch (ex: IOException) {
+        logger.warn("Failed to read manifest of {}: {}", file.path, ex.toString())
+        null
+    } catch (ex: IllegalArgumentException) {
+        logger.warn("Failed to parse manifest of {}: {}", file.path, ex.toString())
+        null
+    }
+
+    override fun close() {
+        fallback.close()
+    }
+
+    companion object {
+        private val logger = LoggerFactory.getLogger(ManifestExtractionCheck::class.java)
+    }
+}
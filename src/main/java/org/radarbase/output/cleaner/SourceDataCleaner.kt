@@ -2,7 +2,11 @@ package org.radarbase.output.cleaner
 
 import org.radarbase.output.FileStoreFactory
 import org.radarbase.output.accounting.Accountant
+import org.radarbase.output.accounting.RemoteLockManager
+import org.radarbase.output.accounting.TopicPartition
+import org.radarbase.output.source.TopicFile
 import org.radarbase.output.util.Timer
+import org.radarbase.output.worker.TopicBatchProcessor
 import org.slf4j.LoggerFactory
 import java.io.Closeable
 import java.io.IOException
@@ -17,7 +21,6 @@ class SourceDataCleaner(
         private val fileStoreFactory: FileStoreFactory
 ) : Closeable {
     private val isClosed = AtomicBoolean(false)
-    private val lockManager = fileStoreFactory.remoteLockManager
     private val sourceStorage = fileStoreFactory.sourceStorage
     private val excludeTopics: Set<String> = fileStoreFactory.config.topics
             .mapNotNullTo(HashSet()) { (topic, conf) ->
@@ -26,6 +29,13 @@ class SourceDataCleaner(
     private val maxFilesPerTopic: Int = fileStoreFactory.config.worker.maxFilesPerTopic ?: Int.MAX_VALUE
     private val deleteThreshold: Instant? = Instant.now()
             .minus(fileStoreFactory.config.cleaner.age.toLong(), ChronoUnit.DAYS)
+    private val compactOffsets: Boolean = fileStoreFactory.config.cleaner.compactOffsets
+    private val topicProcessor = TopicBatchProcessor(
+            fileStoreFactory, fileStoreFactory.config.worker.topicBatchSize, isClosed)
+    private val manifestStore: ExtractionManifestStore? = if (fileStoreFactory.config.cleaner.manifests) {
+        ExtractionManifestStore(fileStoreFactory.redisHolder)
+    } else null
+    private val manifestVerifyRate: Double = fileStoreFactory.config.cleaner.manifestVerifyRate
 
     val deletedFileCount = LongAdder()
 
@@ -38,49 +48,53 @@ class SourceDataCleaner(
 
         logger.info("{} topics found", paths.size)
 
-        paths.parallelStream()
-                .forEach { p ->
-                    try {
-                        val deleteCount = mapTopic(p)
-                        if (deleteCount > 0) {
-                            logger.info("Removed {} files in topic {}", deleteCount, p.fileName)
-                            deletedFileCount.add(deleteCount)
-                        }
-                    } catch (ex: Exception) {
-                        logger.warn("Failed to map topic", ex)
-                    }
-                }
+        topicProcessor.process(paths) { topic, topicPath, lock ->
+            val deleteCount = mapTopic(topic, topicPath, lock)
+            if (deleteCount > 0) {
+                logger.info("Removed {} files in topic {}", deleteCount, topic)
+                deletedFileCount.add(deleteCount)
+            }
+        }
     }
 
-    private fun mapTopic(topicPath: Path): Long {
+    private fun mapTopic(topic: String, topicPath: Path, lock: RemoteLockManager.RemoteLock): Long {
         if (isClosed.get()) {
             return 0L
         }
 
-        val topic = topicPath.fileName.toString()
-
         return try {
-            lockManager.tryRunLocked(topic) {
-                Accountant(fileStoreFactory, topic).use { accountant ->
-                    TimestampExtractionCheck(sourceStorage, fileStoreFactory).use { extractionCheck ->
-                        deleteOldFiles(accountant, extractionCheck, topic, topicPath).toLong()
-                    }
+            Accountant(fileStoreFactory, topic).use { accountant ->
+                createExtractionCheck().use { extractionCheck ->
+                    deleteOldFiles(accountant, extractionCheck, topic, topicPath, lock).toLong()
                 }
             }
         } catch (ex: IOException) {
             logger.error("Failed to map files of topic {}", topic, ex)
             0L
-        } ?: 0L
+        }
+    }
+
+    private fun createExtractionCheck(): ExtractionCheck {
+        val timestampCheck = TimestampExtractionCheck(sourceStorage, fileStoreFactory)
+        return if (manifestStore != null) {
+            ManifestExtractionCheck(manifestStore, fileStoreFactory.targetStorage, timestampCheck, manifestVerifyRate)
+        } else timestampCheck
     }
 
     private fun deleteOldFiles(
             accountant: Accountant,
             extractionCheck: ExtractionCheck,
             topic: String,
-            topicPath: Path
+            topicPath: Path,
+            lock: RemoteLockManager.RemoteLock,
     ): Int {
         val offsets = accountant.offsets.copyForTopic(topic)
-        return sourceStorage.walker.walkRecords(topic, topicPath)
+        val records = sourceStorage.walker.walkRecords(topic, topicPath)
+        // Compacting needs all files of the topic, so only then are they all listed up front.
+        val files = if (compactOffsets) records.toList() else null
+        val deletedPaths = HashSet<Path>()
+
+        val deleteCount = (files?.asSequence() ?: records)
                 .filter { f ->
                     f.lastModified.isBefore(deleteThreshold) &&
                             // ensure that there is a file with a larger offset also
@@ -91,13 +105,14 @@ class SourceDataCleaner(
                                     })
                 }
                 .take(maxFilesPerTopic)
-                .takeWhile { !isClosed.get() }
+                .takeWhile { !isClosed.get() && lock.isActive }
                 .count { file ->
                     if (extractionCheck.isExtracted(file)) {
                         logger.info("Removing {}", file.path)
                         Timer.time("cleaner.delete") {
                             sourceStorage.delete(file.path)
                         }
+                        deletedPaths.add(file.path)
                         true
                     } else {
                         logger.warn("Source file was not completely extracted: {}", file.path)
@@ -106,6 +121,33 @@ class SourceDataCleaner(
                         false
                     }
                 }
+
+        if (manifestStore != null) {
+            try {
+                manifestStore.remove(topic, deletedPaths)
+            } catch (ex: IOException) {
+                logger.warn("Failed to remove manifests of deleted files in topic {}: {}", topic, ex.toString())
+            }
+        }
+
+        if (files != null && !isClosed.get() && lock.isActive) {
+            compactOffsets(accountant, files.filter { it.path !in deletedPaths })
+        }
+        return deleteCount
+    }
+
+    /**
+     * Compact the offsets of a topic, using the smallest offset of each partition with
+     * remaining source files as its low watermark. This is only called after all files of the
+     * topic were listed without errors, so each watermark is based on a complete listing of
+     * its partition. Partitions without remaining files keep all their offsets.
+     */
+    private fun compactOffsets(accountant: Accountant, remainingFiles: List<TopicFile>) {
+        val watermarks = HashMap<TopicPartition, Long>()
+        remainingFiles.forEach { f ->
+            watermarks.merge(f.range.topicPartition, f.range.range.from, ::minOf)
+        }
+        accountant.compact(watermarks)
     }
 
     private fun topicPaths(path: Path): List<Path> = sourceStorage.walker.walkTopics(path, excludeTopics)
@@ -1,13 +1,30 @@
 package org.radarbase.output.cleaner
 
+import org.apache.avro.Schema
 import org.apache.avro.generic.GenericRecord
 import org.radarbase.output.FileStoreFactory
 import org.radarbase.output.source.SourceStorage
 import org.radarbase.output.source.TopicFile
+import org.radarbase.output.util.SchemaProjection
+import org.radarbase.output.util.TimeUtil
+import org.radarbase.output.util.Timer.time
 import org.radarbase.output.worker.RestructureWorker
 import org.slf4j.LoggerFactory
 import java.io.IOException
+import java.nio.file.Path
+import java.util.concurrent.ThreadLocalRandom
 
+/**
+ * Checks that all records of a source file are contained in their target files. If a
+ * [sampleRate][org.radarbase.output.config.CleanerConfig.sampleRate] or
+ * [samplesPerTarget][org.radarbase.output.config.CleanerConfig.samplesPerTarget] is configured,
+ * only a sample of records is checked first, and all records are only checked if any of the
+ * sampled records is missing.
+ *
+ * Source records are read with a projected schema that only contains the key and the value
+ * fields needed to determine their target path and time. The header of the full record is then
+ * derived from the schema of the source file.
+ */
 class TimestampExtractionCheck(
         sourceStorage: SourceStorage,
         fileStoreFactory: FileStoreFactory
@@ -16,31 +33,103 @@ class TimestampExtractionCheck(
     private val reader = sourceStorage.createReader()
     private val pathFactory = fileStoreFactory.pathFactory
     private val batchSize = fileStoreFactory.config.worker.cacheOffsetsSize
+    private val sampleRate = fileStoreFactory.config.cleaner.sampleRate
+    private val samplesPerTarget = fileStoreFactory.config.cleaner.samplesPerTarget
+    private val converterFactory = fileStoreFactory.recordConverter
+
+    /** Projection of source records onto the fields needed to check them, or null to read all fields. */
+    private val projection = pathFactory.valueFields?.let { SchemaProjection(it + TimeUtil.valueTimeFields) }
+    /** Header of the full records per source schema, or null if the header depends on the record. */
+    private val schemaHeaders: MutableMap<Schema, Array<String>?> = HashMap()
+    /** Header of the full records of the current file, if it is read with a projected schema. */
+    private var recordHeader: Array<String>? = null
 
     private var cachedRecords = 0L
 
     override fun isExtracted(file: TopicFile): Boolean {
-        val result = reader.newInput(file).use { input ->
+        val result = if (sampleRate != null || samplesPerTarget != null) {
+            when (time("cleaner.sample") { checkRecords(file, RecordSampler(file.topic)) }) {
+                null -> false
+                true -> true
+                false -> {
+                    logger.info("Not all sampled records of {} were found, checking all records", file.path)
+                    checkRecords(file, null) ?: false
+                }
+            }
+        } else checkRecords(file, null) ?: false
+
+        if (cachedRecords > batchSize) {
+            cachedRecords = 0L
+            cacheStore.clear()
+        }
+        return result
+    }
+
+    /**
+     * Check whether records of given file are contained in their target files. If [sampler] is
+     * given, only the records it selects and the last record are checked.
+     * @return whether all checked records were found, or null if the file cannot be checked.
+     */
+    private fun checkRecords(file: TopicFile, sampler: RecordSampler?): Boolean? {
+        return reader.newInput(file).use { input ->
             // processing zero-length files may trigger a stall. See:
             // https://github.com/RADAR-base/Restructure-HDFS-topic/issues/3
             if (input.length() == 0L) {
                 logger.warn("File {} has zero length, skipping.", file.path)
-                return false
+                return null
             }
-            RestructureWorker.extractRecords(input) { records ->
-                records
-                        .mapIndexed { i, record ->
-                            cachedRecords += 1L
-                            containsRecord(file, file.range.range.from + i.toLong(), record)
+            recordHeader = null
+            RestructureWorker.extractRecords(input, ::projectSchema) { records ->
+                var lastRecord: GenericRecord? = null
+                var lastOffset = 0L
+                var lastChecked = false
+                records.forEachIndexed { i, record ->
+                    val offset = file.range.range.from + i.toLong()
+                    lastChecked = sampler == null || sampler.select(i, record)
+                    if (lastChecked) {
+                        cachedRecords += 1L
+                        if (!containsRecord(file, offset, record)) {
+                            return@extractRecords false
                         }
-                        .all { it }
+                    }
+                    lastRecord = record
+                    lastOffset = offset
+                }
+                // records are reused while reading, but the last record remains valid
+                val unchecked = lastRecord?.takeIf { !lastChecked }
+                unchecked == null || containsRecord(file, lastOffset, unchecked)
             }
         }
-        if (cachedRecords > batchSize) {
-            cachedRecords = 0L
-            cacheStore.clear()
+    }
+
+    /**
+     * Reader schema for the records of a file with given schema. If the target files have a
+     * header, records are only projected if the header does not depend on the record values.
+     */
+    private fun projectSchema(writerSchema: Schema): Schema? {
+        val projectedSchema = projection?.project(writerSchema) ?: return null
+        if (converterFactory.hasHeader) {
+            recordHeader = schemaHeaders.getOrPut(writerSchema) { converterFactory.headerFor(writerSchema) }
+                    ?: return null
+        }
+        return projectedSchema
+    }
+
+    /** Selects the records of a single source file to check. */
+    private inner class RecordSampler(private val topic: String) {
+        private val checkedPerTarget = HashMap<Path, Int>()
+
+        fun select(index: Int, record: GenericRecord): Boolean {
+            if (samplesPerTarget != null) {
+                val (path) = pathFactory.getRecordOrganization(topic, record, 0)
+                val checked = checkedPerTarget[path] ?: 0
+                if (checked < samplesPerTarget) {
+                    checkedPerTarget[path] = checked + 1
+                    return true
+                }
+            }
+            return index == 0 || (sampleRate != null && ThreadLocalRandom.current().nextDouble() < sampleRate)
         }
-        return result
     }
 
     override fun close() {
@@ -55,7 +144,7 @@ class TimestampExtractionCheck(
                     topicFile.topic, record, suffix)
 
             try {
-                when (cacheStore.contains(path, record)) {
+                when (cacheStore.contains(path, record, recordHeader)) {
                     TimestampFileCacheStore.FindResult.FILE_NOT_FOUND -> {
                         logger.warn("Target {} for record of {} (offset {}) has not been created yet.", path, topicFile.path, offset)
                         return false
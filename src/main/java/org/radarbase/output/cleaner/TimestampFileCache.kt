@@ -16,46 +16,76 @@
 
 package org.radarbase.output.cleaner
 
+import org.apache.avro.Schema
 import org.apache.avro.generic.GenericRecord
 import org.radarbase.output.FileStoreFactory
 import org.radarbase.output.format.RecordConverterFactory
 import org.radarbase.output.util.TimeUtil.getDate
 import org.radarbase.output.util.TimeUtil.toDouble
+import org.slf4j.LoggerFactory
 import java.io.FileNotFoundException
 import java.nio.file.Path
 
-/** Keeps path handles of a path.  */
+/**
+ * Keeps the record times of a path. If [useIndex] is set, times are read from the
+ * [TimestampIndex] of the path if it is still valid, instead of parsing the path itself.
+ */
 class TimestampFileCache(
         factory: FileStoreFactory,
         /** File that the cache is maintaining.  */
-        val path: Path
+        val path: Path,
+        useIndex: Boolean = false,
 ) : Comparable<TimestampFileCache> {
     private val converterFactory: RecordConverterFactory = factory.recordConverter
     private var lastUse: Long = 0
     private val header: Array<String>?
-    private val times: Set<Double>
+    /** Sorted record times. */
+    private val times: DoubleArray
+    /** Schema of the last record that was checked. */
+    private var lastSchema: Schema? = null
+    /**
+     * Header of all records of [lastSchema], or null if it depends on the record. Once it is
+     * known to match [header], it refers to [header] itself.
+     */
+    private var lastSchemaHeader: Array<String>? = null
+    /** Last record header given to [contains] that matched [header]. */
+    private var lastRecordHeader: Array<String>? = null
 
     init {
         val targetStorage = factory.targetStorage
-        targetStorage.status(path)
+        val status = targetStorage.status(path)
                 ?.takeIf { it.size > 0 }
                 ?: throw FileNotFoundException()
 
-        val readDates = targetStorage.newInputStream(path).use {
-            converterFactory.readTimeSeconds(it, factory.compression)
-        } ?: throw FileNotFoundException()
+        val index = if (useIndex) TimestampIndex.readValid(targetStorage, path, status.size) else null
+        if (index != null) {
+            header = index.header
+            times = index.times
+        } else {
+            if (useIndex) {
+                logger.debug("No valid timestamp index for {}, reading file", path)
+            }
+            val readDates = targetStorage.newInputStream(path).use {
+                converterFactory.readTimeSeconds(it, factory.compression)
+            } ?: throw FileNotFoundException()
 
-        header = readDates.first
-        times = readDates.second.toSet()
+            header = readDates.first
+            times = readDates.second.toDoubleArray().apply { sort() }
+        }
     }
 
-    fun contains(record: GenericRecord): Boolean {
+    /**
+     * Whether the time of given record is contained in the file. If the record was read with a
+     * projected schema, [recordHeader] should be the header of the full record.
+     * @throws IllegalArgumentException if the header of the record does not match the file.
+     */
+    fun contains(record: GenericRecord, recordHeader: Array<String>? = null): Boolean {
         if (header != null) {
-            val recordHeader = converterFactory.headerFor(record)
-            if (!recordHeader.contentEquals(header)) {
-                throw IllegalArgumentException(
-                        "Header mismatch: record header ${recordHeader.contentToString()}" +
-                                " does not match target header ${header.contentToString()}")
+            if (recordHeader == null) {
+                checkHeader(record, header)
+            } else if (recordHeader !== lastRecordHeader) {
+                matchHeader(recordHeader, header)
+                lastRecordHeader = recordHeader
             }
         }
 
@@ -63,7 +93,31 @@ class TimestampFileCache(
                 record.get("key") as? GenericRecord,
                 record.get("value") as? GenericRecord)?.toDouble()
 
-        return recordDate == null || recordDate in times
+        return recordDate == null || times.binarySearch(recordDate) >= 0
+    }
+
+    private fun checkHeader(record: GenericRecord, header: Array<String>) {
+        val schema = record.schema
+        if (schema !== lastSchema) {
+            lastSchema = schema
+            lastSchemaHeader = converterFactory.headerFor(schema)
+        }
+        val schemaHeader = lastSchemaHeader
+        if (schemaHeader === header) {
+            return
+        }
+        matchHeader(schemaHeader ?: converterFactory.headerFor(record), header)
+        if (schemaHeader != null) {
+            lastSchemaHeader = header
+        }
+    }
+
+    private fun matchHeader(recordHeader: Array<String>, header: Array<String>) {
+        if (!recordHeader.contentEquals(header)) {
+            throw IllegalArgumentException(
+                    "Header mismatch: record header ${recordHeader.contentToString()}" +
+                            " does not match target header ${header.contentToString()}")
+        }
     }
 
     /**
@@ -74,6 +128,7 @@ class TimestampFileCache(
     override fun compareTo(other: TimestampFileCache): Int = comparator.compare(this, other)
 
     companion object {
+        private val logger = LoggerFactory.getLogger(TimestampFileCache::class.java)
         val comparator = compareBy(TimestampFileCache::lastUse, TimestampFileCache::path)
     }
 }
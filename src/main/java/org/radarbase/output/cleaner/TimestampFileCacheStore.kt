@@ -33,12 +33,14 @@ class TimestampFileCacheStore(private val factory: FileStoreFactory) {
     private val caches: MutableMap<Path, TimestampFileCache>
     private val maxCacheSize: Int
     private val schemasAdded: MutableMap<Path, Path>
+    private val useTimestampIndex: Boolean
 
     init {
         val config = factory.config
         this.maxCacheSize = config.worker.cacheSize
         this.caches = HashMap(maxCacheSize * 4 / 3 + 1)
         this.schemasAdded = HashMap()
+        this.useTimestampIndex = config.cleaner.timestampIndex
     }
 
     /**
@@ -47,21 +49,22 @@ class TimestampFileCacheStore(private val factory: FileStoreFactory) {
      *
      * @param path file to append data to
      * @param record data
+     * @param recordHeader header of the full record, if it was read with a projected schema
      * @return Integer value according to one of the response codes.
      * @throws IOException when failing to open a file or writing to it.
      */
     @Throws(IOException::class)
-    fun contains(path: Path, record: GenericRecord): FindResult {
+    fun contains(path: Path, record: GenericRecord, recordHeader: Array<String>? = null): FindResult {
         return try {
             val fileCache = caches[path]
                     ?: time("cleaner.cache") {
                         ensureCapacity()
-                        TimestampFileCache(factory, path)
+                        TimestampFileCache(factory, path, useTimestampIndex)
                                 .also { caches[path] = it }
                     }
 
             time("cleaner.contains") {
-                if (fileCache.contains(record)) FindResult.FOUND else FindResult.NOT_FOUND
+                if (fileCache.contains(record, recordHeader)) FindResult.FOUND else FindResult.NOT_FOUND
             }
         } catch (ex: FileNotFoundException) {
             FindResult.FILE_NOT_FOUND
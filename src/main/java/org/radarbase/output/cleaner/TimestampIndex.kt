@@ -0,0 +1,138 @@
+package org.radarbase.output.cleaner
+
+import org.radarbase.output.target.TargetStorage
+import org.slf4j.LoggerFactory
+import java.io.*
+import java.nio.file.Files
+import java.nio.file.Path
+
+/**
+ * Index of the record times in a target file, stored in a sidecar file next to it. The index
+ * records the size of the target file it describes, so it is only valid as long as the target
+ * file was not rewritten since.
+ */
+class TimestampIndex(
+        /** Size of the target file that the index describes. */
+        val targetSize: Long,
+        /** Header of the target file, if its format has one. */
+        val header: Array<String>?,
+        /** Sorted distinct record times in seconds since the epoch. */
+        val times: DoubleArray,
+) {
+    @Throws(IOException::class)
+    fun write(output: OutputStream) {
+        DataOutputStream(BufferedOutputStream(output)).use { out ->
+            out.writeInt(MAGIC)
+            out.writeByte(VERSION)
+            out.writeLong(targetSize)
+            if (header == null) {
+                out.writeInt(-1)
+            } else {
+                out.writeInt(header.size)
+                header.forEach { out.writeUTF(it) }
+            }
+            out.writeInt(times.size)
+            times.forEach { out.writeDouble(it) }
+        }
+    }
+
+    /** Collects record times of a target file. This class is not thread-safe. */
+    class Builder {
+        private var times = DoubleArray(64)
+        private var size = 0
+
+        fun add(time: Double) {
+            if (size == times.size) {
+                times = times.copyOf(size * 2)
+            }
+            times[size++] = time
+        }
+
+        fun addAll(other: DoubleArray) {
+            if (size + other.size > times.size) {
+                times = times.copyOf(maxOf(size + other.size, times.size * 2))
+            }
+            other.copyInto(times, size)
+            size += other.size
+        }
+
+        fun build(targetSize: Long, header: Array<String>?): TimestampIndex {
+            val sorted = times.copyOf(size).apply { sort() }
+            var distinctSize = 0
+            for (i in sorted.indices) {
+                if (distinctSize == 0 || sorted[i] != sorted[distinctSize - 1]) {
+                    sorted[distinctSize++] = sorted[i]
+                }
+            }
+            return TimestampIndex(targetSize, header, sorted.copyOf(distinctSize))
+        }
+    }
+
+    companion object {
+        private val logger = LoggerFactory.getLogger(TimestampIndex::class.java)
+        private const val MAGIC = 0x52544958 // RTIX
+        private const val VERSION = 1
+
+        /** Path of the index of given target file. */
+        fun indexPath(path: Path): Path = path.resolveSibling(".${path.fileName}.times")
+
+        @Throws(IOException::class)
+        fun read(input: InputStream): TimestampIndex {
+            DataInputStream(BufferedInputStream(input)).use { inStream ->
+                if (inStream.readInt() != MAGIC) {
+                    throw IOException("Not a timestamp index")
+                }
+                val version = inStream.readByte().toInt()
+                if (version != VERSION) {
+                    throw IOException("Unknown timestamp index version $version")
+                }
+                val targetSize = inStream.readLong()
+                val numHeaders = inStream.readInt()
+                val header = if (numHeaders >= 0) {
+                    Array(numHeaders) { inStream.readUTF() }
+                } else null
+                val numTimes = inStream.readInt()
+                if (numTimes < 0) {
+                    throw IOException("Invalid number of times $numTimes")
+                }
+                val times = DoubleArray(numTimes) { inStream.readDouble() }
+                return TimestampIndex(targetSize, header, times)
+            }
+        }
+
+        /**
+         * Read the index of given target file.
+         * @return index, or null if it does not exist, cannot be read, or does not match given
+         *         target file size.
+         */
+        fun readValid(targetStorage: TargetStorage, path: Path, targetSize: Long): TimestampIndex? {
+            val indexPath = indexPath(path)
+            return try {
+                targetStorage.status(indexPath) ?: return null
+                targetStorage.newInputStream(indexPath).use { read(it) }
+                        .takeIf { it.targetSize == targetSize }
+                        .also { if (it == null) logger.debug("Timestamp index {} is outdated", indexPath) }
+            } catch (ex: IOException) {
+                logger.warn("Failed to read timestamp index {}: {}", indexPath, ex.toString())
+                null
+            }
+        }
+
+        /** Store given index for given target file. */
+        @Throws(IOException::class)
+        fun store(targetStorage: TargetStorage, path: Path, index: TimestampIndex, tmpDir: Path) {
+            val tmpPath = Files.createTempFile(tmpDir, path.fileName.toString(), ".times")
+            Files.newOutputStream(tmpPath).use { index.write(it) }
+            targetStorage.store(tmpPath, indexPath(path))
+        }
+
+        /** Remove the index of given target file, if any. */
+        @Throws(IOException::class)
+        fun delete(targetStorage: TargetStorage, path: Path) {
+            val indexPath = indexPath(path)
+            if (targetStorage.status(indexPath) != null) {
+                targetStorage.delete(indexPath)
+            }
+        }
+    }
+}
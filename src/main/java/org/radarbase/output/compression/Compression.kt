@@ -23,6 +23,14 @@ import java.io.OutputStream
 
 interface Compression : Format {
     override val extension: String
+
+    /**
+     * Whether a file in this compression can be extended by concatenating a newly compressed
+     * file to it.
+     */
+    val supportsAppend: Boolean
+        get() = false
+
     @Throws(IOException::class)
     fun compress(fileName: String, out: OutputStream): OutputStream
 
@@ -28,6 +28,9 @@ class GzipCompression : Compression {
 
     override val extension = ".gz"
 
+    /** Concatenated gzip members are read as a single stream. */
+    override val supportsAppend = true
+
     @Throws(IOException::class)
     override fun compress(fileName: String, out: OutputStream): OutputStream = GZIPOutputStream(out)
 
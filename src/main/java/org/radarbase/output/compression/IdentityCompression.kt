@@ -25,6 +25,8 @@ class IdentityCompression : Compression {
 
     override val extension = ""
 
+    override val supportsAppend = true
+
     override fun compress(fileName: String, out: OutputStream): OutputStream = out
 
     override fun decompress(`in`: InputStream): InputStream = `in`
@@ -17,11 +17,13 @@ import org.radarbase.output.format.FormatFactory
 import org.radarbase.output.format.RecordConverterFactory
 import org.radarbase.output.path.FormattedPathFactory
 import org.radarbase.output.path.RecordPathFactory
+import org.radarbase.output.util.FlushScheduler
 import org.slf4j.LoggerFactory
 import java.net.URI
 import java.nio.file.Files
 import java.nio.file.Path
 import java.nio.file.Paths
+import java.time.Duration
 
 data class RestructureConfig(
     /** Whether and how to run as a service. */
@@ -38,6 +40,8 @@ data class RestructureConfig(
     val target: ResourceConfig = ResourceConfig("local", local = LocalConfig()),
     /** Redis configuration for synchronization and storing offsets. */
     val redis: RedisConfig = RedisConfig(),
+    /** How to store offsets. */
+    val offsets: OffsetsConfig = OffsetsConfig(),
     /** Paths to use for processing. */
     val paths: PathConfig = PathConfig(),
     /** File compression to use for output files. */
@@ -51,6 +55,7 @@ data class RestructureConfig(
         target.validate()
         cleaner.validate()
         service.validate()
+        offsets.validate()
         check(worker.enable || cleaner.enable) { "Either restructuring or cleaning needs to be enabled."}
     }
 
@@ -113,11 +118,60 @@ data class RedisConfig(
      * Prefix to use for creating a lock of a topic.
      */
     val lockPrefix: String = "radar-output/lock",
+    /**
+     * Lease of a topic lock in seconds. The lease is renewed while the topic is being
+     * processed. If a process stops without releasing a lock, the topic can be processed by
+     * other processes once the lease expires.
+     */
+    val lockLease: Long = 60,
 ) {
+    init {
+        check(lockLease >= 1) { "Lock lease must be at least one second" }
+    }
+
     fun withEnv(): RedisConfig = this
         .copyEnv("REDIS_URI") { copy(uri = URI.create(it)) }
 }
 
+data class OffsetsConfig(
+    /**
+     * Where to store offsets, either `redis` or `file`. Offset files are stored in the
+     * output directory.
+     */
+    val type: String = "redis",
+    /**
+     * Whether to store offsets in a compact binary format. In Redis, offsets are then stored in
+     * a hash with a binary field per topic partition, writing only partitions that changed.
+     * Otherwise, all offsets of a topic are written as a single JSON value. Offsets stored as
+     * JSON are migrated when they are first written, and binary offsets in Redis are always read,
+     * so the format can be switched back. In files, offsets are stored as a binary snapshot with
+     * an append-only journal, migrating existing CSV offset files. Switching offset files back is
+     * not supported.
+     */
+    val binary: Boolean = false,
+    /** Number of threads that write offsets of all topics. */
+    val flushThreads: Int = 1,
+    /**
+     * Time in milliseconds to wait for further offset changes before writing offsets. Offsets
+     * of a topic that keep changing are written at least every [flushMaxLatency] milliseconds.
+     */
+    val flushDebounce: Long = 1000,
+    /** Maximum time in milliseconds between an offset change and writing it. */
+    val flushMaxLatency: Long = 1000,
+) {
+    fun validate() {
+        check(type == "redis" || type == "file") { "Offsets type must be either redis or file" }
+        check(flushThreads >= 1) { "Number of offset flush threads must be strictly positive" }
+        check(flushDebounce >= 0) { "Offset flush debounce cannot be negative" }
+        check(flushMaxLatency >= flushDebounce) { "Offset flush maximum latency cannot be smaller than its debounce" }
+    }
+
+    fun createFlushScheduler() = FlushScheduler(
+            flushThreads,
+            Duration.ofMillis(flushDebounce),
+            Duration.ofMillis(flushMaxLatency))
+}
+
 data class ServiceConfig(
     /** Whether to enable the service mode of this application. */
     val enable: Boolean,
@@ -138,10 +192,48 @@ data class CleanerConfig(
     val interval: Long = 1260L,
     /** Age in days after an avro file can be removed. Must be strictly positive. */
     val age: Int = 7,
+    /**
+     * Whether to compact the offsets of a topic after cleaning it. Offsets below the smallest
+     * remaining source offset of a partition are collapsed into a single range. Partitions
+     * without any remaining source files keep their offsets.
+     */
+    val compactOffsets: Boolean = false,
+    /**
+     * Whether to keep an index of record times next to each target file. The index is written
+     * whenever the target file is written, and lets the cleaner check whether source records
+     * were written without parsing the target file.
+     */
+    val timestampIndex: Boolean = false,
+    /**
+     * Whether to record, while restructuring, which target files the records of each source file
+     * were written to. The cleaner then only checks whether those target files still exist,
+     * did not shrink and were not rewritten by deduplication or after corruption since, instead
+     * of checking every record. Manifests are stored in Redis.
+     */
+    val manifests: Boolean = false,
+    /**
+     * Fraction of source files with a manifest that is additionally checked record by record.
+     * Must be between 0 and 1.
+     */
+    val manifestVerifyRate: Double = 0.0,
+    /**
+     * Fraction of records of a source file to check in the target files. The first and last
+     * record of a file are always checked. If any checked record is missing, all records of the
+     * file are checked. By default, all records are checked.
+     */
+    val sampleRate: Double? = null,
+    /**
+     * Number of records to check per target file of a source file, in addition to
+     * [sampleRate]. If any checked record is missing, all records of the file are checked.
+     */
+    val samplesPerTarget: Int? = null,
 ) {
     fun validate() {
         check(age > 0) { "Cleaner file age must be strictly positive" }
         check(interval > 0) { "Cleaner interval must be strictly positive" }
+        check(manifestVerifyRate in 0.0..1.0) { "Cleaner manifest verify rate must be between 0 and 1" }
+        check(sampleRate == null || sampleRate in 0.0..1.0) { "Cleaner sample rate must be between 0 and 1" }
+        check(samplesPerTarget == null || samplesPerTarget >= 1) { "Cleaner samples per target must be strictly positive" }
     }
 }
 
@@ -171,9 +263,50 @@ data class WorkerConfig(
      * appended to.
      */
     val minimumFileAge: Long = 60,
+    /**
+     * Maximum number of workers that process the partitions of a single topic in parallel.
+     * Files of a single partition are always processed in order by the same worker. Workers of
+     * the same topic never write to the same output file at the same time.
+     */
+    val partitionWorkers: Int = 1,
+    /**
+     * Number of source files to open ahead of time, while the current file is being processed.
+     * For remote source storage, this downloads files in the background. Set to 0 to disable.
+     */
+    val prefetchFiles: Int = 0,
+    /**
+     * Maximum number of bytes of source files that may be opened ahead of time per worker. This
+     * limits the disk space used in the temporary directory.
+     */
+    val prefetchBytes: Long = 1_000_000_000L,
+    /**
+     * Whether to append new records to existing output files as a separately compressed
+     * segment, instead of rewriting the whole file. This only applies to compression types that
+     * support concatenation, like gzip or no compression, and to topics without deduplication.
+     */
+    val appendMode: Boolean = false,
+    /**
+     * Number of threads that close, deduplicate and store output files in the background, so
+     * that processing can continue meanwhile. Offsets of a file are only committed after it is
+     * stored. If all threads are busy, processing threads store files themselves. Set to 0 to
+     * store files in the processing threads only.
+     */
+    val uploadThreads: Int = 0,
+    /**
+     * Number of topics to lock at once. Locks of a batch of topics are acquired and their
+     * offsets are loaded in a single round trip before the topics are processed. Larger batches
+     * reduce the number of round trips, but keep topics locked longer before they are processed.
+     * The next batch is locked while the topics of the current batch are processed.
+     */
+    val topicBatchSize: Int = 32,
 ) {
     init {
         check(cacheSize >= 1) { "Maximum files per topic must be strictly positive" }
+        check(partitionWorkers >= 1) { "Number of partition workers should be at least 1" }
+        check(prefetchFiles >= 0) { "Number of prefetched files cannot be negative" }
+        check(prefetchBytes >= 0) { "Number of prefetched bytes cannot be negative" }
+        check(uploadThreads >= 0) { "Number of upload threads cannot be negative" }
+        check(topicBatchSize >= 1) { "Topic batch size must be strictly positive" }
         maxFilesPerTopic?.let { check(it >= 1) { "Maximum files per topic must be strictly positive" } }
         check(numThreads >= 1) { "Number of threads should be at least 1" }
     }
@@ -335,7 +468,18 @@ data class S3Config(
     val bucket: String,
     /** If no endOffset is in the filename, read it from object tags. */
     val endOffsetFromTags: Boolean = false,
+    /**
+     * When reading source objects, stream them with ranged requests of this many bytes, instead
+     * of downloading them to a temporary file first. Disabled if null.
+     */
+    val readBlockSize: Int? = null,
+    /** Number of blocks of [readBlockSize] to keep in memory per opened source object. */
+    val readBlocksCached: Int = 2,
 ) {
+    init {
+        readBlockSize?.let { check(it > 0) { "S3 read block size must be strictly positive" } }
+        check(readBlocksCached > 0) { "Number of cached S3 read blocks must be strictly positive" }
+    }
 
     fun createS3Client(): MinioClient = MinioClient.Builder().apply {
         endpoint(endpoint)
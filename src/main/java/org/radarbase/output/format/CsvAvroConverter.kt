@@ -17,7 +17,6 @@
 package org.radarbase.output.format
 
 import com.opencsv.CSVReader
-import com.opencsv.CSVWriter
 import org.apache.avro.generic.GenericRecord
 import java.io.IOException
 import java.io.Reader
@@ -35,12 +34,12 @@ class CsvAvroConverter(
         recordHeader: Array<String>
 ) : RecordConverter {
 
-    private val csvWriter = CSVWriter(writer)
+    private val csvWriter = CsvLineWriter(writer)
     private val converter: CsvAvroDataConverter
 
     init {
         converter = if (writeHeader) {
-            csvWriter.writeNext(recordHeader, false)
+            csvWriter.writeLine(recordHeader)
             CsvAvroDataConverter(recordHeader)
         } else {
             CsvAvroDataConverter(CSVReader(reader).use {
@@ -58,8 +57,7 @@ class CsvAvroConverter(
     @Throws(IOException::class)
     override fun writeRecord(record: GenericRecord): Boolean {
         return try {
-            val retValues = converter.convertRecordValues(record)
-            csvWriter.writeNext(retValues.toTypedArray(), false)
+            converter.writeRecord(record, csvWriter)
             true
         } catch (ex: IllegalArgumentException) {
             false
@@ -1,7 +1,6 @@
 package org.radarbase.output.format
 
 import com.opencsv.CSVReader
-import com.opencsv.CSVWriter
 import org.apache.avro.generic.GenericRecord
 import org.radarbase.output.compression.Compression
 import org.radarbase.output.util.TimeUtil.parseDate
@@ -60,10 +59,9 @@ class CsvAvroConverterFactory: RecordConverterFactory {
             BufferedOutputStream(fileOut).use { bufOut ->
                 compression.compress(fileName, bufOut).use { zipOut ->
                     OutputStreamWriter(zipOut).use { writer ->
-                        CSVWriter(writer).use { csvWriter ->
-                            lines.forEach {
-                                csvWriter.writeNext(it, false)
-                            }
+                        val csvWriter = CsvLineWriter(writer)
+                        lines.forEach {
+                            csvWriter.writeLine(it)
                         }
                     }
                 }
@@ -4,6 +4,7 @@ import org.apache.avro.Schema
 import org.apache.avro.generic.GenericData
 import org.apache.avro.generic.GenericFixed
 import org.apache.avro.generic.GenericRecord
+import java.io.IOException
 import java.nio.ByteBuffer
 import java.util.*
 import kotlin.collections.ArrayList
@@ -12,13 +13,12 @@ internal class CsvAvroDataConverter(
         private val headers: Array<String>
 ) {
     private val values: MutableList<String> = ArrayList(this.headers.size)
+    private val plans: MutableMap<Schema, RecordPlan> = IdentityHashMap()
+    private var lastSchema: Schema? = null
+    private var lastPlan: RecordPlan = RecordPlan.Dynamic
 
     fun convertRecord(record: GenericRecord): Map<String, Any?> {
-        values.clear()
-        val schema = record.schema
-        for (field in schema.fields) {
-            convertAvro(values, record.get(field.pos()), field.schema(), field.name())
-        }
+        convertValues(record)
         val map = LinkedHashMap<String, Any>()
         for (i in headers.indices) {
             map[headers[i]] = values[i]
@@ -28,17 +28,60 @@ internal class CsvAvroDataConverter(
     }
 
     fun convertRecordValues(record: GenericRecord): List<String> {
-        values.clear()
-        val schema = record.schema
-        for (field in schema.fields) {
-            convertAvro(values, record.get(field.pos()), field.schema(), field.name())
-        }
+        convertValues(record)
         if (values.size < headers.size) {
             throw IllegalArgumentException("Values and headers do not match")
         }
         return values
     }
 
+    /**
+     * Write a record as a CSV line. For schemas with fixed columns, values are written directly
+     * without converting them to strings first.
+     * @throws IllegalArgumentException if the record does not match the headers.
+     */
+    @Throws(IOException::class)
+    fun writeRecord(record: GenericRecord, out: CsvLineWriter) {
+        when (val plan = planFor(record.schema)) {
+            is RecordPlan.Compiled -> {
+                out.startLine()
+                plan.columns.write(record, out)
+                out.endLine()
+            }
+            else -> out.writeLine(convertRecordValues(record))
+        }
+    }
+
+    private fun convertValues(record: GenericRecord) {
+        values.clear()
+        when (val plan = planFor(record.schema)) {
+            is RecordPlan.Compiled -> plan.columns.convert(record, values)
+            is RecordPlan.Mismatch -> throw IllegalArgumentException("Values and headers do not match")
+            is RecordPlan.Dynamic -> {
+                val schema = record.schema
+                for (field in schema.fields) {
+                    convertAvro(values, record.get(field.pos()), field.schema(), field.name())
+                }
+            }
+        }
+    }
+
+    /** Get a cached plan for given schema, or create a new one. */
+    private fun planFor(schema: Schema): RecordPlan {
+        if (schema !== lastSchema) {
+            lastPlan = plans.getOrPut(schema) {
+                val columns = CompiledColumns.compile(schema)
+                when {
+                    columns == null -> RecordPlan.Dynamic
+                    columns.header.contentEquals(headers) -> RecordPlan.Compiled(columns)
+                    else -> RecordPlan.Mismatch
+                }
+            }
+            lastSchema = schema
+        }
+        return lastPlan
+    }
+
     private fun convertAvro(values: MutableList<String>, data: Any?, schema: Schema, prefix: String) {
         when (schema.type) {
             Schema.Type.RECORD -> {
@@ -90,6 +133,149 @@ internal class CsvAvroDataConverter(
         require(prefix == headers[size]) { "Header $prefix does not match ${headers[size]}" }
     }
 
+    /** How to convert records of a given schema. */
+    private sealed class RecordPlan {
+        /** Columns are fixed by the schema and match the header. */
+        class Compiled(val columns: CompiledColumns) : RecordPlan()
+        /** Columns are fixed by the schema but do not match the header. */
+        object Mismatch : RecordPlan()
+        /** Columns depend on the record data, so each record is converted separately. */
+        object Dynamic : RecordPlan()
+    }
+
+    /**
+     * Flattened columns of a record schema that do not depend on the record data, i.e., the
+     * schema contains no maps, arrays or unions of complex types. Nested records are stored as
+     * nodes, where node 0 is the record itself and each other node is a field of an earlier node.
+     */
+    internal class CompiledColumns private constructor(
+            private val nodeParents: IntArray,
+            private val nodePositions: IntArray,
+            private val columnNodes: IntArray,
+            private val columnPositions: IntArray,
+            private val columnTypes: Array<Schema.Type>,
+            /** Column names. */
+            val header: Array<String>,
+    ) {
+        private val nodes = arrayOfNulls<GenericRecord>(nodeParents.size)
+
+        /** Convert a record of the compiled schema to its column values. */
+        fun convert(record: GenericRecord, values: MutableList<String>) {
+            resolveNodes(record)
+            for (i in columnTypes.indices) {
+                val data = nodes[columnNodes[i]]!!.get(columnPositions[i])
+                values.add(convertValue(data, columnTypes[i]))
+            }
+        }
+
+        /** Write a record of the compiled schema to the current line. */
+        fun write(record: GenericRecord, out: CsvLineWriter) {
+            resolveNodes(record)
+            for (i in columnTypes.indices) {
+                val data = nodes[columnNodes[i]]!!.get(columnPositions[i])
+                writeValue(out, data, columnTypes[i])
+            }
+        }
+
+        private fun resolveNodes(record: GenericRecord) {
+            nodes[0] = record
+            for (i in 1 until nodes.size) {
+                nodes[i] = nodes[nodeParents[i]]!!.get(nodePositions[i]) as GenericRecord
+            }
+        }
+
+        companion object {
+            /** Compile a record schema, or return null if its columns depend on the data. */
+            fun compile(schema: Schema): CompiledColumns? {
+                val nodeParents = mutableListOf(-1)
+                val nodePositions = mutableListOf(-1)
+                val columnNodes = mutableListOf<Int>()
+                val columnPositions = mutableListOf<Int>()
+                val columnTypes = mutableListOf<Schema.Type>()
+                val header = mutableListOf<String>()
+
+                fun compileRecord(recordSchema: Schema, node: Int, prefix: String?): Boolean {
+                    for (field in recordSchema.fields) {
+                        val name = if (prefix == null) field.name() else "$prefix.${field.name()}"
+                        val fieldSchema = field.schema()
+                        val type = when (fieldSchema.type) {
+                            Schema.Type.RECORD -> {
+                                nodeParents += node
+                                nodePositions += field.pos()
+                                if (!compileRecord(fieldSchema, nodeParents.size - 1, name)) {
+                                    return false
+                                }
+                                continue
+                            }
+                            Schema.Type.UNION -> if (fieldSchema.types.all { it.type in PRIMITIVE_TYPES }) {
+                                Schema.Type.UNION
+                            } else return false
+                            in PRIMITIVE_TYPES -> fieldSchema.type
+                            else -> return false
+                        }
+                        columnNodes += node
+                        columnPositions += field.pos()
+                        columnTypes += type
+                        header += name
+                    }
+                    return true
+                }
+
+                if (schema.type != Schema.Type.RECORD || !compileRecord(schema, 0, null)) {
+                    return null
+                }
+                return CompiledColumns(
+                        nodeParents.toIntArray(),
+                        nodePositions.toIntArray(),
+                        columnNodes.toIntArray(),
+                        columnPositions.toIntArray(),
+                        columnTypes.toTypedArray(),
+                        header.toTypedArray())
+            }
+
+            private val PRIMITIVE_TYPES = EnumSet.of(
+                    Schema.Type.BYTES, Schema.Type.FIXED, Schema.Type.STRING, Schema.Type.ENUM,
+                    Schema.Type.INT, Schema.Type.LONG, Schema.Type.DOUBLE, Schema.Type.FLOAT,
+                    Schema.Type.BOOLEAN, Schema.Type.NULL)
+
+            /** Convert a value of a primitive type, or a union of primitive types. */
+            private fun convertValue(data: Any?, type: Schema.Type): String = when (type) {
+                Schema.Type.BYTES -> BASE64_ENCODER.encodeToString((data as ByteBuffer).array())
+                Schema.Type.FIXED -> BASE64_ENCODER.encodeToString((data as GenericFixed).bytes())
+                Schema.Type.NULL -> ""
+                Schema.Type.UNION -> when (data) {
+                    null -> ""
+                    is ByteBuffer -> BASE64_ENCODER.encodeToString(data.array())
+                    is GenericFixed -> BASE64_ENCODER.encodeToString(data.bytes())
+                    else -> data.toString()
+                }
+                else -> data.toString()
+            }
+
+            /**
+             * Write a value of a primitive type, or a union of primitive types. Only strings
+             * and enums are checked for characters that need quoting.
+             */
+            private fun writeValue(out: CsvLineWriter, data: Any?, type: Schema.Type) {
+                when (type) {
+                    Schema.Type.STRING, Schema.Type.ENUM -> out.appendString(data.toString())
+                    Schema.Type.NULL -> out.appendEmpty()
+                    else -> when (data) {
+                        null -> out.appendEmpty()
+                        is Int -> out.appendInt(data)
+                        is Long -> out.appendLong(data)
+                        is Double -> out.appendDouble(data)
+                        is Float -> out.appendFloat(data)
+                        is Boolean -> out.appendBoolean(data)
+                        is ByteBuffer -> out.appendPlain(BASE64_ENCODER.encodeToString(data.array()))
+                        is GenericFixed -> out.appendPlain(BASE64_ENCODER.encodeToString(data.bytes()))
+                        else -> out.appendString(data.toString())
+                    }
+                }
+            }
+        }
+    }
+
     companion object {
         private val BASE64_ENCODER = Base64.getEncoder().withoutPadding()
     }
@@ -0,0 +1,129 @@
+package org.radarbase.output.format
+
+import java.io.IOException
+import java.io.Writer
+
+/**
+ * Writes CSV lines to a writer, reusing a single line buffer. The output is the same as that of
+ * opencsv `CSVWriter.writeNext(values, false)` with default settings: values are only quoted if
+ * they contain a quote, separator or line break, and quotes are escaped by doubling them.
+ * Numeric and boolean values are appended without any escaping checks.
+ *
+ * A line is only written to the underlying writer once it is ended, so a line that fails to
+ * convert halfway can be discarded by starting a new line.
+ */
+internal class CsvLineWriter(private val writer: Writer) {
+    private val line = StringBuilder(256)
+    private var chars = CharArray(256)
+    private var isFirstValue = true
+
+    /** Start a new line, discarding any values of a line that was not ended. */
+    fun startLine() {
+        line.setLength(0)
+        isFirstValue = true
+    }
+
+    /** Write the current line to the underlying writer. */
+    @Throws(IOException::class)
+    fun endLine() {
+        line.append(LINE_END)
+        val length = line.length
+        if (chars.size < length) {
+            chars = CharArray(maxOf(length, chars.size * 2))
+        }
+        line.getChars(0, length, chars, 0)
+        writer.write(chars, 0, length)
+        startLine()
+    }
+
+    /** Write a full line of string values. */
+    @Throws(IOException::class)
+    fun writeLine(values: Array<String>) {
+        startLine()
+        values.forEach { appendString(it) }
+        endLine()
+    }
+
+    /** Write a full line of string values. */
+    @Throws(IOException::class)
+    fun writeLine(values: List<String>) {
+        startLine()
+        values.forEach { appendString(it) }
+        endLine()
+    }
+
+    /** Append a string value, quoting it if needed. */
+    fun appendString(value: String) {
+        nextValue()
+        if (!needsQuotes(value)) {
+            line.append(value)
+            return
+        }
+        line.append(QUOTE)
+        for (i in value.indices) {
+            val c = value[i]
+            if (c == QUOTE) {
+                line.append(QUOTE)
+            }
+            line.append(c)
+        }
+        line.append(QUOTE)
+    }
+
+    /** Append a value that is known not to need quoting. */
+    fun appendPlain(value: String) {
+        nextValue()
+        line.append(value)
+    }
+
+    fun appendInt(value: Int) {
+        nextValue()
+        line.append(value)
+    }
+
+    fun appendLong(value: Long) {
+        nextValue()
+        line.append(value)
+    }
+
+    fun appendFloat(value: Float) {
+        nextValue()
+        line.append(value)
+    }
+
+    fun appendDouble(value: Double) {
+        nextValue()
+        line.append(value)
+    }
+
+    fun appendBoolean(value: Boolean) {
+        nextValue()
+        line.append(value)
+    }
+
+    /** Append an empty value. */
+    fun appendEmpty() = nextValue()
+
+    private fun nextValue() {
+        if (isFirstValue) {
+            isFirstValue = false
+        } else {
+            line.append(SEPARATOR)
+        }
+    }
+
+    companion object {
+        private const val SEPARATOR = ','
+        private const val QUOTE = '"'
+        private const val LINE_END = '\n'
+
+        private fun needsQuotes(value: String): Boolean {
+            for (i in value.indices) {
+                when (value[i]) {
+                    QUOTE, SEPARATOR, '\n', '\r' -> return true
+                }
+            }
+            return false
+        }
+    }
+}
@@ -18,35 +18,59 @@ package org.radarbase.output.format
 
 import com.fasterxml.jackson.core.JsonFactory
 import com.fasterxml.jackson.core.JsonGenerator
-import com.fasterxml.jackson.core.util.MinimalPrettyPrinter
 import com.fasterxml.jackson.databind.ObjectMapper
 import org.apache.avro.generic.GenericRecord
 import java.io.IOException
+import java.io.StringWriter
 import java.io.Writer
 
 /**
  * Writes an Avro record to JSON format.
  */
 class JsonAvroConverter(
-        writer: Writer,
+        private val writer: Writer,
         private val converter: JsonAvroDataConverter
 ) : RecordConverter {
-    private val generator: JsonGenerator = JSON_FACTORY.createGenerator(writer)
-            .setPrettyPrinter(MinimalPrettyPrinter("\n"))
+    /**
+     * Each record is first written to this buffer, so that a record that fails halfway does
+     * not leave a partial JSON object in the output.
+     */
+    private val buffer = StringWriter()
+    private var generator: JsonGenerator = createGenerator()
+    private val recordWriter = JsonAvroRecordWriter()
+    private var isFirstRecord = true
+
+    private fun createGenerator(): JsonGenerator = JSON_FACTORY.createGenerator(buffer)
+            .setRootValueSeparator(null)
 
     @Throws(IOException::class)
     override fun writeRecord(record: GenericRecord): Boolean {
-        JSON_WRITER.writeValue(generator, converter.convertRecord(record))
+        try {
+            recordWriter.write(record, generator)
+            generator.flush()
+        } catch (ex: Exception) {
+            // the generator is still inside the failed record
+            generator = createGenerator()
+            buffer.buffer.setLength(0)
+            throw ex
+        }
+        if (isFirstRecord) {
+            isFirstRecord = false
+        } else {
+            writer.append('\n')
+        }
+        writer.append(buffer.buffer)
+        buffer.buffer.setLength(0)
         return true
     }
 
     override fun convertRecord(record: GenericRecord): Map<String, Any?> = converter.convertRecord(record)
 
     @Throws(IOException::class)
-    override fun flush() = generator.flush()
+    override fun flush() = writer.flush()
 
     @Throws(IOException::class)
-    override fun close() = generator.close()
+    override fun close() = writer.close()
 
     companion object {
         private val JSON_FACTORY = JsonFactory()
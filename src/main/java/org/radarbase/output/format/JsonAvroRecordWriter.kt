@@ -0,0 +1,105 @@
+package org.radarbase.output.format
+
+import com.fasterxml.jackson.core.JsonGenerator
+import com.fasterxml.jackson.core.SerializableString
+import com.fasterxml.jackson.core.io.SerializedString
+import org.apache.avro.Schema
+import org.apache.avro.generic.GenericData
+import org.apache.avro.generic.GenericFixed
+import org.apache.avro.generic.GenericRecord
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.util.*
+
+/**
+ * Writes Avro records directly to a JSON generator, without creating intermediate maps. The
+ * output is the same as serializing the result of [JsonAvroDataConverter.convertRecord] with
+ * Jackson, including the order of the record fields. Field plans are cached per schema, so
+ * this class is not thread-safe.
+ */
+internal class JsonAvroRecordWriter {
+    private val plans: MutableMap<Schema, Array<PlannedField>> = IdentityHashMap()
+    private var lastSchema: Schema? = null
+    private var lastPlan: Array<PlannedField> = emptyArray()
+
+    /** Write a record as a JSON object. */
+    @Throws(IOException::class)
+    fun write(record: GenericRecord, generator: JsonGenerator) {
+        generator.writeStartObject()
+        for (field in planFor(record.schema)) {
+            generator.writeFieldName(field.name)
+            writeValue(record.get(field.pos), field.schema, generator)
+        }
+        generator.writeEndObject()
+    }
+
+    @Throws(IOException::class)
+    private fun writeValue(data: Any?, schema: Schema, generator: JsonGenerator) {
+        when (schema.type) {
+            Schema.Type.RECORD -> write(data as GenericRecord, generator)
+            Schema.Type.MAP -> {
+                // Write the entries in the same order as the map-based converter does.
+                val entries = HashMap<String, Any?>()
+                for ((key, value) in data as Map<*, *>) {
+                    entries[key.toString()] = value
+                }
+                val valueType = schema.valueType
+                generator.writeStartObject()
+                for ((key, value) in entries) {
+                    generator.writeFieldName(key)
+                    writeValue(value, valueType, generator)
+                }
+                generator.writeEndObject()
+            }
+            Schema.Type.ARRAY -> {
+                val itemType = schema.elementType
+                generator.writeStartArray()
+                for (item in data as List<*>) {
+                    writeValue(item, itemType, generator)
+                }
+                generator.writeEndArray()
+            }
+            Schema.Type.UNION -> {
+                val type = GenericData.get().resolveUnion(schema, data)
+                writeValue(data, schema.types[type], generator)
+            }
+            Schema.Type.BYTES -> generator.writeBinary((data as ByteBuffer).array())
+            Schema.Type.FIXED -> generator.writeBinary((data as GenericFixed).bytes())
+            Schema.Type.ENUM, Schema.Type.STRING -> generator.writeString(data.toString())
+            Schema.Type.INT, Schema.Type.LONG, Schema.Type.DOUBLE, Schema.Type.FLOAT, Schema.Type.BOOLEAN, Schema.Type.NULL -> when (data) {
+                null -> generator.writeNull()
+                is Int -> generator.writeNumber(data)
+                is Long -> generator.writeNumber(data)
+                is Double -> generator.writeNumber(data)
+                is Float -> generator.writeNumber(data)
+                is Boolean -> generator.writeBoolean(data)
+                else -> generator.writeObject(data)
+            }
+            else -> throw IllegalArgumentException("Cannot parse field type " + schema.type)
+        }
+    }
+
+    /** Get a cached field plan for given record schema, or create a new one. */
+    private fun planFor(schema: Schema): Array<PlannedField> {
+        if (schema !== lastSchema) {
+            lastPlan = plans.getOrPut(schema) {
+                // Use the iteration order of a HashMap, as the map-based converter does.
+                val fields = HashMap<String, Schema.Field>()
+                for (field in schema.fields) {
+                    fields[field.name()] = field
+                }
+                fields.values
+                        .map { PlannedField(SerializedString(it.name()), it.pos(), it.schema()) }
+                        .toTypedArray()
+            }
+            lastSchema = schema
+        }
+        return lastPlan
+    }
+
+    private class PlannedField(
+            val name: SerializableString,
+            val pos: Int,
+            val schema: Schema,
+    )
+}
@@ -102,6 +102,42 @@ interface RecordConverterFactory : Format {
         return headers.toTypedArray()
     }
 
+    /**
+     * Header of all records of given schema, or null if the header depends on the values of a
+     * record. That is the case if the schema contains maps, arrays or unions of complex types.
+     */
+    fun headerFor(schema: Schema): Array<String>? {
+        val headers = ArrayList<String>()
+        for (field in schema.fields) {
+            if (!createStaticHeader(headers, field.schema(), field.name())) {
+                return null
+            }
+        }
+        return headers.toTypedArray()
+    }
+
+    private fun createStaticHeader(headers: MutableList<String>, schema: Schema, prefix: String): Boolean {
+        return when (schema.type) {
+            Schema.Type.RECORD -> schema.fields.all { field ->
+                createStaticHeader(headers, field.schema(), prefix + '.'.toString() + field.name())
+            }
+            Schema.Type.MAP, Schema.Type.ARRAY -> false
+            Schema.Type.UNION -> {
+                // only a union of single-column types always has the same header
+                if (schema.types.any { it.type in complexTypes }) {
+                    false
+                } else {
+                    headers.add(prefix)
+                    true
+                }
+            }
+            else -> {
+                headers.add(prefix)
+                true
+            }
+        }
+    }
+
     private fun createHeader(headers: MutableList<String>, data: Any?, schema: Schema, prefix: String) {
         when (schema.type) {
             Schema.Type.RECORD -> {
@@ -135,6 +171,8 @@ interface RecordConverterFactory : Format {
     }
 
     companion object {
+        private val complexTypes = setOf(Schema.Type.RECORD, Schema.Type.MAP, Schema.Type.ARRAY, Schema.Type.UNION)
+
         /**
          * @param reader file to read from
          * @param lines lines in the file to increment to
@@ -17,17 +17,37 @@
 package org.radarbase.output.path
 
 import org.apache.avro.generic.GenericRecord
+import org.radarbase.output.util.TimeUtil
 import org.slf4j.LoggerFactory
 import java.nio.file.Path
 import java.nio.file.Paths
 import java.time.Instant
 import java.time.ZoneOffset.UTC
 import java.time.format.DateTimeFormatter
+import java.time.temporal.ChronoUnit
+import java.util.concurrent.ConcurrentHashMap
 
 open class FormattedPathFactory : RecordPathFactory() {
     lateinit var format: String
     lateinit var timeParameters: Map<String, DateTimeFormatter>
 
+    private lateinit var segments: List<PathSegment>
+
+    /** Resolution in seconds that the path depends on, or null if paths should not be cached. */
+    private var cacheResolution: Long? = null
+    private val pathCache: MutableMap<PathCacheKey, Path> = ConcurrentHashMap()
+
+    /**
+     * Whether output paths are cached by record key and time bin. Subclasses may compute paths
+     * from other record fields, so they only use the cache if they override this to true.
+     */
+    protected open val cachePaths: Boolean
+        get() = this::class == FormattedPathFactory::class
+
+    /** Only key fields and value time fields are read. */
+    override val valueFields: Set<String>?
+        get() = TimeUtil.valueTimeFields
+
     override fun init(properties: Map<String, String>) {
         super.init(properties)
 
@@ -37,7 +57,7 @@ open class FormattedPathFactory : RecordPathFactory() {
                 DEFAULT_FORMAT
             }
 
-        val parameters = "\\$\\{([^}]*)}".toRegex()
+        val parameters = PARAMETER_REGEX
             .findAll(format)
             .map { it.groupValues[1] }
             .toSet()
@@ -68,45 +88,122 @@ open class FormattedPathFactory : RecordPathFactory() {
                 "Path must include filename parameter or extension and attempt parameters."
             )
         }
+
+        segments = compileSegments(format)
+
+        cacheResolution = timeParameters.keys
+            .map { patternResolution(it.removePrefix("time:")) }
+            .plus(timeBinResolution)
+            .fold(ChronoUnit.DAYS as ChronoUnit?) { resolution, unit ->
+                if (resolution == null || unit == null) null else minOf(resolution, unit)
+            }
+            ?.duration
+            ?.seconds
     }
 
-    override fun getRelativePath(
+    /** Split the format into literal text and parameters. */
+    private fun compileSegments(format: String): List<PathSegment> {
+        val result = mutableListOf<PathSegment>()
+        var literalStart = 0
+        PARAMETER_REGEX.findAll(format).forEach { match ->
+            if (match.range.first > literalStart) {
+                result += PathSegment.Literal(format.substring(literalStart, match.range.first))
+            }
+            val name = match.groupValues[1]
+            result += timeParameters[name]
+                ?.let { PathSegment.Time(it) }
+                ?: PathSegment.Parameter(name)
+            literalStart = match.range.last + 1
+        }
+        if (literalStart < format.length) {
+            result += PathSegment.Literal(format.substring(literalStart))
+        }
+        return result
+    }
+
+    /**
+     * Get the output path, reusing a previously resolved path if the record has the same key
+     * and its time falls in the same time bin as an earlier record. This is only done if
+     * [cachePaths] is set.
+     */
+    override fun getOutputPath(
         topic: String,
         key: GenericRecord,
         value: GenericRecord,
         time: Instant?,
         attempt: Int,
     ): Path {
-        val attemptSuffix = if (attempt == 0) "" else "_$attempt"
-
-        val templatedParameters = mutableMapOf(
-            "projectId" to sanitizeId(key.get("projectId"), "unknown-project"),
-            "userId" to sanitizeId(key.get("userId"), "unknown-user"),
-            "sourceId" to sanitizeId(key.get("sourceId"), "unknown-source"),
-            "topic" to topic,
-            "filename" to getTimeBin(time) + attemptSuffix + extension,
-            "attempt" to attemptSuffix,
-            "extension" to extension,
+        val resolution = cacheResolution?.takeIf { cachePaths }
+            ?: return super.getOutputPath(topic, key, value, time, attempt)
+
+        val cacheKey = PathCacheKey(
+            topic,
+            key.get("projectId")?.toString(),
+            key.get("userId")?.toString(),
+            key.get("sourceId")?.toString(),
+            time?.let { Math.floorDiv(it.epochSecond, resolution) },
+            attempt,
         )
+        pathCache[cacheKey]?.let { return it }
 
-        templatedParameters += if (time != null) {
-            timeParameters.mapValues { (_, formatter) -> formatter.format(time) }
-        } else {
-            timeParameters.mapValues { "unknown-time" }
+        if (pathCache.size >= MAX_CACHE_SIZE) {
+            pathCache.clear()
         }
+        return super.getOutputPath(topic, key, value, time, attempt)
+            .also { pathCache[cacheKey] = it }
+    }
 
-        val path = templatedParameters.asSequence()
-            .fold(format) { p, (name, value) ->
-                p.replace("\${$name}", value)
+    override fun getRelativePath(
+        topic: String,
+        key: GenericRecord,
+        value: GenericRecord,
+        time: Instant?,
+        attempt: Int,
+    ): Path {
+        val attemptSuffix = if (attempt == 0) "" else "_$attempt"
+
+        val path = StringBuilder(format.length + 64)
+        for (segment in segments) {
+            when (segment) {
+                is PathSegment.Literal -> path.append(segment.text)
+                is PathSegment.Time -> path.append(time?.let { segment.formatter.format(it) } ?: "unknown-time")
+                is PathSegment.Parameter -> path.append(when (segment.name) {
+                    "projectId" -> sanitizeId(key.get("projectId"), "unknown-project")
+                    "userId" -> sanitizeId(key.get("userId"), "unknown-user")
+                    "sourceId" -> sanitizeId(key.get("sourceId"), "unknown-source")
+                    "topic" -> topic
+                    "filename" -> getTimeBin(time) + attemptSuffix + extension
+                    "attempt" -> attemptSuffix
+                    "extension" -> extension
+                    else -> throw IllegalStateException("Unknown path parameter ${segment.name}")
+                })
             }
+        }
 
-        return Paths.get(path)
+        return Paths.get(path.toString())
     }
 
     override fun getCategory(key: GenericRecord, value: GenericRecord): String {
         return sanitizeId(key.get("sourceId"), "unknown-source")
     }
 
+    /** Part of a compiled path format. */
+    private sealed class PathSegment {
+        class Literal(val text: String) : PathSegment()
+        class Parameter(val name: String) : PathSegment()
+        class Time(val formatter: DateTimeFormatter) : PathSegment()
+    }
+
+    /** Record properties that determine its output path. */
+    private data class PathCacheKey(
+        val topic: String,
+        val projectId: String?,
+        val userId: String?,
+        val sourceId: String?,
+        val timeBin: Long?,
+        val attempt: Int,
+    )
+
     companion object {
         private const val DEFAULT_FORMAT = "\${projectId}/\${userId}/\${topic}/\${filename}"
 
@@ -120,6 +217,9 @@ open class FormattedPathFactory : RecordPathFactory() {
             "extension",
         )
 
+        private val PARAMETER_REGEX = "\\$\\{([^}]*)}".toRegex()
+        private const val MAX_CACHE_SIZE = 10_000
+
         private val logger = LoggerFactory.getLogger(FormattedPathFactory::class.java)
     }
 }
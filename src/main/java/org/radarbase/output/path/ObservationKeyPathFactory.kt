@@ -17,11 +17,16 @@
 package org.radarbase.output.path
 
 import org.apache.avro.generic.GenericRecord
+import org.radarbase.output.util.TimeUtil
 import java.nio.file.Path
 import java.nio.file.Paths
 import java.time.Instant
 
 open class ObservationKeyPathFactory : RecordPathFactory() {
+    /** Only key fields and value time fields are read. */
+    override val valueFields: Set<String>?
+        get() = TimeUtil.valueTimeFields
+
     override fun getRelativePath(topic: String, key: GenericRecord,
                                  value: GenericRecord, time: Instant?, attempt: Int): Path {
         val projectId = sanitizeId(key.get("projectId"), "unknown-project")
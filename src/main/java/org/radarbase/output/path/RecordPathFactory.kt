@@ -24,6 +24,7 @@ import java.nio.file.Path
 import java.time.Instant
 import java.time.ZoneOffset.UTC
 import java.time.format.DateTimeFormatter
+import java.time.temporal.ChronoUnit
 import java.util.regex.Pattern
 
 abstract class RecordPathFactory : Plugin {
@@ -32,6 +33,21 @@ abstract class RecordPathFactory : Plugin {
 
     protected open var timeBinFormat: DateTimeFormatter = HOURLY_TIME_BIN_FORMAT
 
+    /**
+     * Smallest unit of time that [timeBinFormat] depends on, or null if unknown. Subclasses that
+     * override [timeBinFormat] should override this as well.
+     */
+    protected open var timeBinResolution: ChronoUnit? = ChronoUnit.HOURS
+
+    /**
+     * Names of the value fields that [getRecordOrganization] reads, or null if it may read any
+     * value field. All key fields are always read. Subclasses that only read a known set of value
+     * fields, including those needed by [TimeUtil.getDate], may override this so that records
+     * can be decoded with a projected schema.
+     */
+    open val valueFields: Set<String>?
+        get() = null
+
     override fun init(properties: Map<String, String>) {
         super.init(properties)
         properties["timeBinFormat"]?.let {
@@ -39,6 +55,7 @@ abstract class RecordPathFactory : Plugin {
                 timeBinFormat = DateTimeFormatter
                         .ofPattern(it)
                         .withZone(UTC)
+                timeBinResolution = patternResolution(it)
             } catch (ex: IllegalArgumentException) {
                 logger.error("Cannot use time bin format {}, using {} instead", it, timeBinFormat, ex)
             }
@@ -68,12 +85,29 @@ abstract class RecordPathFactory : Plugin {
 
         val time = TimeUtil.getDate(keyField, valueField)
 
-        val relativePath = getRelativePath(topic, keyField, valueField, time, attempt)
-        val outputPath = root.resolve(relativePath)
+        val outputPath = getOutputPath(topic, keyField, valueField, time, attempt)
         val category = getCategory(keyField, valueField)
         return RecordOrganization(outputPath, category, time)
     }
 
+    /**
+     * Get the output path corresponding to given record on given topic. By default, this
+     * resolves [getRelativePath] against [root].
+     * @param topic Kafka topic name
+     * @param key record key
+     * @param value record value
+     * @param time time contained in the record
+     * @param attempt number of previous attempts to write given record.
+     * @return output path corresponding to given parameters.
+     */
+    protected open fun getOutputPath(
+        topic: String,
+        key: GenericRecord,
+        value: GenericRecord,
+        time: Instant?,
+        attempt: Int,
+    ): Path = root.resolve(getRelativePath(topic, key, value, time, attempt))
+
     /**
      * Get the relative path corresponding to given record on given topic.
      * @param topic Kafka topic name
@@ -127,5 +161,37 @@ abstract class RecordPathFactory : Plugin {
                 ?.let { ILLEGAL_CHARACTER_PATTERN.matcher(it.toString()).replaceAll("") }
                 ?.takeIf { it.isNotEmpty() }
                 ?: defaultValue
+
+        /**
+         * Smallest unit of time that a [DateTimeFormatter] pattern in the UTC zone depends on.
+         * Patterns without any time fields have a resolution of days.
+         * @return resolution or null if the pattern uses fractions of a second or unknown fields.
+         */
+        fun patternResolution(pattern: String): ChronoUnit? {
+            var resolution = ChronoUnit.DAYS
+            var isQuoted = false
+            for (c in pattern) {
+                if (c == '\'') {
+                    isQuoted = !isQuoted
+                    continue
+                }
+                if (isQuoted || c !in 'a'..'z' && c !in 'A'..'Z') {
+                    continue
+                }
+                val unit = when (c) {
+                    'G', 'u', 'y', 'D', 'M', 'L', 'd', 'Q', 'q', 'Y', 'w', 'W', 'E', 'e', 'c', 'F' -> ChronoUnit.DAYS
+                    'a', 'h', 'K', 'k', 'H' -> ChronoUnit.HOURS
+                    'm' -> ChronoUnit.MINUTES
+                    's' -> ChronoUnit.SECONDS
+                    // zone and padding letters do not depend on the time in a fixed zone
+                    'V', 'z', 'O', 'X', 'x', 'Z', 'p' -> continue
+                    else -> return null
+                }
+                if (unit < resolution) {
+                    resolution = unit
+                }
+            }
+            return resolution
+        }
     }
 }
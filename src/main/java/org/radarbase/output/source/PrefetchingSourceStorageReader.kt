@@ -0,0 +1,140 @@
+package org.radarbase.output.source
+
+import org.apache.avro.file.SeekableInput
+import org.slf4j.LoggerFactory
+import java.io.IOException
+import java.util.concurrent.*
+
+/**
+ * Source storage reader that opens files ahead of their use. Once [prefetch] has been called
+ * with the files that will be read, up to [maxFiles] of the next files are opened in the
+ * background. New files are only opened while the files that are opened but not yet closed take
+ * up less than [maxBytes] bytes, unless no files are opened at all. The underlying [reader] must
+ * allow opening multiple inputs concurrently.
+ *
+ * This reader is not thread-safe: all calls, including closing the returned inputs, should be
+ * made from a single thread.
+ */
+class PrefetchingSourceStorageReader(
+        private val reader: SourceStorage.SourceStorageReader,
+        private val maxFiles: Int,
+        private val maxBytes: Long,
+) : SourceStorage.SourceStorageReader {
+    private val executor = Executors.newFixedThreadPool(maxFiles) { r ->
+        Thread(r, "prefetch").apply { isDaemon = true }
+    }
+    private val queue = ArrayDeque<TopicFile>()
+    private val pending = LinkedHashMap<TopicFile, Future<SeekableInput>>()
+    private var reservedBytes = 0L
+    @Volatile
+    private var isClosed = false
+
+    override fun prefetch(files: List<TopicFile>) {
+        queue.clear()
+        queue.addAll(files.filter { it !in pending })
+        fill()
+    }
+
+    @Throws(IOException::class)
+    override fun newInput(file: TopicFile): SeekableInput {
+        val size = file.sizeBytes ?: 0L
+        val future = pending.remove(file)
+        if (future == null) {
+            // The file was not prefetched: drop any queued files up to this one.
+            if (queue.contains(file)) {
+                while (queue.removeFirst() != file) continue
+            }
+            reservedBytes += size
+        }
+        val input = try {
+            if (future != null) awaitInput(future) else reader.newInput(file)
+        } catch (ex: Exception) {
+            reservedBytes -= size
+            throw ex
+        }
+        fill()
+        return ReservedInput(input, size)
+    }
+
+    /** Start opening queued files, as long as the file and byte limits allow it. */
+    private fun fill() {
+        while (!isClosed && pending.size < maxFiles && queue.isNotEmpty()) {
+            val nextFile = queue.first()
+            val size = nextFile.sizeBytes ?: 0L
+            if (reservedBytes > 0L && reservedBytes + size > maxBytes) {
+                break
+            }
+            queue.removeFirst()
+            reservedBytes += size
+            pending[nextFile] = executor.submit(Callable {
+                // do not start opening files after closing
+                check(!isClosed) { "Prefetching reader is closed" }
+                reader.newInput(nextFile)
+            })
+        }
+    }
+
+    @Throws(IOException::class)
+    private fun awaitInput(future: Future<SeekableInput>): SeekableInput = try {
+        future.get()
+    } catch (ex: ExecutionException) {
+        when (val cause = ex.cause) {
+            is IOException -> throw cause
+            is RuntimeException -> throw cause
+            else -> throw IOException("Failed to prefetch file", cause)
+        }
+    } catch (ex: InterruptedException) {
+        Thread.currentThread().interrupt()
+        throw IOException("Interrupted while prefetching file", ex)
+    }
+
+    /**
+     * Close this reader. Files that are already being opened are awaited and closed, before the
+     * underlying reader is closed.
+     */
+    override fun close() {
+        isClosed = true
+        queue.clear()
+        executor.shutdown()
+        try {
+            if (!executor.awaitTermination(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                logger.warn("Prefetched files did not finish opening within {} seconds", CLOSE_TIMEOUT_SECONDS)
+            }
+        } catch (ex: InterruptedException) {
+            Thread.currentThread().interrupt()
+        }
+        pending.values.forEach { future ->
+            if (future.isDone && !future.isCancelled) {
+                try {
+                    future.get().close()
+                } catch (ex: ExecutionException) {
+                    // file was not opened, so it does not need to be closed
+                } catch (ex: Exception) {
+                    logger.debug("Failed to close prefetched file", ex)
+                }
+            }
+        }
+        pending.clear()
+        reader.close()
+    }
+
+    /** Input that releases its reserved bytes on close. */
+    private inner class ReservedInput(
+            private val input: SeekableInput,
+            private val size: Long,
+    ) : SeekableInput by input {
+        override fun close() {
+            try {
+                input.close()
+            } finally {
+                reservedBytes -= size
+                fill()
+            }
+        }
+    }
+
+    companion object {
+        private val logger = LoggerFactory.getLogger(PrefetchingSourceStorageReader::class.java)
+        private const val CLOSE_TIMEOUT_SECONDS = 60L
+    }
+}
@@ -0,0 +1,75 @@
+package org.radarbase.output.source
+
+import org.apache.avro.file.SeekableInput
+import java.io.EOFException
+import java.io.IOException
+import java.io.InputStream
+
+/**
+ * Seekable input that reads a remote file in blocks of [blockSize] bytes, using ranged reads.
+ * Up to [maxBlocks] of the most recently used blocks are kept in memory, so that sequential
+ * reads and short seeks back do not require additional requests.
+ *
+ * @param fetch function that opens a stream of given offset and length in the remote file.
+ */
+class RangedSeekableInput(
+        private val length: Long,
+        private val blockSize: Int,
+        private val maxBlocks: Int,
+        private val fetch: (offset: Long, length: Int) -> InputStream,
+) : SeekableInput {
+    private val blocks = object : LinkedHashMap<Long, ByteArray>(maxBlocks * 4 / 3 + 1, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<Long, ByteArray>?): Boolean =
+                size > maxBlocks
+    }
+    private var position = 0L
+
+    init {
+        require(blockSize > 0) { "Block size must be strictly positive" }
+        require(maxBlocks > 0) { "Number of blocks must be strictly positive" }
+    }
+
+    override fun seek(p: Long) {
+        if (p < 0 || p > length) {
+            throw EOFException("Cannot seek to $p in input of length $length")
+        }
+        position = p
+    }
+
+    override fun tell(): Long = position
+
+    override fun length(): Long = length
+
+    @Throws(IOException::class)
+    override fun read(b: ByteArray, off: Int, len: Int): Int {
+        if (len == 0) {
+            return 0
+        }
+        if (position >= length) {
+            return -1
+        }
+        val blockIndex = position / blockSize
+        val block = blocks[blockIndex] ?: fetchBlock(blockIndex)
+        val blockOffset = (position - blockIndex * blockSize).toInt()
+        val numBytes = minOf(len, block.size - blockOffset)
+        System.arraycopy(block, blockOffset, b, off, numBytes)
+        position += numBytes
+        return numBytes
+    }
+
+    @Throws(IOException::class)
+    private fun fetchBlock(blockIndex: Long): ByteArray {
+        val offset = blockIndex * blockSize
+        val size = minOf(blockSize.toLong(), length - offset).toInt()
+        val block = fetch(offset, size).use { it.readNBytes(size) }
+        if (block.size < size) {
+            throw EOFException("Expected $size bytes at offset $offset, but read ${block.size}")
+        }
+        blocks[blockIndex] = block
+        return block
+    }
+
+    override fun close() {
+        blocks.clear()
+    }
+}
@@ -22,6 +22,8 @@ class S3SourceStorage(
     override val walker: SourceStorageWalker = GeneralSourceStorageWalker(this)
     private val bucket = config.bucket
     private val readEndOffset = config.endOffsetFromTags
+    private val readBlockSize = config.readBlockSize
+    private val readBlocksCached = config.readBlocksCached
 
     override fun list(path: Path): Sequence<SimpleFileStatus> {
         val listRequest = ListObjectsArgs.Builder().bucketBuild(bucket) {
@@ -33,7 +35,11 @@ class S3SourceStorage(
             .asSequence()
             .map {
                 val item = it.get()
-                SimpleFileStatus(Paths.get(item.objectName()), item.isDir, if (item.isDir) null else item.lastModified().toInstant())
+                if (item.isDir) {
+                    SimpleFileStatus(Paths.get(item.objectName()), true, null)
+                } else {
+                    SimpleFileStatus(Paths.get(item.objectName()), false, item.lastModified().toInstant(), item.size())
+                }
             }
     }
 
@@ -74,6 +80,9 @@ class S3SourceStorage(
         private val tempDir = TemporaryDirectory(tempPath, "worker-")
 
         override fun newInput(file: TopicFile): SeekableInput {
+            if (readBlockSize != null) {
+                return newRangedInput(file, readBlockSize)
+            }
             val tempFile = Files.createTempFile(tempDir.path, "${file.topic}-${file.path.fileName}", ".avro")
 
             try {
@@ -99,6 +108,21 @@ class S3SourceStorage(
             }
         }
 
+        private fun newRangedInput(file: TopicFile, blockSize: Int): SeekableInput {
+            val length = file.sizeBytes ?: faultTolerant {
+                s3Client.statObject(StatObjectArgs.Builder().objectBuild(bucket, file.path))
+            }.size()
+
+            return RangedSeekableInput(length, blockSize, readBlocksCached) { offset, size ->
+                faultTolerant {
+                    s3Client.getObject(GetObjectArgs.Builder().objectBuild(bucket, file.path) {
+                        offset(offset)
+                        length(size.toLong())
+                    })
+                }
+            }
+        }
+
         override fun close() {
             tempDir.close()
         }
@@ -18,7 +18,7 @@ interface SourceStorage {
     fun createTopicFile(topic: String, status: SimpleFileStatus): TopicFile {
         val lastModified = status.lastModified ?: Instant.now()
         val range = TopicPartitionOffsetRange.parseFilename(status.path.fileName.toString(), lastModified)
-        return TopicFile(topic, status.path, lastModified, range)
+        return TopicFile(topic, status.path, lastModified, range, status.size)
     }
 
     /** Find records and topics. */
@@ -35,5 +35,11 @@ interface SourceStorage {
          * opening the input stream. It should be closed by the caller.
          */
         fun newInput(file: TopicFile): SeekableInput
+
+        /**
+         * Hint that given files will be opened in the given order. Readers may use this to
+         * open files ahead of time.
+         */
+        fun prefetch(files: List<TopicFile>) = Unit
     }
 }
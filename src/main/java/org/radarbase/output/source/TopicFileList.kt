@@ -9,11 +9,44 @@ data class TopicFileList(val topic: String, val files: List<TopicFile>) {
             .takeIf { fs -> fs.none { it.size == null } }
             ?.fold(0L) { sum, f -> sum + f.size!! }
     val numberOfFiles: Int = this.files.size
+
+    /**
+     * Split this list into at most [maxLists] lists, such that all files of a single topic
+     * partition end up in the same list, and the work is spread evenly over the lists. The order
+     * of files within a partition is retained.
+     */
+    fun splitByPartition(maxLists: Int): List<TopicFileList> {
+        val partitions = files.groupBy { it.range.topicPartition }
+        if (maxLists <= 1 || partitions.size <= 1) {
+            return listOf(this)
+        }
+        val numLists = maxLists.coerceAtMost(partitions.size)
+        val lists = List(numLists) { ArrayList<TopicFile>() }
+        val loads = LongArray(numLists)
+
+        partitions.values
+                .map { partitionFiles -> Pair(partitionFiles, partitionFiles.sumOf { it.size ?: 1L }) }
+                .sortedByDescending { (_, load) -> load }
+                .forEach { (partitionFiles, load) ->
+                    val idx = loads.indices.minByOrNull { loads[it] }!!
+                    lists[idx] += partitionFiles
+                    loads[idx] += load
+                }
+
+        return lists.map { TopicFileList(topic, it) }
+    }
 }
 
-data class TopicFile(val topic: String, val path: Path, val lastModified: Instant, val range: TopicPartitionOffsetRange) {
+data class TopicFile(
+        val topic: String,
+        val path: Path,
+        val lastModified: Instant,
+        val range: TopicPartitionOffsetRange,
+        /** Size of the file in bytes, if known. */
+        val sizeBytes: Long? = null,
+) {
     constructor(topic: String, path: Path, lastModified: Instant) : this(topic, path, lastModified, TopicPartitionOffsetRange.parseFilename(path.fileName.toString(), lastModified))
     val size: Long? = range.range.size
 }
 
-data class SimpleFileStatus(val path: Path, val isDirectory: Boolean, val lastModified: Instant?)
+data class SimpleFileStatus(val path: Path, val isDirectory: Boolean, val lastModified: Instant?, val size: Long? = null)
@@ -20,11 +20,13 @@ import org.radarbase.output.config.LocalConfig
 import org.slf4j.LoggerFactory
 import java.io.IOException
 import java.io.InputStream
+import java.nio.channels.FileChannel
 import java.nio.file.AtomicMoveNotSupportedException
 import java.nio.file.Files
 import java.nio.file.Path
 import java.nio.file.StandardCopyOption.ATOMIC_MOVE
 import java.nio.file.StandardCopyOption.REPLACE_EXISTING
+import java.nio.file.StandardOpenOption
 import java.nio.file.attribute.PosixFilePermissions
 
 class LocalTargetStorage(private val config: LocalConfig) : TargetStorage {
@@ -61,6 +63,40 @@ class LocalTargetStorage(private val config: LocalConfig) : TargetStorage {
         move(localPath, newPath)
     }
 
+    /**
+     * Append a local file to the target file. If appending fails, the target file is truncated
+     * to its previous size, so that no partial data remains at its end.
+     */
+    @Throws(IOException::class)
+    override fun append(localPath: Path, path: Path) {
+        FileChannel.open(path, StandardOpenOption.WRITE).use { target ->
+            val previousSize = target.size()
+            try {
+                FileChannel.open(localPath, StandardOpenOption.READ).use { source ->
+                    val size = source.size()
+                    var copied = 0L
+                    while (copied < size) {
+                        val numBytes = target.transferFrom(source, previousSize + copied, size - copied)
+                        if (numBytes <= 0L) {
+                            throw IOException("Failed to append $localPath to $path")
+                        }
+                        copied += numBytes
+                    }
+                }
+                target.force(true)
+            } catch (ex: IOException) {
+                try {
+                    target.truncate(previousSize)
+                    target.force(true)
+                } catch (truncateEx: IOException) {
+                    ex.addSuppressed(truncateEx)
+                }
+                throw ex
+            }
+        }
+        Files.delete(localPath)
+    }
+
     override fun createDirectories(directory: Path) {
         Files.createDirectories(directory, PosixFilePermissions.asFileAttribute(
                 PosixFilePermissions.fromString("rwxr-xr-x")))
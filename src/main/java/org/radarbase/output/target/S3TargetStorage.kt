@@ -90,6 +90,32 @@ class S3TargetStorage(config: S3Config) : TargetStorage {
         Files.delete(localPath)
     }
 
+    /**
+     * Append a local file to an existing object. If the existing object is large enough to be a
+     * part of a multipart upload, the local file is uploaded separately and composed with the
+     * existing object on the server. Otherwise, the objects are combined locally.
+     */
+    @Throws(IOException::class)
+    override fun append(localPath: Path, path: Path) {
+        val size = status(path)?.size
+        if (size == null || size < MIN_COMPOSE_PART_SIZE) {
+            super.append(localPath, path)
+            return
+        }
+        val appendPath = path.resolveSibling("${path.fileName}.append")
+        store(localPath, appendPath)
+        try {
+            val composeRequest = ComposeObjectArgs.Builder().objectBuild(bucket, path) {
+                sources(listOf(
+                        ComposeSource.Builder().objectBuild(bucket, path),
+                        ComposeSource.Builder().objectBuild(bucket, appendPath)))
+            }
+            faultTolerant { s3Client.composeObject(composeRequest) }
+        } finally {
+            delete(appendPath)
+        }
+    }
+
     @Throws(IOException::class)
     override fun delete(path: Path) {
         val removeRequest = RemoveObjectArgs.Builder().objectBuild(bucket, path)
@@ -102,5 +128,7 @@ class S3TargetStorage(config: S3Config) : TargetStorage {
 
     companion object {
         private val logger = LoggerFactory.getLogger(S3TargetStorage::class.java)
+        /** Minimum size of any but the last part in a multipart upload. */
+        private const val MIN_COMPOSE_PART_SIZE = 5L * 1024 * 1024
     }
 }
@@ -20,6 +20,7 @@ import java.io.BufferedReader
 import java.io.IOException
 import java.io.InputStream
 import java.io.InputStreamReader
+import java.nio.file.Files
 import java.nio.file.Path
 
 interface TargetStorage {
@@ -44,6 +45,27 @@ interface TargetStorage {
     @Throws(IOException::class)
     fun store(localPath: Path, newPath: Path)
 
+    /**
+     * Append a local file to an existing file on the target storage. The local file is removed
+     * afterwards. By default, this downloads the existing file, concatenates the local file to it
+     * and stores the result. This is still the case for Azure blobs and for S3 objects smaller
+     * than 5 MiB, so for those, append mode does not reduce the data that is transferred.
+     */
+    @Throws(IOException::class)
+    fun append(localPath: Path, path: Path) {
+        val combinedPath = localPath.resolveSibling("${localPath.fileName}.combined")
+        try {
+            Files.newOutputStream(combinedPath).use { out ->
+                newInputStream(path).use { it.copyTo(out) }
+                Files.copy(localPath, out)
+            }
+            Files.delete(localPath)
+            store(combinedPath, path)
+        } finally {
+            Files.deleteIfExists(combinedPath)
+        }
+    }
+
     /** Delete a file on the target storage. Will not delete directories. */
     @Throws(IOException::class)
     fun delete(path: Path)
@@ -0,0 +1,96 @@
+package org.radarbase.output.util
+
+import java.io.Closeable
+import java.time.Duration
+import java.util.concurrent.ScheduledThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.LongAccumulator
+import java.util.concurrent.atomic.LongAdder
+
+/**
+ * Scheduler of postponed writes, shared by multiple [PostponedWriter] instances. Writes are
+ * performed on a bounded number of threads. A write is postponed until no write was triggered
+ * for [debounce], but no longer than [maxLatency] after the first trigger.
+ */
+class FlushScheduler(
+        numThreads: Int = 1,
+        val debounce: Duration = Duration.ofSeconds(1),
+        val maxLatency: Duration = Duration.ofSeconds(1),
+) : Closeable {
+    private val executor = ScheduledThreadPoolExecutor(numThreads) { r ->
+        Thread(r, "flush").apply { isDaemon = true }
+    }.apply {
+        // do not keep threads around when no writes are scheduled
+        setKeepAliveTime(30, TimeUnit.SECONDS)
+        allowCoreThreadTimeOut(true)
+    }
+
+    private val flushCount = LongAdder()
+    private val flushNanos = LongAdder()
+    private val maxFlushNanos = LongAccumulator(::maxOf, 0L)
+    private val maxQueueDepth = LongAccumulator(::maxOf, 0L)
+
+    internal val debounceNanos = debounce.toNanos()
+    internal val maxLatencyNanos = maxLatency.toNanos()
+
+    /** Number of writes that are currently scheduled. */
+    val queueDepth: Int
+        get() = executor.queue.size
+
+    init {
+        require(numThreads >= 1) { "Number of flush threads must be strictly positive" }
+        require(!debounce.isNegative) { "Flush debounce cannot be negative" }
+        require(maxLatency >= debounce) { "Maximum flush latency cannot be smaller than the debounce" }
+    }
+
+    /** Run given task after given delay. */
+    internal fun schedule(delayNanos: Long, task: () -> Unit) {
+        executor.schedule(task, delayNanos, TimeUnit.NANOSECONDS)
+        maxQueueDepth.accumulate(executor.queue.size.toLong())
+    }
+
+    /** Run given write, registering its duration. */
+    internal fun <T> timeFlush(write: () -> T): T {
+        val startTime = System.nanoTime()
+        try {
+            return write()
+        } finally {
+            val duration = System.nanoTime() - startTime
+            flushCount.increment()
+            flushNanos.add(duration)
+            maxFlushNanos.accumulate(duration)
+        }
+    }
+
+    /** Get the statistics since the last call to this function, and reset them. */
+    fun drainStatistics() = FlushStatistics(
+            count = flushCount.sumThenReset(),
+            totalDuration = Duration.ofNanos(flushNanos.sumThenReset()),
+            maxDuration = Duration.ofNanos(maxFlushNanos.getThenReset()),
+            maxQueueDepth = maxQueueDepth.getThenReset().toInt(),
+    )
+
+    /** Stop accepting writes, and wait for already scheduled writes to finish. */
+    override fun close() {
+        executor.shutdown()
+        try {
+            executor.awaitTermination(maxLatencyNanos + CLOSE_TIMEOUT_NANOS, TimeUnit.NANOSECONDS)
+        } catch (ex: InterruptedException) {
+            Thread.currentThread().interrupt()
+        }
+    }
+
+    data class FlushStatistics(
+            val count: Long,
+            val totalDuration: Duration,
+            val maxDuration: Duration,
+            val maxQueueDepth: Int,
+    ) {
+        override fun toString(): String = "$count flushes in ${totalDuration.toMillis()} ms " +
+                "(max ${maxDuration.toMillis()} ms, max queue depth $maxQueueDepth)"
+    }
+
+    companion object {
+        private val CLOSE_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(30)
+    }
+}
@@ -20,43 +20,79 @@ import org.slf4j.LoggerFactory
 import java.io.Closeable
 import java.io.Flushable
 import java.io.IOException
-import java.util.concurrent.*
-import java.util.concurrent.atomic.AtomicReference
 
 /**
- * File writer where data is written in a separate thread with a timeout.
- */
-abstract class PostponedWriter
-/**
- * Constructor with timeout.
- * @param name thread name.
- * @param timeout maximum time between triggering a write and actually writing the file.
- * @param timeoutUnit timeout unit.
+ * File writer where data is written on the threads of a shared [FlushScheduler]. Multiple
+ * triggers before a write takes place are coalesced into a single write. Writes of a single
+ * writer never run concurrently.
+ *
+ * @param name name of the data that is written, for logging.
+ * @param scheduler scheduler to run writes on.
  */
-(private val name: String, private val timeout: Long, private val timeoutUnit: TimeUnit) : Closeable, Flushable {
+abstract class PostponedWriter(
+        private val name: String,
+        private val scheduler: FlushScheduler,
+) : Closeable, Flushable {
+    private val writeLock = Any()
+    private val stateLock = Any()
 
-    private val writeFuture = AtomicReference<Future<*>?>(null)
-    private val executor = Executors.newSingleThreadScheduledExecutor { r -> Thread(r, name) }
+    /** Whether a write is pending. Guarded by [stateLock]. */
+    private var isPending = false
+    /** Identifies the currently pending write, to ignore outdated scheduled writes. */
+    private var pendingId = 0L
+    private var firstTriggerTime = 0L
+    private var lastTriggerTime = 0L
+    private var isClosed = false
 
     /**
-     * Trigger a write to occur within set timeout. If a write was already triggered earlier but has
-     * not yet taken place, the write will occur earlier.
+     * Trigger a write to occur after the debounce time of the scheduler, and no later than its
+     * maximum latency after the first trigger that was not yet written.
      */
     fun triggerWrite() {
-        if (writeFuture.get() == null) {
-            executor.schedule(::startWrite, timeout, timeoutUnit)
-                    .also { newWriteFuture ->
-                        if (!writeFuture.compareAndSet(null, newWriteFuture)) {
-                            newWriteFuture.cancel(false)
-                        }
-                    }
+        val now = System.nanoTime()
+        val id = synchronized(stateLock) {
+            if (isClosed) {
+                return
+            }
+            lastTriggerTime = now
+            if (isPending) {
+                return
+            }
+            isPending = true
+            firstTriggerTime = now
+            ++pendingId
+        }
+        scheduler.schedule(scheduler.debounceNanos) { startWrite(id) }
+    }
+
+    /** Start the write in a scheduler thread, or postpone it if it was triggered again.  */
+    private fun startWrite(id: Long) {
+        val delay = synchronized(stateLock) {
+            if (!isPending || id != pendingId) {
+                return
+            }
+            val writeTime = minOf(
+                    lastTriggerTime + scheduler.debounceNanos,
+                    firstTriggerTime + scheduler.maxLatencyNanos)
+            val delay = writeTime - System.nanoTime()
+            if (delay <= 0) {
+                isPending = false
+            }
+            delay
+        }
+        if (delay > 0) {
+            scheduler.schedule(delay) { startWrite(id) }
+        } else {
+            try {
+                write()
+            } catch (ex: Exception) {
+                logger.error("Failed to write data for {}", name, ex)
+            }
         }
     }
 
-    /** Start the write in the writer thread.  */
-    private fun startWrite() {
-        writeFuture.set(null)
-        doWrite()
+    private fun write() = synchronized(writeLock) {
+        scheduler.timeFlush(::doWrite)
     }
 
     /** Perform the write.  */
@@ -64,43 +100,25 @@ abstract class PostponedWriter
 
     @Throws(IOException::class)
     override fun close() {
-        doFlush(true)
-        try {
-            executor.awaitTermination(30, TimeUnit.SECONDS)
-        } catch (e: InterruptedException) {
-            logger.error("Failed to write {} data: interrupted", name)
+        synchronized(stateLock) {
+            isClosed = true
         }
-
+        flush()
     }
 
     @Throws(IOException::class)
-    private fun doFlush(shutdown: Boolean) {
-        val localFuture = executor.submit(::startWrite)
-                .also { writeFuture.getAndSet(it)?.cancel(false) }
-
-        if (shutdown) {
-            executor.shutdown()
+    override fun flush() {
+        synchronized(stateLock) {
+            isPending = false
         }
-
         try {
-            localFuture.get(30, TimeUnit.SECONDS)
-        } catch (ex: CancellationException) {
-            logger.debug("File flush for {} was cancelled, another thread executed it", name)
-        } catch (ex: ExecutionException) {
-            logger.error("Failed to write data for {}", name, ex.cause)
-            throw IOException("Failed to write data", ex.cause)
-        } catch (e: InterruptedException) {
-            logger.error("Failed to write {} data: timeout", name)
-        } catch (e: TimeoutException) {
-            logger.error("Failed to write {} data: timeout", name)
+            write()
+        } catch (ex: Exception) {
+            logger.error("Failed to write data for {}", name, ex)
+            throw IOException("Failed to write data", ex)
         }
     }
 
-    @Throws(IOException::class)
-    override fun flush() {
-        doFlush(false)
-    }
-
     companion object {
         private val logger = LoggerFactory.getLogger(PostponedWriter::class.java)
     }
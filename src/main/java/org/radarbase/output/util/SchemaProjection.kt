@@ -0,0 +1,46 @@
+package org.radarbase.output.util
+
+import org.apache.avro.Schema
+
+/**
+ * Projects schemas of records with a key and value record onto the key and the given
+ * [valueFields]. Records read with a projected schema skip all other fields while decoding.
+ * Projections are cached per writer schema. This class is not thread-safe.
+ */
+class SchemaProjection(private val valueFields: Set<String>) {
+    private val projections: MutableMap<Schema, Schema?> = HashMap()
+
+    /**
+     * Projection of given writer schema, or null if the schema cannot be projected or no fields
+     * would be skipped.
+     */
+    fun project(schema: Schema): Schema? = projections.getOrPut(schema) { createProjection(schema) }
+
+    private fun createProjection(schema: Schema): Schema? {
+        if (schema.type != Schema.Type.RECORD) {
+            return null
+        }
+        val key = schema.getField("key") ?: return null
+        val value = schema.getField("value")
+                ?.takeIf { it.schema().type == Schema.Type.RECORD }
+                ?: return null
+
+        val valueSchema = value.schema()
+        val projectedFields = valueSchema.fields.filter { it.name() in valueFields }
+        if (projectedFields.size == valueSchema.fields.size && schema.fields.size == 2) {
+            return null
+        }
+
+        val projectedValue = Schema.createRecord(valueSchema.name, valueSchema.doc,
+                valueSchema.namespace, valueSchema.isError, projectedFields.map { it.copy() })
+
+        return Schema.createRecord(schema.name, schema.doc, schema.namespace, schema.isError, listOf(
+                key.copy(),
+                Schema.Field(value.name(), projectedValue, value.doc(), null as Any?, value.order())))
+    }
+
+    companion object {
+        /** Copy of a field, so that it can be added to another record schema. */
+        private fun Schema.Field.copy() = Schema.Field(this, schema())
+    }
+}
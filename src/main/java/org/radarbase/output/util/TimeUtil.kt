@@ -11,6 +11,9 @@ import java.time.temporal.Temporal
 object TimeUtil {
     private val NANO_MULTIPLIER = 1_000_000_000.toBigDecimal()
 
+    /** Names of the value fields that [getDate] may read. All key fields may be read as well. */
+    val valueTimeFields: Set<String> = setOf("time", "dateTime", "date", "timeReceived", "timeCompleted")
+
     /**
      * Get the date contained in given records
      * @param key key field of the record
@@ -19,11 +19,15 @@ package org.radarbase.output.worker
 import org.apache.avro.generic.GenericRecord
 import org.radarbase.output.FileStoreFactory
 import org.radarbase.output.accounting.Accountant
+import org.radarbase.output.cleaner.ExtractionManifestStore
+import org.radarbase.output.cleaner.TimestampIndex
 import org.radarbase.output.compression.Compression
 import org.radarbase.output.config.DeduplicationConfig
 import org.radarbase.output.format.RecordConverter
 import org.radarbase.output.format.RecordConverterFactory
 import org.radarbase.output.target.TargetStorage
+import org.radarbase.output.util.TimeUtil.getDate
+import org.radarbase.output.util.TimeUtil.toDouble
 import org.radarbase.output.util.Timer.time
 import org.slf4j.LoggerFactory
 import java.io.*
@@ -36,15 +40,15 @@ import java.util.concurrent.atomic.AtomicBoolean
 /** Keeps path handles of a path.  */
 class FileCache(
         factory: FileStoreFactory,
-        topic: String,
+        private val topic: String,
         /** File that the cache is maintaining.  */
         val path: Path,
         /** Example record to create converter from, this is not written to path. */
         record: GenericRecord,
         /** Local temporary directory to store files in. */
-        tmpDir: Path,
+        private val tmpDir: Path,
         private val accountant: Accountant
-) : Closeable, Flushable, Comparable<FileCache> {
+) : Closeable, Flushable {
 
     private val writer: Writer
     private val recordConverter: RecordConverter
@@ -54,25 +58,66 @@ class FileCache(
     private val converterFactory: RecordConverterFactory = factory.recordConverter
     private val ledger: Accountant.Ledger = Accountant.Ledger()
     private val fileName: String = path.fileName.toString()
-    private var lastUse: Long = 0
     private val hasError: AtomicBoolean = AtomicBoolean(false)
     private val deduplicate: DeduplicationConfig
+    /** Whether new records are written to a new segment that is appended to the existing file. */
+    private val isAppend: Boolean
+    /** Whether the target file existed when opening it. */
+    private val targetExisted: Boolean
+    /** Whether the existing target file could not be read, and was moved aside. */
+    private val isReplaced: Boolean
+    /** Store to record rewrites of the target file in, if extraction manifests are used. */
+    private val manifestStore: ExtractionManifestStore? = if (factory.config.cleaner.manifests) {
+        ExtractionManifestStore(factory.redisHolder)
+    } else null
+
+    /** Whether a timestamp index of the target file was present when opening it. */
+    private val hadTimestampIndex: Boolean
+    /**
+     * Record times to store in the timestamp index, starting from the existing index. Null if
+     * no index is written, or if it is written from the local output file instead.
+     */
+    private val indexTimes: TimestampIndex.Builder?
+    private val indexHeader: Array<String>?
+    /** Whether to create the timestamp index by reading the complete local output file. */
+    private val indexFromOutput: Boolean
 
     init {
         val topicConfig = factory.config.topics[topic]
         val defaultDeduplicate = factory.config.format.deduplication
         deduplicate = topicConfig?.deduplication(defaultDeduplicate) ?: defaultDeduplicate
 
-        val fileIsNew = targetStorage.status(path)?.takeIf { it.size > 0L } == null
+        val targetStatus = targetStorage.status(path)?.takeIf { it.size > 0L }
+        val fileIsNew = targetStatus == null
+        targetExisted = !fileIsNew
+        // a corrupt file is not appended to, but moved aside when it is copied below
+        isAppend = !fileIsNew
+                && factory.config.worker.appendMode
+                && compression.supportsAppend
+                && deduplicate.enable != true
+                && time("write.validateOriginal") { isReadable(path) }
 
         this.tmpPath = Files.createTempFile(tmpDir, fileName, ".tmp" + compression.extension)
 
         var outStream = compression.compress(fileName,
                 BufferedOutputStream(Files.newOutputStream(tmpPath)))
 
+        val useTimestampIndex = factory.config.cleaner.timestampIndex
+        hadTimestampIndex = useTimestampIndex && !fileIsNew
+                && targetStorage.status(TimestampIndex.indexPath(path)) != null
+        var previousIndex = if (hadTimestampIndex && targetStatus != null && deduplicate.enable != true) {
+            TimestampIndex.readValid(targetStorage, path, targetStatus.size)
+        } else null
+
+        // whether the output starts without any existing content
+        var writeHeader = fileIsNew
+        var originalMoved = false
         val inputStream: InputStream
         if (fileIsNew) {
             inputStream = ByteArrayInputStream(ByteArray(0))
+        } else if (isAppend) {
+            // only used to read the header of the existing file
+            inputStream = compression.decompress(targetStorage.newInputStream(path))
         } else {
             inputStream = time("write.copyOriginal") {
                 if (!copy(path, outStream, compression)) {
@@ -81,16 +126,55 @@ class FileCache(
                     // clear output file
                     outStream = compression.compress(
                             fileName, BufferedOutputStream(Files.newOutputStream(tmpPath)))
+                    // the original file was moved away, so its index no longer applies
+                    previousIndex = null
+                    writeHeader = true
+                    originalMoved = true
+                    ByteArrayInputStream(ByteArray(0))
+                } else {
+                    compression.decompress(targetStorage.newInputStream(path))
                 }
-                compression.decompress(targetStorage.newInputStream(path))
             }
         }
 
         this.writer = OutputStreamWriter(outStream)
+        isReplaced = originalMoved
+
+        val validIndex = previousIndex
+        when {
+            !useTimestampIndex -> {
+                indexTimes = null
+                indexHeader = null
+                indexFromOutput = false
+            }
+            deduplicate.enable == true -> {
+                // records may be removed by deduplication, so read them after it is done
+                indexTimes = null
+                indexHeader = null
+                indexFromOutput = true
+            }
+            fileIsNew -> {
+                indexTimes = TimestampIndex.Builder()
+                indexHeader = if (converterFactory.hasHeader) converterFactory.headerFor(record) else null
+                indexFromOutput = false
+            }
+            validIndex != null -> {
+                indexTimes = TimestampIndex.Builder().apply { addAll(validIndex.times) }
+                indexHeader = validIndex.header
+                indexFromOutput = false
+            }
+            else -> {
+                // Without a valid index, times of an appended file cannot be determined
+                // locally. A rewritten file is read completely on close.
+                indexTimes = null
+                indexHeader = null
+                indexFromOutput = !isAppend
+            }
+        }
 
         this.recordConverter = try {
             InputStreamReader(inputStream).use {
-                reader -> converterFactory.converterFor(writer, record, fileIsNew, reader) }
+                reader -> converterFactory.converterFor(writer, record, writeHeader, reader) }
         } catch (ex: IOException) {
             try {
                 writer.close()
@@ -111,15 +195,16 @@ class FileCache(
     @Throws(IOException::class)
     fun writeRecord(record: GenericRecord, transaction: Accountant.Transaction): Boolean {
         val result = time("write.convert") { this.recordConverter.writeRecord(record) }
-        lastUse = System.nanoTime()
         if (result) {
             ledger.add(transaction)
+            indexTimes?.let { times ->
+                getDate(record.field("key"), record.field("value"))
+                        ?.let { times.add(it.toDouble()) }
+            }
         }
         return result
     }
 
-
-
     fun markError() {
         this.hasError.set(true)
     }
@@ -130,6 +215,7 @@ class FileCache(
         writer.close()
 
         if (!hasError.get()) {
+            var isRewrite = isReplaced
             if (deduplicate.enable == true) {
                 time("close.deduplicate") {
                     val dedupTmp = tmpPath.resolveSibling("${tmpPath.fileName}.dedup")
@@ -145,29 +231,78 @@ class FileCache(
                         } catch (ex: AtomicMoveNotSupportedException) {
                             Files.move(dedupTmp, tmpPath, StandardCopyOption.REPLACE_EXISTING)
                         }
+                        isRewrite = isRewrite || targetExisted
                     }
                 }
             }
 
+            if (isRewrite) {
+                // invalidate manifests that rely on records of the existing target
+                manifestStore?.markRewritten(topic, path)
+            }
+
+            if (hadTimestampIndex) {
+                // invalidate the index before the target file changes
+                TimestampIndex.delete(targetStorage, path)
+            }
+            val index = if (indexFromOutput) time("close.index") { readIndex() } else null
+
             time("close.store") {
-                targetStorage.store(tmpPath, path)
+                if (isAppend) {
+                    targetStorage.append(tmpPath, path)
+                } else {
+                    targetStorage.store(tmpPath, path)
+                }
+            }
+
+            if (indexTimes != null || index != null) {
+                storeIndex(index)
             }
 
             accountant.process(ledger)
         }
     }
 
+    /** Read the record times of the local output file, before it is stored. */
+    private fun readIndex(): Pair<Array<String>?, List<Double>>? = try {
+        Files.newInputStream(tmpPath).use { converterFactory.readTimeSeconds(it, compression) }
+    } catch (ex: IOException) {
+        logger.warn("Failed to read record times of {}: {}", path, ex.toString())
+        null
+    }
+
+    /** Store the timestamp index of the target file, with the file size as it was stored. */
+    private fun storeIndex(index: Pair<Array<String>?, List<Double>>?) = time("close.storeIndex") {
+        try {
+            val targetSize = targetStorage.status(path)?.size ?: return@time
+            val timestampIndex = if (index != null) {
+                TimestampIndex.Builder()
+                        .apply { addAll(index.second.toDoubleArray()) }
+                        .build(targetSize, index.first)
+            } else {
+                indexTimes!!.build(targetSize, indexHeader)
+            }
+            TimestampIndex.store(targetStorage, path, timestampIndex, tmpDir)
+        } catch (ex: IOException) {
+            logger.warn("Failed to store timestamp index of {}: {}", path, ex.toString())
+        }
+    }
+
     @Throws(IOException::class)
     override fun flush() = time("flush") {
         recordConverter.flush()
     }
 
-    /**
-     * Compares time that the filecaches were last used. If equal, it lexicographically compares
-     * the absolute path of the path.
-     * @param other FileCache to compare with.
-     */
-    override fun compareTo(other: FileCache): Int = comparator.compare(this, other)
+    /** Whether given file on the target storage can be decompressed completely. */
+    private fun isReadable(source: Path): Boolean = try {
+        targetStorage.newInputStream(source).use { fileStream ->
+            compression.decompress(fileStream).use { it.copyTo(OutputStream.nullOutputStream()) }
+        }
+        true
+    } catch (ex: IOException) {
+        logger.warn("Cannot append to {}: {}", source, ex.toString())
+        false
+    }
 
     @Throws(IOException::class)
     private fun copy(source: Path, sink: OutputStream, compression: Compression): Boolean {
@@ -202,6 +337,8 @@ class FileCache(
 
     companion object {
         private val logger = LoggerFactory.getLogger(FileCache::class.java)
-        val comparator = compareBy(FileCache::lastUse, FileCache::path)
+
+        private fun GenericRecord.field(name: String): GenericRecord? = schema.getField(name)
+                ?.let { get(it.pos()) as? GenericRecord }
     }
 }
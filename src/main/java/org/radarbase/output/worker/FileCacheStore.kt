@@ -27,26 +27,51 @@ import org.slf4j.LoggerFactory
 import java.io.Closeable
 import java.io.Flushable
 import java.io.IOException
+import java.io.InterruptedIOException
 import java.nio.file.Files
 import java.nio.file.Path
 import java.util.*
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Future
 
 /**
- * Caches open file handles. If more than the limit is cached, the half of the files that were used
- * the longest ago cache are evicted from cache.
+ * Caches open file handles. If the cache is full when a new file is opened, the file that was
+ * used the longest ago is evicted from cache. If [pathClaims] is given, a file is only opened
+ * once this store holds the claim to its path, so that stores of parallel workers never write
+ * to the same file at the same time. If [closeExecutor] is given, evicted and flushed files are
+ * closed and stored in that executor, while this store continues writing other files.
  */
 class FileCacheStore @Throws(IOException::class)
-constructor(private val factory: FileStoreFactory, private val accountant: Accountant) : Flushable, Closeable {
+constructor(
+        private val factory: FileStoreFactory,
+        private val accountant: Accountant,
+        private val pathClaims: TargetPathClaims? = null,
+        private val closeExecutor: ExecutorService? = null,
+) : Flushable, Closeable {
     private val tmpDir: TemporaryDirectory
 
     private val caches: MutableMap<Path, FileCache>
     private val maxCacheSize: Int
     private val schemasAdded: MutableMap<Path, Path>
+    private val pendingCloses: MutableMap<Path, Future<*>> = HashMap()
+    private var evictionsSinceFlush = 0
+
+    /** Number of writes to a file that was already open. */
+    var cacheHits = 0L
+        private set
+    /** Number of writes that needed to open a file. */
+    var cacheMisses = 0L
+        private set
+    /** Number of files that were closed to make room for another file. */
+    var cacheEvictions = 0L
+        private set
 
     init {
         val config = factory.config
         this.maxCacheSize = config.worker.cacheSize
-        this.caches = HashMap(maxCacheSize * 4 / 3 + 1)
+        // access order, so that the first entry is always the least recently used one
+        this.caches = LinkedHashMap(maxCacheSize * 4 / 3 + 1, 0.75f, true)
         this.tmpDir = TemporaryDirectory(config.paths.temp, "file-cache-")
         this.schemasAdded = HashMap()
     }
@@ -64,9 +89,13 @@ constructor(private val factory: FileStoreFactory, private val accountant: Accou
     fun writeRecord(path: Path, record: GenericRecord, transaction: Accountant.Transaction): WriteResponse {
         val existingCache: FileCache? = caches[path]
         val fileCache = if (existingCache != null) {
+            cacheHits++
             existingCache
         } else {
+            cacheMisses++
             ensureCapacity()
+            pendingCloses.remove(path)?.let { awaitCloseLogged(path, it) }
+            claimPath(path)
 
             val dir = path.parent
             factory.targetStorage.createDirectories(dir)
@@ -79,6 +108,7 @@ constructor(private val factory: FileStoreFactory, private val accountant: Accou
                         }
             } catch (ex: IOException) {
                 logger.error("Could not open cache for {}", path, ex)
+                pathClaims?.release(path, this)
                 return NO_CACHE_AND_NO_WRITE
             }
         }
@@ -91,11 +121,34 @@ constructor(private val factory: FileStoreFactory, private val accountant: Accou
             logger.error("Failed to write record. Closing cache {}.", fileCache.path, ex)
             fileCache.markError()
             caches.remove(fileCache.path)
-            fileCache.close()
+            try {
+                fileCache.close()
+            } finally {
+                pathClaims?.release(fileCache.path, this)
+            }
             NO_CACHE_AND_NO_WRITE
         }
     }
 
+    /**
+     * Claim given path for this store. If another store holds the claim, first flush all
+     * caches of this store, so that it does not hold any claims while waiting.
+     */
+    @Throws(IOException::class)
+    private fun claimPath(path: Path) {
+        val claims = pathClaims ?: return
+        if (!claims.tryClaim(path, this)) {
+            logger.debug("Waiting for other worker to finish writing to {}", path)
+            flush()
+            try {
+                time("write.claim") { claims.claim(path, this) }
+            } catch (ex: InterruptedException) {
+                Thread.currentThread().interrupt()
+                throw InterruptedIOException("Interrupted while waiting to write to $path")
+            }
+        }
+    }
+
     @Throws(IOException::class)
     private fun writeSchema(topic: String, path: Path, schema: Schema) = time("write.schema") {
         // Write was successful, finalize the write
@@ -116,35 +169,136 @@ constructor(private val factory: FileStoreFactory, private val accountant: Accou
     }
 
     /**
-     * Ensure that a new filecache can be added. Evict files used longest ago from cache if needed.
+     * Ensure that a new filecache can be added. Evict the file used longest ago from cache if
+     * needed. Offsets are flushed once every half cache size of evictions. With a
+     * [closeExecutor], only the offsets of files that have finished closing are flushed.
      */
     @Throws(IOException::class)
     private fun ensureCapacity() {
-        if (caches.size == maxCacheSize) {
-            val cacheList = ArrayList(caches.values)
-                    .sorted()
-            for (i in 0 until cacheList.size / 2) {
-                val rmCache = cacheList[i]
-                caches.remove(rmCache.path)
-                rmCache.close()
-            }
+        if (caches.size < maxCacheSize) {
+            return
+        }
+        val iterator = caches.values.iterator()
+        while (caches.size >= maxCacheSize) {
+            val rmCache = iterator.next()
+            iterator.remove()
+            cacheEvictions++
+            evictionsSinceFlush++
+            closeCache(rmCache)
+        }
+        if (closeExecutor != null) {
+            removeClosed()
+        }
+        if (evictionsSinceFlush >= maxOf(maxCacheSize / 2, 1)) {
+            evictionsSinceFlush = 0
             accountant.flush()
         }
     }
 
+    /**
+     * Close given cache and release its path claim. If a [closeExecutor] is set, this is done
+     * asynchronously. If the executor is saturated, the cache is closed in the current thread.
+     */
     @Throws(IOException::class)
-    override fun flush() {
+    private fun closeCache(cache: FileCache) {
+        val closeTask = Runnable {
+            try {
+                cache.close()
+            } finally {
+                pathClaims?.release(cache.path, this)
+            }
+        }
+        if (closeExecutor == null) {
+            closeTask.run()
+        } else {
+            pendingCloses[cache.path] = closeExecutor.submit(closeTask)
+        }
+    }
+
+    /** Remove any asynchronous closes that have finished, and log if any of them failed. */
+    @Throws(IOException::class)
+    private fun removeClosed() {
+        val iterator = pendingCloses.entries.iterator()
+        while (iterator.hasNext()) {
+            val (path, future) = iterator.next()
+            if (future.isDone) {
+                iterator.remove()
+                awaitCloseLogged(path, future)
+            }
+        }
+    }
+
+    /**
+     * Wait for the asynchronous close of given path to finish. A failed close is logged
+     * instead of failing the current write: the offsets of that file were not committed, so
+     * its records will be processed again.
+     */
+    @Throws(InterruptedIOException::class)
+    private fun awaitCloseLogged(path: Path, future: Future<*>) {
         try {
-            caches.values.parallelStream()
-                    .forEach(FileCache::close)
-            accountant.flush()
-        } finally {
-            caches.clear()
+            awaitClose(future)
+        } catch (ex: InterruptedIOException) {
+            throw ex
+        } catch (ex: IOException) {
+            logger.error("Failed to close file {}", path, ex)
+        }
+    }
+
+    @Throws(IOException::class)
+    private fun awaitClose(future: Future<*>) {
+        try {
+            time("write.awaitClose") { future.get() }
+        } catch (ex: ExecutionException) {
+            val cause = ex.cause
+            throw cause as? IOException ?: IOException("Failed to close file", cause)
+        } catch (ex: InterruptedException) {
+            Thread.currentThread().interrupt()
+            throw InterruptedIOException("Interrupted while closing file")
+        }
+    }
+
+    /** Wait for all asynchronous closes to finish. */
+    @Throws(IOException::class)
+    private fun awaitAllClosed() {
+        var exception: IOException? = null
+        pendingCloses.values.forEach { future ->
+            try {
+                awaitClose(future)
+            } catch (ex: IOException) {
+                logger.error("Failed to close file", ex)
+                exception = exception ?: ex
+            }
+        }
+        pendingCloses.clear()
+        exception?.let { throw it }
+    }
+
+    @Throws(IOException::class)
+    override fun flush() {
+        if (closeExecutor == null) {
+            try {
+                caches.values.parallelStream()
+                        .forEach(FileCache::close)
+            } finally {
+                pathClaims?.let { claims -> caches.keys.forEach { claims.release(it, this) } }
+                caches.clear()
+            }
+        } else {
+            try {
+                caches.values.forEach { closeCache(it) }
+            } finally {
+                caches.clear()
+                awaitAllClosed()
+            }
         }
+        evictionsSinceFlush = 0
+        accountant.flush()
     }
 
     @Throws(IOException::class)
     override fun close() {
+        logger.debug("File cache used {} times, opened {} files and evicted {} files",
+                cacheHits, cacheMisses, cacheEvictions)
         flush()
         tmpDir.close()
     }
@@ -19,6 +19,7 @@ package org.radarbase.output.worker
 import org.radarbase.output.FileStoreFactory
 import org.radarbase.output.accounting.Accountant
 import org.radarbase.output.accounting.OffsetRangeSet
+import org.radarbase.output.accounting.RemoteLockManager
 import org.radarbase.output.source.TopicFileList
 import org.radarbase.output.util.TimeUtil.durationSince
 import org.slf4j.LoggerFactory
@@ -35,21 +36,23 @@ import java.util.concurrent.atomic.LongAdder
  * - Recursively scans target directory for any avro files
  *    - Deduces the topic name from two directories up
  *    - Continue until all files have been scanned
- * - In separate threads, start worker for all topics
- *    - Acquire a lock before processing to avoid multiple processing of files
+ * - In batches of topics, acquire locks and load offsets in bulk to avoid multiple processing
+ *   of files
+ * - On a shared thread pool, start a worker for each locked topic. The next batch is locked
+ *   while the topics of the current batch are still processed.
+ *    - Optionally, split the files of a topic by partition over multiple workers
  */
 class RadarKafkaRestructure(
         private val fileStoreFactory: FileStoreFactory
 ): Closeable {
     private val sourceStorage = fileStoreFactory.sourceStorage
 
-    private val lockManager = fileStoreFactory.remoteLockManager
-
     private val isClosed = AtomicBoolean(false)
 
     private val excludeTopics: Set<String>
     private val maxFilesPerTopic: Int
     private val minimumFileAge: Duration
+    private val partitionWorkers: Int
 
     init {
         val config = fileStoreFactory.config
@@ -61,8 +64,12 @@ class RadarKafkaRestructure(
         val workerConfig = config.worker
         maxFilesPerTopic = workerConfig.maxFilesPerTopic ?: Int.MAX_VALUE
         minimumFileAge = Duration.ofSeconds(workerConfig.minimumFileAge.coerceAtLeast(0L))
+        partitionWorkers = workerConfig.partitionWorkers
     }
 
+    private val topicProcessor = TopicBatchProcessor(
+            fileStoreFactory, fileStoreFactory.config.worker.topicBatchSize, isClosed)
+
     val processedFileCount = LongAdder()
     val processedRecordsCount = LongAdder()
 
@@ -77,55 +84,77 @@ class RadarKafkaRestructure(
 
         logger.info("{} topics found", paths.size)
 
-        paths.parallelStream()
-                .forEach { p ->
-                    try {
-                        val (fileCount, recordCount) = mapTopic(p)
-                        processedFileCount.add(fileCount)
-                        processedRecordsCount.add(recordCount)
-                    } catch (ex: Exception) {
-                        logger.warn("Failed to map topic", ex)
-                    }
-                }
+        topicProcessor.process(paths) { topic, topicPath, lock ->
+            val (fileCount, recordCount) = mapTopic(topic, topicPath, lock)
+            processedFileCount.add(fileCount)
+            processedRecordsCount.add(recordCount)
+        }
     }
 
-    private fun mapTopic(topicPath: Path): ProcessingStatistics {
+    private fun mapTopic(
+            topic: String,
+            topicPath: Path,
+            lock: RemoteLockManager.RemoteLock,
+    ): ProcessingStatistics {
         if (isClosed.get()) {
             return ProcessingStatistics(0L, 0L)
         }
 
-        val topic = topicPath.fileName.toString()
-
         return try {
-            lockManager.tryRunLocked(topic) {
-                Accountant(fileStoreFactory, topic).use { accountant ->
-                    startWorker(topic, topicPath, accountant, accountant.offsets)
-                }
+            Accountant(fileStoreFactory, topic).use { accountant ->
+                startWorker(topic, topicPath, accountant, accountant.offsets, lock)
             }
         } catch (ex: IOException) {
             logger.error("Failed to map files of topic {}", topic, ex)
-            null
-        } ?: ProcessingStatistics(0L, 0L)
+            ProcessingStatistics(0L, 0L)
+        }
     }
 
     private fun startWorker(
             topic: String,
             topicPath: Path,
             accountant: Accountant,
-            seenFiles: OffsetRangeSet): ProcessingStatistics {
-        return RestructureWorker(sourceStorage, accountant, fileStoreFactory, isClosed).use { worker ->
-            try {
-                val topicPaths = TopicFileList(topic, sourceStorage.walker.walkRecords(topic, topicPath)
-                        .filter { f -> !seenFiles.contains(f.range)
-                                && f.lastModified.durationSince() >= minimumFileAge }
-                        .take(maxFilesPerTopic)
-                        .toList())
-
-                if (topicPaths.numberOfFiles > 0) {
-                    worker.processPaths(topicPaths)
+            seenFiles: OffsetRangeSet,
+            lock: RemoteLockManager.RemoteLock): ProcessingStatistics {
+        val topicPaths = try {
+            TopicFileList(topic, sourceStorage.walker.walkRecords(topic, topicPath)
+                    .filter { f -> !seenFiles.contains(f.range)
+                            && f.lastModified.durationSince() >= minimumFileAge }
+                    .take(maxFilesPerTopic)
+                    .toList())
+        } catch (ex: Exception) {
+            logger.error("Failed to map files of topic {}", topic, ex)
+            return ProcessingStatistics(0L, 0L)
+        }
+
+        if (topicPaths.numberOfFiles == 0) {
+            return ProcessingStatistics(0L, 0L)
+        }
+
+        val partitionPaths = topicPaths.splitByPartition(partitionWorkers)
+        if (partitionPaths.size == 1) {
+            return processPaths(topicPaths, accountant, lock, null)
+        }
+
+        logger.info("Processing topic {} with {} partition workers", topic, partitionPaths.size)
+        val pathClaims = TargetPathClaims()
+        return partitionPaths.parallelStream()
+                .map { paths -> processPaths(paths, accountant, lock, pathClaims) }
+                .reduce(ProcessingStatistics(0L, 0L)) { a, b ->
+                    ProcessingStatistics(a.fileCount + b.fileCount, a.recordCount + b.recordCount)
                 }
+    }
+
+    private fun processPaths(
+            topicPaths: TopicFileList,
+            accountant: Accountant,
+            lock: RemoteLockManager.RemoteLock,
+            pathClaims: TargetPathClaims?): ProcessingStatistics {
+        return RestructureWorker(sourceStorage, accountant, fileStoreFactory, isClosed, lock, pathClaims).use { worker ->
+            try {
+                worker.processPaths(topicPaths)
             } catch (ex: Exception) {
-                logger.error("Failed to map files of topic {}", topic, ex)
+                logger.error("Failed to map files of topic {}", topicPaths.topic, ex)
             }
 
             ProcessingStatistics(worker.processedFileCount, worker.processedRecordsCount)
@@ -2,6 +2,7 @@ package org.radarbase.output.worker
 
 import com.fasterxml.jackson.databind.JsonMappingException
 import org.apache.avro.file.DataFileReader
+import org.apache.avro.Schema
 import org.apache.avro.file.SeekableInput
 import org.apache.avro.generic.GenericData
 import org.apache.avro.generic.GenericDatumReader
@@ -9,7 +10,11 @@ import org.apache.avro.generic.GenericRecord
 import org.radarbase.output.FileStoreFactory
 import org.radarbase.output.accounting.Accountant
 import org.radarbase.output.accounting.OffsetRangeSet
+import org.radarbase.output.accounting.RemoteLockManager
+import org.radarbase.output.cleaner.ExtractionManifest
+import org.radarbase.output.cleaner.ExtractionManifestStore
 import org.radarbase.output.path.RecordPathFactory
+import org.radarbase.output.source.PrefetchingSourceStorageReader
 import org.radarbase.output.source.SourceStorage
 import org.radarbase.output.source.TopicFile
 import org.radarbase.output.source.TopicFileList
@@ -20,6 +25,7 @@ import org.slf4j.LoggerFactory
 import java.io.Closeable
 import java.io.IOException
 import java.io.UncheckedIOException
+import java.nio.file.Path
 import java.text.NumberFormat
 import java.util.concurrent.ThreadLocalRandom
 import java.util.concurrent.TimeUnit
@@ -30,15 +36,28 @@ internal class RestructureWorker(
         storage: SourceStorage,
         private val accountant: Accountant,
         fileStoreFactory: FileStoreFactory,
-        private val closed: AtomicBoolean
+        private val closed: AtomicBoolean,
+        private val lock: RemoteLockManager.RemoteLock,
+        pathClaims: TargetPathClaims? = null,
 ): Closeable {
     var processedFileCount: Long = 0
     var processedRecordsCount: Long = 0
-    private val reader = storage.createReader()
+    private val reader = storage.createReader().let { reader ->
+        val workerConfig = fileStoreFactory.config.worker
+        if (workerConfig.prefetchFiles > 0) {
+            PrefetchingSourceStorageReader(reader, workerConfig.prefetchFiles, workerConfig.prefetchBytes)
+        } else reader
+    }
     private val pathFactory: RecordPathFactory = fileStoreFactory.pathFactory
     private val batchSize = fileStoreFactory.config.worker.cacheOffsetsSize
 
-    private val cacheStore = fileStoreFactory.newFileCacheStore(accountant)
+    private val cacheStore = fileStoreFactory.newFileCacheStore(accountant, pathClaims)
+
+    private val targetStorage = fileStoreFactory.targetStorage
+    private val manifestStore = if (fileStoreFactory.config.cleaner.manifests) {
+        ExtractionManifestStore(fileStoreFactory.redisHolder)
+    } else null
+    private val pendingManifests = PendingManifests()
 
     fun processPaths(topicPaths: TopicFileList) {
         val numFiles = topicPaths.numberOfFiles
@@ -60,6 +79,8 @@ internal class RestructureWorker(
         val seenOffsets = accountant.offsets
                 .withFactory { ReadOnlyFunctionalValue(it) }
 
+        reader.prefetch(topicPaths.files)
+
         val progressBar = ProgressBar(topic, totalProgress, 50, 5, TimeUnit.SECONDS)
         progressBar.update(0)
 
@@ -71,6 +92,10 @@ internal class RestructureWorker(
                 if (closed.get()) {
                     break
                 }
+                if (!lock.isActive) {
+                    logger.warn("Lost lock of topic {}, stopping processing", topic)
+                    break
+                }
                 val processedSize = try {
                     this.processFile(file, progressBar, seenOffsets)
                             .also { size ->
@@ -90,6 +115,7 @@ internal class RestructureWorker(
                 if (currentSize >= batchSize) {
                     currentSize = 0
                     cacheStore.flush()
+                    writeManifests()
                 }
 
                 processedFileCount++
@@ -123,15 +149,16 @@ internal class RestructureWorker(
                 return 0L
             }
             val transaction = Accountant.Transaction(file.range.topicPartition, offset, file.lastModified)
+            val seenCheck = time("accounting.check") { SeenOffsetsCheck(file, seenOffsets) }
+            // only files without any processed records get a complete manifest
+            val manifest = if (manifestStore != null && seenCheck.isUnseen) ExtractionManifest.Builder(offset) else null
             extractRecords(input) { records ->
                 val recordsInFile = records.mapIndexed { relativeOffset, record ->
                     transaction.offset = offset + relativeOffset
-                    val alreadyContains = time("accounting.check") {
-                        seenOffsets.contains(file.range.topicPartition, transaction.offset, transaction.lastModified)
-                    }
-                    if (!alreadyContains) {
+                    if (!seenCheck.contains(transaction.offset)) {
                         // Get the fields
-                        this.writeRecord(transaction, record)
+                        val path = this.writeRecord(transaction, record)
+                        manifest?.add(path)
                     }
                     processedRecordsCount++
                     if (file.size != null) {
@@ -139,19 +166,25 @@ internal class RestructureWorker(
                     }
                 }.count().toLong()
 
+                if (manifest != null && manifest.count == file.range.range.size) {
+                    pendingManifests.add(file, manifest.build())
+                }
+
                 recordsInFile
             }
         }
     }
 
+    /** Write a record to its target path, and return that path. */
     @Throws(IOException::class)
     private fun writeRecord(
             transaction: Accountant.Transaction,
-            record: GenericRecord) {
+            record: GenericRecord): Path {
         var currentSuffix = 0
+        var path: Path
         do {
-            val (path) = pathFactory.getRecordOrganization(
-                    transaction.topicPartition.topic, record, currentSuffix)
+            path = pathFactory.getRecordOrganization(
+                    transaction.topicPartition.topic, record, currentSuffix).path
 
             // Write data
             val response = time("write") {
@@ -160,6 +193,111 @@ internal class RestructureWorker(
 
             currentSuffix += 1
         } while (!response.isSuccessful)
+        return path
+    }
+
+    /**
+     * Store the manifests of files of which all offsets have been committed. Must be called
+     * after flushing the cache store.
+     */
+    private fun writeManifests() {
+        if (manifestStore == null || pendingManifests.isEmpty) {
+            return
+        }
+        val committed = try {
+            pendingManifests.drainCommitted(accountant.offsets, manifestStore::rewrites) { targetStorage.status(it)?.size }
+        } catch (ex: IOException) {
+            logger.warn("Failed to read target status for extraction manifests: {}", ex.toString())
+            return
+        }
+        committed.forEach { (topic, manifests) ->
+            try {
+                time("write.manifests") { manifestStore.write(topic, manifests) }
+            } catch (ex: IOException) {
+                logger.warn("Failed to store extraction manifests of topic {}: {}", topic, ex.toString())
+            }
+        }
+    }
+
+    /**
+     * Manifests of files that were completely written, but of which the offsets may not be
+     * committed yet. This class is not thread-safe.
+     */
+    class PendingManifests {
+        private val manifests: MutableList<Pair<TopicFile, ExtractionManifest>> = ArrayList()
+
+        val isEmpty: Boolean
+            get() = manifests.isEmpty()
+
+        fun add(file: TopicFile, manifest: ExtractionManifest) {
+            manifests += Pair(file, manifest)
+        }
+
+        /**
+         * Remove all pending manifests, and return those of files whose offsets are contained
+         * in [committedOffsets], by topic and source path. The target sizes of the manifests
+         * are set with [targetSize] and their rewrite counts with the [targetRewrites] of their
+         * topic. Manifests with a target without size are omitted.
+         */
+        @Throws(IOException::class)
+        fun drainCommitted(
+                committedOffsets: OffsetRangeSet,
+                targetRewrites: (topic: String) -> Map<Path, Long>,
+                targetSize: (Path) -> Long?,
+        ): Map<String, Map<Path, ExtractionManifest>> {
+            val sizes = HashMap<Path, Long?>()
+            fun sizeOf(path: Path): Long? = if (path in sizes) sizes[path] else targetSize(path).also { sizes[path] = it }
+            val rewrites = HashMap<String, Map<Path, Long>>()
+
+            try {
+                return manifests
+                        .filter { (file, _) -> file.range in committedOffsets }
+                        .mapNotNull { (file, manifest) ->
+                            val topicRewrites = rewrites.getOrPut(file.topic) { targetRewrites(file.topic) }
+                            val targets = manifest.targets.mapValues { (path, target) ->
+                                target.copy(
+                                        size = sizeOf(path) ?: return@mapNotNull null,
+                                        rewrites = topicRewrites[path] ?: 0L)
+                            }
+                            Pair(file, manifest.copy(targets = targets))
+                        }
+                        .groupBy({ it.first.topic }, { Pair(it.first.path, it.second) })
+                        .mapValues { (_, topicManifests) -> topicManifests.toMap() }
+            } finally {
+                manifests.clear()
+            }
+        }
+    }
+
+    /**
+     * Checks whether offsets of a file were already seen. The offset range of the file is
+     * classified once. If it is fully unseen or fully seen, no further checks are needed,
+     * otherwise only the unseen ranges are walked. Offsets must be checked in increasing order.
+     * Offsets beyond the expected range of the file are checked individually.
+     */
+    class SeenOffsetsCheck(
+            private val file: TopicFile,
+            private val seenOffsets: OffsetRangeSet,
+    ) {
+        private val rangeTo = file.range.range.to
+        private val unseen = if (rangeTo != null) seenOffsets.uncovered(file.range) else emptyList()
+        private var unseenIndex = 0
+
+        /** Whether none of the offsets in the expected range of the file were seen. */
+        val isUnseen: Boolean = rangeTo != null && unseen.size == 1
+                && unseen[0].from == file.range.range.from && unseen[0].to == rangeTo
+
+        fun contains(offset: Long): Boolean {
+            if (rangeTo == null || offset > rangeTo) {
+                return time("accounting.check") {
+                    seenOffsets.contains(file.range.topicPartition, offset, file.lastModified)
+                }
+            }
+            while (unseenIndex < unseen.size && unseen[unseenIndex].to!! < offset) {
+                unseenIndex++
+            }
+            return unseenIndex >= unseen.size || offset < unseen[unseenIndex].from
+        }
     }
 
     private fun generateBatchSize(): Long {
@@ -170,18 +308,30 @@ internal class RestructureWorker(
     override fun close() {
         reader.close()
         cacheStore.close()
+        writeManifests()
     }
 
     companion object {
         private val logger = LoggerFactory.getLogger(RestructureWorker::class.java)
 
-        fun <T> extractRecords(input: SeekableInput, processing: (Sequence<GenericRecord>) -> T): T {
+        /**
+         * Process the records of given input file. If a [projection] is given, it is called with
+         * the schema of the file. If it returns a reader schema, records are read with that schema,
+         * so that fields that are not part of the reader schema are skipped while decoding.
+         */
+        fun <T> extractRecords(
+                input: SeekableInput,
+                projection: ((writerSchema: Schema) -> Schema?)? = null,
+                processing: (Sequence<GenericRecord>) -> T,
+        ): T {
             var tmpRecord: GenericRecord? = null
             val genericData = GenericData().apply {
                 isFastReaderEnabled = true
             }
 
-            return DataFileReader(input, GenericDatumReader<GenericRecord>(null, null, genericData)).use { reader ->
+            val datumReader = GenericDatumReader<GenericRecord>(null, null, genericData)
+            return DataFileReader(input, datumReader).use { reader ->
+                projection?.invoke(reader.schema)?.let { datumReader.expected = it }
                 processing(generateSequence {
                     time("read") {
                         if (reader.hasNext()) reader.next(tmpRecord) else null
@@ -0,0 +1,44 @@
+package org.radarbase.output.worker
+
+import java.nio.file.Path
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
+
+/**
+ * Claims on target paths, shared between workers that process the same topic in parallel.
+ * A target path can only be opened by one owner at a time, so that two file caches never
+ * rewrite the same output file concurrently. An owner that waits for a claim should not hold
+ * any other claims, to avoid deadlocks.
+ */
+class TargetPathClaims {
+    private val claims: MutableMap<Path, Any> = HashMap()
+    private val lock = ReentrantLock()
+    private val released = lock.newCondition()
+
+    /**
+     * Try to claim given path.
+     * @return true if the path is now claimed by given owner, false if another owner holds it.
+     */
+    fun tryClaim(path: Path, owner: Any): Boolean = lock.withLock {
+        val currentOwner = claims.putIfAbsent(path, owner)
+        currentOwner == null || currentOwner === owner
+    }
+
+    /**
+     * Claim given path, waiting until it is released by its current owner.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    @Throws(InterruptedException::class)
+    fun claim(path: Path, owner: Any) = lock.withLock {
+        while (!tryClaim(path, owner)) {
+            released.await()
+        }
+    }
+
+    /** Release a claim on given path, if it is held by given owner. */
+    fun release(path: Path, owner: Any) = lock.withLock {
+        if (claims.remove(path, owner)) {
+            released.signalAll()
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package org.radarbase.output.worker
+
+import org.radarbase.output.FileStoreFactory
+import org.radarbase.output.accounting.Accountant
+import org.radarbase.output.accounting.RemoteLockManager
+import org.slf4j.LoggerFactory
+import java.io.IOException
+import java.nio.file.Path
+import java.util.concurrent.Executor
+import java.util.concurrent.ExecutorCompletionService
+import java.util.concurrent.ForkJoinPool
+import java.util.concurrent.atomic.AtomicBoolean
+
+/**
+ * Locks topics in batches, and processes each locked topic on a shared [executor]. Batches
+ * overlap: the next batch is locked as soon as no more than [batchSize] topics of earlier
+ * batches are waiting or running. A slow topic therefore does not keep other threads idle,
+ * while at most two batches of topics are locked at a time.
+ */
+internal class TopicBatchProcessor(
+        private val fileStoreFactory: FileStoreFactory,
+        private val batchSize: Int,
+        private val isClosed: AtomicBoolean,
+        private val executor: Executor = ForkJoinPool.commonPool(),
+) {
+    /**
+     * Lock and process given topic directories. The directory name is taken as topic name.
+     * The lock of a topic is released after [action] has processed it. Topics that are locked
+     * elsewhere are skipped. This returns when all locked topics have been processed.
+     */
+    @Throws(InterruptedException::class)
+    fun process(
+            topicPaths: List<Path>,
+            action: (topic: String, topicPath: Path, lock: RemoteLockManager.RemoteLock) -> Unit,
+    ) {
+        val completionService = ExecutorCompletionService<Unit>(executor)
+        var numPending = 0
+
+        for (batch in topicPaths.chunked(batchSize)) {
+            while (numPending > batchSize) {
+                completionService.take()
+                numPending--
+            }
+            if (isClosed.get()) {
+                break
+            }
+
+            val topics = batch.associateBy { it.fileName.toString() }
+            val locks = try {
+                Accountant.lockTopics(fileStoreFactory, topics.keys)
+            } catch (ex: IOException) {
+                logger.error("Failed to lock topics", ex)
+                continue
+            }
+
+            locks.forEach { (topic, lock) ->
+                completionService.submit {
+                    try {
+                        lock.use { action(topic, topics.getValue(topic), lock) }
+                    } catch (ex: Exception) {
+                        logger.warn("Failed to map topic", ex)
+                    }
+                }
+                numPending++
+            }
+        }
+
+        repeat(numPending) {
+            completionService.take()
+        }
+    }
+
+    companion object {
+        private val logger = LoggerFactory.getLogger(TopicBatchProcessor::class.java)
+    }
+}
@@ -0,0 +1,137 @@
+package org.radarbase.output
+
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.io.TempDir
+import org.radarbase.output.accounting.OffsetBinaryFilePersistence
+import org.radarbase.output.accounting.OffsetFilePersistence
+import org.radarbase.output.accounting.TopicPartition
+import org.radarbase.output.accounting.TopicPartitionOffsetRange
+import org.radarbase.output.config.LocalConfig
+import org.radarbase.output.target.LocalTargetStorage
+import org.radarbase.output.target.TargetStorage
+import org.radarbase.output.util.FlushScheduler
+import java.io.IOException
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.Paths
+import java.time.Instant
+
+class OffsetBinaryFileTest {
+    private lateinit var root: Path
+    private lateinit var targetStorage: TargetStorage
+    private lateinit var offsetPersistence: OffsetBinaryFilePersistence
+    private lateinit var flushScheduler: FlushScheduler
+    private val offsetsKey = Paths.get("offsets", "a.json")
+    private val lastModified = Instant.now()
+
+    @BeforeEach
+    fun setUp(@TempDir dir: Path) {
+        root = dir
+        targetStorage = LocalTargetStorage(LocalConfig())
+        flushScheduler = FlushScheduler()
+        offsetPersistence = OffsetBinaryFilePersistence(targetStorage, flushScheduler, root)
+    }
+
+    @AfterEach
+    fun tearDown() {
+        flushScheduler.close()
+    }
+
+    @Test
+    fun readEmpty() {
+        assertNull(offsetPersistence.read(offsetsKey))
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun writeSnapshotAndJournal() {
+        offsetPersistence.writer(offsetsKey).use { writer ->
+            writer.add(range("a+0+0+1"))
+            writer.add(range("a+1+5+6"))
+        }
+        val snapshot = root.resolve("offsets/a.offsets")
+        val journal = root.resolve("offsets/a.offsets.journal")
+        assertTrue(Files.exists(snapshot))
+        assertFalse(Files.exists(journal))
+
+        val startSet = requireNotNull(offsetPersistence.read(offsetsKey))
+        offsetPersistence.writer(offsetsKey, startSet).use { writer ->
+            writer.add(range("a+0+2+3"))
+        }
+        assertTrue(Files.exists(journal))
+        offsetPersistence.writer(offsetsKey, offsetPersistence.read(offsetsKey)).use { writer ->
+            writer.add(range("a+2+0+0"))
+        }
+
+        val set = requireNotNull(offsetPersistence.read(offsetsKey))
+        assertTrue(set.contains(range("a+0+0+3")))
+        assertTrue(set.contains(range("a+1+5+6")))
+        assertTrue(set.contains(range("a+2+0+0")))
+        assertFalse(set.contains(range("a+0+4+4")))
+        assertEquals(1, set.size(TopicPartition("a", 0)))
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun snapshotReplacesJournal() {
+        offsetPersistence.writer(offsetsKey).use { it.add(range("a+0+0+1")) }
+        offsetPersistence.writer(offsetsKey, offsetPersistence.read(offsetsKey)).use {
+            it.add(range("a+0+4+5"))
+        }
+        val journal = root.resolve("offsets/a.offsets.journal")
+        assertTrue(Files.exists(journal))
+
+        // removing offsets cannot be journaled
+        offsetPersistence.writer(offsetsKey, offsetPersistence.read(offsetsKey)).use {
+            it.remove(range("a+0+4+5"))
+        }
+        assertFalse(Files.exists(journal))
+
+        val set = requireNotNull(offsetPersistence.read(offsetsKey))
+        assertTrue(set.contains(range("a+0+0+1")))
+        assertFalse(set.contains(range("a+0+4+5")))
+    }
+
+    @Test
+    fun ignoreStaleAndTruncatedJournal() {
+        offsetPersistence.writer(offsetsKey).use { it.add(range("a+0+0+1")) }
+        offsetPersistence.writer(offsetsKey, offsetPersistence.read(offsetsKey)).use {
+            it.add(range("a+0+2+3"))
+        }
+        val journal = root.resolve("offsets/a.offsets.journal")
+        val journalBytes = Files.readAllBytes(journal)
+
+        // interrupted append
+        Files.write(journal, journalBytes + journalBytes.copyOf(journalBytes.size - 1))
+        val set = requireNotNull(offsetPersistence.read(offsetsKey))
+        assertTrue(set.contains(range("a+0+0+3")))
+
+        // new snapshot without the journal
+        offsetPersistence.writer(offsetsKey).use { it.add(range("a+0+0+1")) }
+        Files.write(journal, journalBytes)
+        val newSet = requireNotNull(offsetPersistence.read(offsetsKey))
+        assertTrue(newSet.contains(range("a+0+0+1")))
+        assertFalse(newSet.contains(range("a+0+2+3")))
+    }
+
+    @Test
+    fun migrateCsv() {
+        OffsetFilePersistence(targetStorage, flushScheduler, root).writer(offsetsKey).use {
+            it.add(range("a+0+0+1"))
+        }
+        assertTrue(Files.exists(root.resolve("offsets/a.offsets.csv")))
+
+        val startSet = requireNotNull(offsetPersistence.read(offsetsKey))
+        assertTrue(startSet.contains(range("a+0+0+1")))
+        offsetPersistence.writer(offsetsKey, startSet).use { it.add(range("a+0+2+3")) }
+
+        assertTrue(Files.exists(root.resolve("offsets/a.offsets")))
+        val set = requireNotNull(offsetPersistence.read(offsetsKey))
+        assertTrue(set.contains(range("a+0+0+3")))
+    }
+
+    private fun range(filename: String) = TopicPartitionOffsetRange.parseFilename(filename, lastModified)
+}
@@ -16,6 +16,7 @@
 
 package org.radarbase.output
 
+import org.junit.jupiter.api.AfterEach
 import org.junit.jupiter.api.Assertions.*
 import org.junit.jupiter.api.BeforeEach
 import org.junit.jupiter.api.Test
@@ -27,6 +28,7 @@ import org.radarbase.output.accounting.TopicPartitionOffsetRange
 import org.radarbase.output.config.LocalConfig
 import org.radarbase.output.target.LocalTargetStorage
 import org.radarbase.output.target.TargetStorage
+import org.radarbase.output.util.FlushScheduler
 import java.io.IOException
 import java.nio.file.Files
 import java.nio.file.Path
@@ -36,6 +38,7 @@ class OffsetRangeFileTest {
     private lateinit var testFile: Path
     private lateinit var targetStorage: TargetStorage
     private lateinit var offsetPersistence: OffsetPersistenceFactory
+    private lateinit var flushScheduler: FlushScheduler
     private val lastModified = Instant.now()
 
     @BeforeEach
@@ -44,7 +47,13 @@ class OffsetRangeFileTest {
         testFile = dir.resolve("test")
         Files.createFile(testFile)
         targetStorage = LocalTargetStorage(LocalConfig())
-        offsetPersistence = OffsetFilePersistence(targetStorage)
+        flushScheduler = FlushScheduler()
+        offsetPersistence = OffsetFilePersistence(targetStorage, flushScheduler)
+    }
+
+    @AfterEach
+    fun tearDown() {
+        flushScheduler.close()
     }
 
     @Test
@@ -2,6 +2,7 @@ package org.radarbase.output
 
 import org.junit.jupiter.api.Assertions.*
 import org.junit.jupiter.api.Test
+import org.radarbase.output.accounting.Accountant
 import org.radarbase.output.accounting.OffsetRangeSet
 import org.radarbase.output.accounting.TopicPartition
 import org.radarbase.output.accounting.TopicPartitionOffsetRange
@@ -45,4 +46,31 @@ class OffsetRangeSetTest {
         set.add(ap)
         assertEquals(1, set.size(topicPartition))
     }
+
+    @Test
+    fun addLedger() {
+        val otherPartition = TopicPartition("", 1)
+        val later = lastModified.plusSeconds(10)
+        val ledger = Accountant.Ledger()
+        assertTrue(ledger.isEmpty)
+        // two runs in partition 0, interleaved with partition 1, and an out of order offset
+        listOf(0L, 1L, 2L).forEach { ledger.add(Accountant.Transaction(topicPartition, it, lastModified)) }
+        ledger.add(Accountant.Transaction(otherPartition, 10, lastModified))
+        listOf(3L, 4L).forEach { ledger.add(Accountant.Transaction(topicPartition, it, later)) }
+        ledger.add(Accountant.Transaction(otherPartition, 5, lastModified))
+        ledger.add(Accountant.Transaction(topicPartition, 8, lastModified))
+        assertFalse(ledger.isEmpty)
+
+        val set = OffsetRangeSet()
+        set.add(TopicPartitionOffsetRange(topicPartition, OffsetRangeSet.Range(6, 7, lastModified)))
+        set.addAll(ledger)
+
+        assertEquals(2, set.size(topicPartition), set.toString())
+        assertTrue(set.contains(TopicPartitionOffsetRange(topicPartition, OffsetRangeSet.Range(0, 4, lastModified))))
+        assertTrue(set.contains(TopicPartitionOffsetRange(topicPartition, OffsetRangeSet.Range(6, 8, lastModified))))
+        assertFalse(set.contains(TopicPartitionOffsetRange(topicPartition, OffsetRangeSet.Range(5, 5, lastModified))))
+        assertEquals(2, set.size(otherPartition))
+        assertTrue(set.contains(TopicPartitionOffsetRange(otherPartition, OffsetRangeSet.Range(5, 5, lastModified))))
+        assertTrue(set.contains(TopicPartitionOffsetRange(otherPartition, OffsetRangeSet.Range(10, 10, lastModified))))
+    }
 }
@@ -3,6 +3,7 @@ package org.radarbase.output.accounting
 import org.junit.jupiter.api.Assertions.*
 import org.junit.jupiter.api.Test
 import java.time.Instant
+import kotlin.random.Random
 
 internal class OffsetIntervalsTest {
     private val lastModified = Instant.now()
@@ -28,6 +29,132 @@ internal class OffsetIntervalsTest {
         }
     }
 
+    @Test
+    fun testUncovered() {
+        OffsetIntervals().run {
+            assertEquals(listOf(OffsetRangeSet.Range(0, 10, lastModified)),
+                    uncovered(OffsetRangeSet.Range(0, 10, lastModified)))
+            add(OffsetRangeSet.Range(2, 3, lastModified))
+            add(OffsetRangeSet.Range(5, 6, futureModified))
+            add(OffsetRangeSet.Range(8, 12, lastModified))
+            assertEquals(listOf(
+                    OffsetRangeSet.Range(0, 1, lastModified),
+                    OffsetRangeSet.Range(4, 4, lastModified),
+                    OffsetRangeSet.Range(7, 7, lastModified)),
+                    uncovered(OffsetRangeSet.Range(0, 10, lastModified)))
+            assertEquals(listOf(
+                    OffsetRangeSet.Range(3, 4, futureModified),
+                    OffsetRangeSet.Range(7, 7, futureModified)),
+                    uncovered(OffsetRangeSet.Range(3, 7, futureModified)))
+            assertEquals(emptyList<OffsetRangeSet.Range>(),
+                    uncovered(OffsetRangeSet.Range(9, 11, lastModified)))
+            assertEquals(listOf(OffsetRangeSet.Range(13, 14, lastModified)),
+                    uncovered(OffsetRangeSet.Range(10, 14, lastModified)))
+        }
+    }
+
+    @Test
+    fun testAddAll() {
+        val random = Random(1L)
+        repeat(20) {
+            val existing = List(random.nextInt(50)) {
+                val from = random.nextLong(1000)
+                OffsetRangeSet.Range(from, from + random.nextLong(10), lastModified.plusNanos(random.nextLong(5)))
+            }
+            val added = List(random.nextInt(50)) {
+                val from = random.nextLong(1000)
+                OffsetRangeSet.Range(from, from + random.nextLong(10), lastModified.plusNanos(random.nextLong(5)))
+            }
+            val expected = OffsetIntervals().apply {
+                existing.forEach { add(it) }
+                added.forEach { add(it) }
+            }
+            val actual = OffsetIntervals().apply {
+                existing.forEach { add(it) }
+                addAll(added)
+            }
+            assertEquals(expected.toList(), actual.toList())
+
+            val actualIntervals = OffsetIntervals().apply {
+                existing.forEach { add(it) }
+                addAll(OffsetIntervals().apply { added.forEach { add(it) } })
+            }
+            assertEquals(expected.toList(), actualIntervals.toList())
+        }
+    }
+
+    @Test
+    fun testLastProcessedPrecision() {
+        OffsetIntervals().run {
+            add(OffsetRangeSet.Range(0, 2, lastModified))
+            assertEquals(listOf(OffsetRangeSet.Range(0, 2, lastModified)), toList())
+            assertTrue(contains(1, lastModified))
+            assertFalse(contains(1, lastModified.plusNanos(1)))
+        }
+    }
+
+    @Test
+    fun testCompact() {
+        OffsetIntervals().run {
+            add(OffsetRangeSet.Range(0, 2, lastModified))
+            add(OffsetRangeSet.Range(5, 6, futureModified))
+            add(OffsetRangeSet.Range(9, 12, lastModified))
+            assertFalse(compact(0))
+            assertTrue(compact(8))
+            assertEquals(listOf(
+                    OffsetRangeSet.Range(0, 7, futureModified),
+                    OffsetRangeSet.Range(9, 12, lastModified)), toList())
+            // next interval starts at the watermark
+            assertTrue(compact(9))
+            assertEquals(listOf(OffsetRangeSet.Range(0, 12, futureModified)), toList())
+            assertTrue(contains(OffsetRangeSet.Range(7, 10, lastModified)))
+            assertFalse(compact(9))
+            assertTrue(compact(20))
+            assertEquals(listOf(OffsetRangeSet.Range(0, 19, futureModified)), toList())
+        }
+        OffsetIntervals().run {
+            add(OffsetRangeSet.Range(0, 2, lastModified))
+            add(OffsetRangeSet.Range(5, 12, lastModified))
+            // interval spanning the watermark is merged with the collapsed interval
+            assertTrue(compact(8))
+            assertEquals(listOf(OffsetRangeSet.Range(0, 12, lastModified)), toList())
+            assertTrue(contains(OffsetRangeSet.Range(3, 6, lastModified)))
+            assertFalse(compact(8))
+        }
+        OffsetIntervals().run {
+            add(OffsetRangeSet.Range(0, 5, lastModified))
+            add(OffsetRangeSet.Range(10, 20, futureModified))
+            add(OffsetRangeSet.Range(30, 40, lastModified))
+            // next interval starts at the watermark
+            assertTrue(compact(10))
+            assertEquals(listOf(
+                    OffsetRangeSet.Range(0, 20, futureModified),
+                    OffsetRangeSet.Range(30, 40, lastModified)), toList())
+            assertTrue(contains(OffsetRangeSet.Range(8, 12, lastModified)))
+        }
+        OffsetIntervals().run {
+            add(OffsetRangeSet.Range(0, 5, futureModified))
+            add(OffsetRangeSet.Range(10, 20, lastModified))
+            // next interval starts just below the watermark
+            assertTrue(compact(11))
+            assertEquals(listOf(OffsetRangeSet.Range(0, 20, futureModified)), toList())
+        }
+    }
+
+    @Test
+    fun testBinaryEncoding() {
+        val intervals = OffsetIntervals().apply {
+            add(OffsetRangeSet.Range(0, 2, lastModified))
+            add(OffsetRangeSet.Range(5, 6, futureModified))
+            add(OffsetRangeSet.Range(1_000_000_000_000, 1_000_000_000_100, lastModified))
+        }
+        assertEquals(intervals.toList(), OffsetIntervals.fromBytes(intervals.toBytes()).toList())
+        assertEquals(emptyList<OffsetRangeSet.Range>(), OffsetIntervals.fromBytes(OffsetIntervals().toBytes()).toList())
+        assertThrows(IllegalArgumentException::class.java) {
+            OffsetIntervals.fromBytes(intervals.toBytes().copyOf(5))
+        }
+    }
+
     @Test
     fun testGapFutureInsert() {
         OffsetIntervals().run {
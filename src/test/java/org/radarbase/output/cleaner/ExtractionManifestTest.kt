@@ -0,0 +1,49 @@
+package org.radarbase.output.cleaner
+
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.assertThrows
+import java.nio.file.Paths
+
+internal class ExtractionManifestTest {
+    @Test
+    fun build() {
+        val a = Paths.get("target/a.csv")
+        val b = Paths.get("target/b.csv")
+        val manifest = ExtractionManifest.Builder(10L).apply {
+            add(a)
+            add(b)
+            add(a)
+        }.build()
+
+        assertEquals(ExtractionManifest(10L, 12L, mapOf(
+                a to ExtractionManifest.Target(2L),
+                b to ExtractionManifest.Target(1L))), manifest)
+    }
+
+    @Test
+    fun readWrite() {
+        val manifest = ExtractionManifest(1000L, 2000L, mapOf(
+                Paths.get("target/a.csv") to ExtractionManifest.Target(400L, 12000L, 3L),
+                Paths.get("target/b.csv") to ExtractionManifest.Target(601L, 0L)))
+
+        assertEquals(manifest, ExtractionManifest.fromBytes(manifest.toBytes()))
+    }
+
+    @Test
+    fun readWithoutRewrites() {
+        val manifest = ExtractionManifest(0L, 1L, mapOf(Paths.get("a") to ExtractionManifest.Target(2L, 10L)))
+        // the first version has no rewrite count, which is the last byte here
+        val bytes = manifest.toBytes()
+        val versionOneBytes = bytes.copyOf(bytes.size - 1).apply { this[0] = 1 }
+        assertEquals(manifest, ExtractionManifest.fromBytes(versionOneBytes))
+    }
+
+    @Test
+    fun readTruncated() {
+        val bytes = ExtractionManifest(0L, 1L, mapOf(Paths.get("a") to ExtractionManifest.Target(2L, 10L))).toBytes()
+        assertThrows<IllegalArgumentException> {
+            ExtractionManifest.fromBytes(bytes.copyOf(bytes.size - 2))
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package org.radarbase.output.cleaner
+
+import com.nhaarman.mockitokotlin2.doReturn
+import com.nhaarman.mockitokotlin2.mock
+import org.apache.avro.Schema
+import org.apache.avro.file.DataFileWriter
+import org.apache.avro.file.SeekableByteArrayInput
+import org.apache.avro.file.SeekableInput
+import org.apache.avro.generic.GenericDatumWriter
+import org.apache.avro.generic.GenericRecord
+import org.apache.avro.generic.GenericRecordBuilder
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertFalse
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.io.TempDir
+import org.radarbase.output.FileStoreFactory
+import org.radarbase.output.accounting.TopicPartitionOffsetRange
+import org.radarbase.output.compression.IdentityCompression
+import org.radarbase.output.config.CleanerConfig
+import org.radarbase.output.config.LocalConfig
+import org.radarbase.output.config.RestructureConfig
+import org.radarbase.output.format.CsvAvroConverterFactory
+import org.radarbase.output.path.ObservationKeyPathFactory
+import org.radarbase.output.source.SimpleFileStatus
+import org.radarbase.output.source.SourceStorage
+import org.radarbase.output.source.SourceStorageWalker
+import org.radarbase.output.source.TopicFile
+import org.radarbase.output.target.LocalTargetStorage
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.InputStreamReader
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.Paths
+import java.time.Instant
+import java.time.temporal.ChronoUnit
+
+internal class TimestampExtractionCheckTest {
+    private lateinit var root: Path
+    private lateinit var schema: Schema
+    private lateinit var records: List<GenericRecord>
+    private lateinit var sourceStorage: StubSourceStorage
+    private val csvConverter = CsvAvroConverterFactory()
+    private val keyPathFactory = ObservationKeyPathFactory()
+    private val file = TopicFile("t", Paths.get("in/t/partition=0/t+0+0+9.avro"), Instant.now(),
+            TopicPartitionOffsetRange("t", 0, 0L, 9L))
+
+    @BeforeEach
+    fun setUp(@TempDir dir: Path) {
+        root = dir
+        keyPathFactory.root = root
+        keyPathFactory.extension = ".csv"
+        schema = Schema.Parser().parse(javaClass.getResourceAsStream("android_phone_light.avsc"))
+        val startTime = Instant.now().truncatedTo(ChronoUnit.HOURS).epochSecond.toDouble()
+        // the first half of the records goes to one target file, the second half to another
+        records = (0 until 10).map { i ->
+            record(userId = if (i < 5) "u1" else "u2", time = startTime + i)
+        }
+        sourceStorage = StubSourceStorage(avroBytes(records))
+    }
+
+    @Test
+    fun sampledHit() {
+        writeTargets(0, 9)
+        // only the first and last records are checked
+        createCheck(sampleRate = 0.0).use { check ->
+            assertTrue(check.isExtracted(file))
+        }
+        assertEquals(1, sourceStorage.numOpened)
+    }
+
+    @Test
+    fun sampledMissChecksAll() {
+        writeTargets(*(1 until 10).toList().toIntArray())
+        createCheck(sampleRate = 0.0).use { check ->
+            assertFalse(check.isExtracted(file))
+        }
+        // after a sampled miss, the file is read again to check all records
+        assertEquals(2, sourceStorage.numOpened)
+    }
+
+    @Test
+    fun allRecordsAfterSampledMiss() {
+        writeTargets(0, 5, 9)
+        createCheck(sampleRate = 0.0, samplesPerTarget = 2).use { check ->
+            assertFalse(check.isExtracted(file))
+        }
+        assertEquals(2, sourceStorage.numOpened)
+    }
+
+    @Test
+    fun missInLastRecord() {
+        writeTargets(*(0 until 9).toList().toIntArray())
+        createCheck(sampleRate = 0.0).use { check ->
+            assertFalse(check.isExtracted(file))
+        }
+        assertEquals(2, sourceStorage.numOpened)
+    }
+
+    @Test
+    fun zeroLengthFile() {
+        sourceStorage = StubSourceStorage(ByteArray(0))
+        createCheck(sampleRate = 0.0).use { check ->
+            assertFalse(check.isExtracted(file))
+        }
+        // a zero-length file is not checked again
+        assertEquals(1, sourceStorage.numOpened)
+    }
+
+    @Test
+    fun samplesPerTargetPath() {
+        // the first record of the second target is missing
+        writeTargets(0, 9)
+        createCheck(samplesPerTarget = 1).use { check ->
+            assertFalse(check.isExtracted(file))
+        }
+        assertEquals(2, sourceStorage.numOpened)
+
+        writeTargets(0, 5, 9)
+        sourceStorage.numOpened = 0
+        createCheck(samplesPerTarget = 1).use { check ->
+            assertTrue(check.isExtracted(file))
+        }
+        assertEquals(1, sourceStorage.numOpened)
+    }
+
+    @Test
+    fun noSampling() {
+        writeTargets(0, 5, 9)
+        createCheck().use { check ->
+            assertFalse(check.isExtracted(file))
+        }
+        assertEquals(1, sourceStorage.numOpened)
+    }
+
+    private fun createCheck(sampleRate: Double? = null, samplesPerTarget: Int? = null): TimestampExtractionCheck {
+        val factory = mock<FileStoreFactory> {
+            on { config } doReturn RestructureConfig(cleaner = CleanerConfig(
+                    sampleRate = sampleRate, samplesPerTarget = samplesPerTarget))
+            on { pathFactory } doReturn keyPathFactory
+            on { recordConverter } doReturn csvConverter
+            on { compression } doReturn IdentityCompression()
+            on { targetStorage } doReturn LocalTargetStorage(LocalConfig())
+        }
+        return TimestampExtractionCheck(sourceStorage, factory)
+    }
+
+    /** Write the records with given indexes to their target files. */
+    private fun writeTargets(vararg indexes: Int) {
+        indexes.map { records[it] }
+                .groupBy { keyPathFactory.getRecordOrganization("t", it, 0).path }
+                .forEach { (path, targetRecords) ->
+                    Files.createDirectories(path.parent)
+                    Files.newBufferedWriter(path).use { wr ->
+                        InputStreamReader(ByteArrayInputStream(ByteArray(0))).use { emptyReader ->
+                            csvConverter.converterFor(wr, targetRecords[0], true, emptyReader).use { converter ->
+                                targetRecords.forEach { converter.writeRecord(it) }
+                            }
+                        }
+                    }
+                }
+    }
+
+    private fun record(userId: String, time: Double): GenericRecord = GenericRecordBuilder(schema)
+            .set("key", GenericRecordBuilder(schema.getField("key").schema())
+                    .set("projectId", "p")
+                    .set("userId", userId)
+                    .set("sourceId", "s")
+                    .build())
+            .set("value", GenericRecordBuilder(schema.getField("value").schema())
+                    .set("time", time)
+                    .set("timeReceived", time + 1.0)
+                    .set("light", 1.0f)
+                    .build())
+            .build()
+
+    private fun avroBytes(records: List<GenericRecord>): ByteArray {
+        val out = ByteArrayOutputStream()
+        DataFileWriter(GenericDatumWriter<GenericRecord>(schema)).use { writer ->
+            writer.create(schema, out)
+            records.forEach { writer.append(it) }
+        }
+        return out.toByteArray()
+    }
+
+    private class StubSourceStorage(private val bytes: ByteArray) : SourceStorage {
+        var numOpened = 0
+
+        override fun createReader() = object : SourceStorage.SourceStorageReader {
+            override fun newInput(file: TopicFile): SeekableInput {
+                numOpened++
+                return SeekableByteArrayInput(bytes)
+            }
+
+            override fun close() = Unit
+        }
+
+        override fun list(path: Path): Sequence<SimpleFileStatus> = emptySequence()
+
+        override fun delete(path: Path) = throw UnsupportedOperationException()
+
+        override val walker: SourceStorageWalker
+            get() = throw UnsupportedOperationException()
+    }
+}
@@ -22,6 +22,7 @@ import java.io.FileNotFoundException
 import java.io.InputStreamReader
 import java.nio.file.Files
 import java.nio.file.Path
+import java.nio.file.StandardOpenOption
 
 internal class TimestampFileCacheTest {
     private lateinit var record: GenericData.Record
@@ -62,6 +63,23 @@ internal class TimestampFileCacheTest {
         assertThat(timestampFileCache.contains(record), `is`(true))
     }
 
+    @Test
+    fun testFileCacheIndex(@TempDir path: Path) {
+        val targetPath = path.resolve("test.avro")
+        writeRecord(targetPath, record)
+        val index = TimestampIndex(Files.size(targetPath), csvConverter.headerFor(record), doubleArrayOf(now + 1.0))
+        TimestampIndex.store(factory.targetStorage, targetPath, index, Files.createDirectory(path.resolve("tmp")))
+
+        // index is used instead of the file contents
+        assertThat(TimestampFileCache(factory, targetPath, useIndex = true).contains(record), `is`(false))
+        assertThat(TimestampFileCache(factory, targetPath).contains(record), `is`(true))
+
+        // outdated index is ignored
+        val dataLine = Files.readAllLines(targetPath).last()
+        Files.newBufferedWriter(targetPath, StandardOpenOption.APPEND).use { it.write(dataLine + "\n") }
+        assertThat(TimestampFileCache(factory, targetPath, useIndex = true).contains(record), `is`(true))
+    }
+
     private fun writeRecord(path: Path, record: GenericRecord) {
         Files.newBufferedWriter(path).use { wr ->
             ByteArrayInputStream(ByteArray(0)).use { emptyInput ->
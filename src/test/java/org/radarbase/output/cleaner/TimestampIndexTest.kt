@@ -0,0 +1,65 @@
+package org.radarbase.output.cleaner
+
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.io.TempDir
+import org.radarbase.output.config.LocalConfig
+import org.radarbase.output.target.LocalTargetStorage
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.IOException
+import java.nio.file.Files
+import java.nio.file.Path
+
+internal class TimestampIndexTest {
+    @Test
+    fun buildSortedDistinct() {
+        val index = TimestampIndex.Builder().apply {
+            add(3.0)
+            add(1.0)
+            addAll(doubleArrayOf(2.0, 3.0, 1.5))
+        }.build(10L, null)
+
+        assertArrayEquals(doubleArrayOf(1.0, 1.5, 2.0, 3.0), index.times)
+        assertEquals(10L, index.targetSize)
+    }
+
+    @Test
+    fun readWrite() {
+        val index = TimestampIndex(100L, arrayOf("a", "b"), doubleArrayOf(1.0, 2.5))
+        val bytes = ByteArrayOutputStream().also { index.write(it) }.toByteArray()
+        val readIndex = TimestampIndex.read(ByteArrayInputStream(bytes))
+
+        assertEquals(100L, readIndex.targetSize)
+        assertArrayEquals(arrayOf("a", "b"), readIndex.header)
+        assertArrayEquals(doubleArrayOf(1.0, 2.5), readIndex.times)
+
+        val noHeader = TimestampIndex(0L, null, DoubleArray(0))
+        val noHeaderBytes = ByteArrayOutputStream().also { noHeader.write(it) }.toByteArray()
+        assertNull(TimestampIndex.read(ByteArrayInputStream(noHeaderBytes)).header)
+    }
+
+    @Test
+    fun readInvalid() {
+        assertThrows(IOException::class.java) {
+            TimestampIndex.read(ByteArrayInputStream(byteArrayOf(1, 2, 3, 4, 5)))
+        }
+    }
+
+    @Test
+    fun readValid(@TempDir dir: Path) {
+        val targetStorage = LocalTargetStorage(LocalConfig())
+        val path = dir.resolve("test.csv")
+        assertNull(TimestampIndex.readValid(targetStorage, path, 10L))
+
+        val index = TimestampIndex(10L, null, doubleArrayOf(1.0))
+        TimestampIndex.store(targetStorage, path, index, Files.createDirectory(dir.resolve("tmp")))
+        assertTrue(Files.exists(dir.resolve(".test.csv.times")))
+
+        assertArrayEquals(doubleArrayOf(1.0), TimestampIndex.readValid(targetStorage, path, 10L)?.times)
+        assertNull(TimestampIndex.readValid(targetStorage, path, 11L))
+
+        TimestampIndex.delete(targetStorage, path)
+        assertNull(TimestampIndex.readValid(targetStorage, path, 10L))
+    }
+}
@@ -16,6 +16,7 @@
 
 package org.radarbase.output.data
 
+import com.opencsv.CSVWriter
 import org.apache.avro.Schema.Parser
 import org.apache.avro.SchemaBuilder
 import org.apache.avro.generic.GenericData
@@ -30,6 +31,7 @@ import org.radarbase.output.compression.GzipCompression
 import org.radarbase.output.compression.IdentityCompression
 import org.radarbase.output.format.CsvAvroConverter
 import java.io.*
+import java.nio.ByteBuffer
 import java.nio.file.Files
 import java.nio.file.Path
 import java.util.*
@@ -82,7 +84,101 @@ class CsvAvroConverterTest {
         val lines = writtenValue.split("\n".toRegex()).dropLastWhile { it.isEmpty() }.toTypedArray()
         assertEquals(2, lines.size)
         assertEquals(keys.joinToString(","), lines[0])
-        println(lines[1])
+
+        val expected = StringWriter()
+        CSVWriter(expected).use { it.writeNext(map.values.map { v -> v.toString() }.toTypedArray(), false) }
+        assertEquals(expected.toString(), lines[1] + "\n")
+    }
+
+    @Test
+    fun schemaHeader() {
+        val factory = CsvAvroConverter.factory
+        val full = Parser().parse(javaClass.getResourceAsStream("full.avsc"))
+        // contains maps and arrays
+        assertNull(factory.headerFor(full))
+
+        val valueSchema = SchemaBuilder.record("value").fields()
+                .name("time").type("double").noDefault()
+                .name("light").type().optional().floatType()
+                .endRecord()
+        val schema = SchemaBuilder.record("simple").fields()
+                .name("value").type(valueSchema).noDefault()
+                .endRecord()
+        val record = GenericRecordBuilder(schema)
+                .set("value", GenericRecordBuilder(valueSchema).set("time", 1.0).build())
+                .build()
+        assertArrayEquals(factory.headerFor(record), factory.headerFor(schema))
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun writeNestedRecords() {
+        val keySchema = SchemaBuilder.record("K").fields()
+                .requiredString("id")
+                .endRecord()
+        val schema = SchemaBuilder.record("R").fields()
+                .name("key").type(keySchema).noDefault()
+                .optionalDouble("time")
+                .name("status").type().enumeration("S").symbols("ON", "OFF").noDefault()
+                .requiredBytes("data")
+                .requiredBoolean("flag")
+                .endRecord()
+
+        val recordA = GenericRecordBuilder(schema)
+                .set("key", GenericRecordBuilder(keySchema).set("id", "a").build())
+                .set("time", 1.5)
+                .set("status", GenericData.EnumSymbol(schema.getField("status").schema(), "ON"))
+                .set("data", ByteBuffer.wrap(byteArrayOf(255.toByte())))
+                .set("flag", true)
+                .build()
+        val recordB = GenericRecordBuilder(recordA)
+                .set("key", GenericRecordBuilder(keySchema).set("id", "b").build())
+                .set("time", null)
+                .build()
+
+        val writer = StringWriter()
+        val converter = CsvAvroConverter.factory.converterFor(writer, recordA, true, StringReader("test"))
+        assertTrue(converter.writeRecord(recordA))
+        assertTrue(converter.writeRecord(recordB))
+
+        assertEquals(listOf(
+                "key.id,time,status,data,flag",
+                "a,1.5,ON,/w,true",
+                "b,,ON,/w,true"), writer.toString().lines().dropLastWhile { it.isEmpty() })
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun writeSameAsCsvWriter() {
+        val schema = SchemaBuilder.record("R").fields()
+                .requiredString("s")
+                .optionalString("o")
+                .requiredLong("l")
+                .requiredFloat("f")
+                .endRecord()
+        val values = listOf("plain", "with,comma", "with \"quotes\"", "line\nbreak", "carriage\rreturn", "")
+        val records = values.mapIndexed { i, value ->
+            GenericRecordBuilder(schema)
+                    .set("s", value)
+                    .set("o", if (i % 2 == 0) null else value)
+                    .set("l", -i * 1_000_000_000_000L)
+                    .set("f", i / 3.0f)
+                    .build()
+        }
+
+        val writer = StringWriter()
+        val converter = CsvAvroConverter.factory.converterFor(writer, records[0], true, StringReader("test"))
+        records.forEach { assertTrue(converter.writeRecord(it)) }
+
+        val expected = StringWriter()
+        CSVWriter(expected).use { csvWriter ->
+            csvWriter.writeNext(arrayOf("s", "o", "l", "f"), false)
+            records.forEachIndexed { i, record ->
+                csvWriter.writeNext(arrayOf(record["s"].toString(), if (i % 2 == 0) "" else record["o"].toString(),
+                        record["l"].toString(), record["f"].toString()), false)
+            }
+        }
+        assertEquals(expected.toString(), writer.toString())
     }
 
     @Test
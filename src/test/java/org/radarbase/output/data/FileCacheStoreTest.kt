@@ -45,6 +45,17 @@ class FileCacheStoreTest {
     @Test
     @Throws(IOException::class)
     fun appendLine(@TempDir root: Path, @TempDir tmpDir: Path) {
+        appendLine(root, tmpDir, WorkerConfig(cacheSize = 2))
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun appendLineInBackground(@TempDir root: Path, @TempDir tmpDir: Path) {
+        appendLine(root, tmpDir, WorkerConfig(cacheSize = 2, uploadThreads = 1))
+    }
+
+    @Throws(IOException::class)
+    private fun appendLine(root: Path, tmpDir: Path, workerConfig: WorkerConfig) {
         val f1 = root.resolve("f1")
         val f2 = root.resolve("f2")
         val f3 = root.resolve("f3")
@@ -76,7 +87,7 @@ class FileCacheStoreTest {
                                 output = root,
                                 temp = tmpDir
                         ),
-                        worker = WorkerConfig(cacheSize = 2),
+                        worker = workerConfig,
                         source = ResourceConfig("hdfs", hdfs = HdfsConfig(listOf("test")))))
 
         val accountant = mock<Accountant>()
@@ -133,14 +144,21 @@ class FileCacheStoreTest {
             // Can write the same record to a new file
             assertEquals(FileCacheStore.WriteResponse.NO_CACHE_AND_WRITE,
                     cache.writeRecord(newFile, record, transaction))
+
+            assertEquals(5L, cache.cacheHits)
+            assertEquals(7L, cache.cacheMisses)
+            assertEquals(5L, cache.cacheEvictions)
         }
 
         val offsets = OffsetRangeSet()
 
         verify(accountant, times(7)).process(check {
-            offsets.addAll(it.offsets)
+            offsets.addAll(it)
         })
 
+        // offsets are flushed after every eviction and when closing, also in the background
+        verify(accountant, times(6)).flush()
+
         assertTrue(offsets.contains(offsetRange0))
         assertTrue(offsets.contains(offsetRange1))
 
@@ -20,6 +20,7 @@ import com.nhaarman.mockitokotlin2.mock
 import org.apache.avro.SchemaBuilder
 import org.apache.avro.generic.GenericData.Record
 import org.apache.avro.generic.GenericRecordBuilder
+import org.junit.jupiter.api.Assertions.assertArrayEquals
 import org.junit.jupiter.api.Assertions.assertEquals
 import org.junit.jupiter.api.Assertions.assertTrue
 import org.junit.jupiter.api.BeforeEach
@@ -28,17 +29,22 @@ import org.junit.jupiter.api.io.TempDir
 import org.radarbase.output.Application
 import org.radarbase.output.accounting.Accountant
 import org.radarbase.output.accounting.TopicPartition
+import org.radarbase.output.cleaner.TimestampIndex
+import org.radarbase.output.config.CleanerConfig
+import org.radarbase.output.config.DeduplicationConfig
 import org.radarbase.output.config.HdfsConfig
 import org.radarbase.output.config.PathConfig
 import org.radarbase.output.config.ResourceConfig
 import org.radarbase.output.config.RestructureConfig
 import org.radarbase.output.worker.FileCache
+import java.io.ByteArrayOutputStream
 import java.io.IOException
 import java.io.InputStreamReader
 import java.nio.file.Files
 import java.nio.file.Path
 import java.time.Instant
 import java.util.zip.GZIPInputStream
+import java.util.zip.Inflater
 
 /**
  * Created by joris on 03/07/2017.
@@ -127,6 +133,58 @@ class FileCacheTest {
         assertEquals(listOf("a", "something", "something"), lines)
     }
 
+    @Test
+    @Throws(IOException::class)
+    fun testGzipAppendMode() {
+        setUp(config.copy(
+                compression = config.compression.copy(type = "gzip"),
+                worker = config.worker.copy(appendMode = true)))
+
+        FileCache(factory, "topic", path, exampleRecord, tmpDir, accountant).use { cache ->
+            cache.writeRecord(exampleRecord,
+                    Accountant.Transaction(topicPartition, 0, lastModified))
+        }
+
+        FileCache(factory, "topic", path, exampleRecord, tmpDir, accountant).use { cache ->
+            cache.writeRecord(exampleRecord,
+                    Accountant.Transaction(topicPartition, 1, lastModified))
+        }
+
+        // the second record is stored in a separate gzip member
+        val bytes = Files.readAllBytes(path)
+        assertEquals(listOf("a\nsomething\n", "something\n"), gzipMembers(bytes))
+
+        val lines = GZIPInputStream(bytes.inputStream()).use {
+            gzipIn -> InputStreamReader(gzipIn).readLines() }
+
+        assertEquals(listOf("a", "something", "something"), lines)
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun testGzipAppendModeCorrupt() {
+        setUp(config.copy(
+                compression = config.compression.copy(type = "gzip"),
+                worker = config.worker.copy(appendMode = true)))
+
+        FileCache(factory, "topic", path, exampleRecord, tmpDir, accountant).use { cache ->
+            cache.writeRecord(exampleRecord,
+                    Accountant.Transaction(topicPartition, 0, lastModified))
+        }
+        // truncate the gzip trailer
+        val original = Files.readAllBytes(path)
+        Files.write(path, original.copyOf(original.size - 4))
+
+        FileCache(factory, "topic", path, exampleRecord, tmpDir, accountant).use { cache ->
+            cache.writeRecord(exampleRecord,
+                    Accountant.Transaction(topicPartition, 1, lastModified))
+        }
+
+        // the corrupt file is moved aside instead of being appended to
+        assertTrue(Files.exists(path.resolveSibling("f.corrupted")))
+        assertEquals(listOf("a\nsomething\n"), gzipMembers(Files.readAllBytes(path)))
+    }
+
     @Test
     @Throws(IOException::class)
     fun testPlain() {
@@ -162,30 +220,77 @@ class FileCacheTest {
 
     @Test
     @Throws(IOException::class)
-    fun compareTo(@TempDir tmp3: Path) {
-        val file3 = tmp3.resolve("file3")
-        FileCache(factory, "topic", path, exampleRecord, tmpDir, accountant).use { cache1 ->
-            FileCache(factory, "topic", path, exampleRecord, tmpDir, accountant).use { cache2 ->
-                FileCache(factory, "topic", file3, exampleRecord, tmpDir, accountant).use { cache3 ->
-                    val transaction = Accountant.Transaction(topicPartition, 0, lastModified)
-                    assertEquals(0, cache1.compareTo(cache2))
-                    // filenames are not equal
-                    assertTrue(cache1 < cache3)
-                    cache1.writeRecord(exampleRecord, transaction)
-                    // last used
-                    assertTrue(cache1 > cache2)
-                    // last used takes precedence over filename
-                    assertTrue(cache1 > cache3)
-
-                    // last used reversal
-                    transaction.offset = 1
-                    cache2.writeRecord(exampleRecord, transaction)
-                    transaction.offset = 2
-                    cache3.writeRecord(exampleRecord, transaction)
-                    assertTrue(cache1 < cache2)
-                    assertTrue(cache1 < cache3)
-                }
+    fun testTimestampIndex() {
+        setUp(config.copy(cleaner = CleanerConfig(timestampIndex = true)))
+
+        FileCache(factory, "topic", path, timeRecord(2.0), tmpDir, accountant).use { cache ->
+            cache.writeRecord(timeRecord(2.0), Accountant.Transaction(topicPartition, 0, lastModified))
+        }
+        FileCache(factory, "topic", path, timeRecord(1.0), tmpDir, accountant).use { cache ->
+            cache.writeRecord(timeRecord(1.0), Accountant.Transaction(topicPartition, 1, lastModified))
+            cache.writeRecord(timeRecord(2.0), Accountant.Transaction(topicPartition, 2, lastModified))
+        }
+
+        val index = TimestampIndex.readValid(factory.targetStorage, path, Files.size(path))
+        assertArrayEquals(arrayOf("value.time"), index?.header)
+        assertArrayEquals(doubleArrayOf(1.0, 2.0), index?.times)
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun testTimestampIndexDeduplicated() {
+        setUp(config.copy(
+                cleaner = CleanerConfig(timestampIndex = true),
+                format = config.format.copy(deduplication = DeduplicationConfig(
+                        enable = true, ignoreFields = setOf("value.time")))))
+
+        FileCache(factory, "topic", path, timeRecord(2.0), tmpDir, accountant).use { cache ->
+            cache.writeRecord(timeRecord(2.0), Accountant.Transaction(topicPartition, 0, lastModified))
+            cache.writeRecord(timeRecord(1.0), Accountant.Transaction(topicPartition, 1, lastModified))
+        }
+
+        val lines = Files.newBufferedReader(path).readLines()
+        assertEquals(2, lines.size)
+        // the index only contains the records that remain after deduplication
+        val index = TimestampIndex.readValid(factory.targetStorage, path, Files.size(path))
+        assertArrayEquals(doubleArrayOf(lines[1].toDouble()), index?.times)
+    }
+
+    private fun timeRecord(time: Double) = GenericRecordBuilder(timeSchema)
+            .set("value", GenericRecordBuilder(timeValueSchema).set("time", time).build())
+            .build()
+
+    /** Decompress each gzip member of given data separately. */
+    private fun gzipMembers(bytes: ByteArray): List<String> {
+        val members = ArrayList<String>()
+        var offset = 0
+        while (offset < bytes.size) {
+            assertEquals(0x1f.toByte(), bytes[offset])
+            assertEquals(0x8b.toByte(), bytes[offset + 1])
+            // no optional header fields
+            assertEquals(0.toByte(), bytes[offset + 3])
+            val inflater = Inflater(true)
+            inflater.setInput(bytes, offset + GZIP_HEADER_SIZE, bytes.size - offset - GZIP_HEADER_SIZE)
+            val out = ByteArrayOutputStream()
+            val buffer = ByteArray(1024)
+            while (!inflater.finished()) {
+                out.write(buffer, 0, inflater.inflate(buffer))
             }
+            members += out.toString(Charsets.UTF_8)
+            offset = bytes.size - inflater.remaining + GZIP_TRAILER_SIZE
+            inflater.end()
         }
+        return members
+    }
+
+    companion object {
+        private val timeValueSchema = SchemaBuilder.record("value").fields()
+                .name("time").type("double").noDefault()
+                .endRecord()
+        private val timeSchema = SchemaBuilder.record("simple").fields()
+                .name("value").type(timeValueSchema).noDefault()
+                .endRecord()
+        private const val GZIP_HEADER_SIZE = 10
+        private const val GZIP_TRAILER_SIZE = 8
     }
 }
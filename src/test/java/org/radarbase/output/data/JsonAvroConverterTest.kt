@@ -19,15 +19,20 @@ package org.radarbase.output.data
 import com.fasterxml.jackson.databind.ObjectMapper
 import com.fasterxml.jackson.databind.SerializationFeature
 import org.apache.avro.Schema.Parser
+import org.apache.avro.SchemaBuilder
+import org.apache.avro.generic.GenericData
 import org.apache.avro.generic.GenericDatumReader
 import org.apache.avro.generic.GenericRecord
+import org.apache.avro.generic.GenericRecordBuilder
 import org.apache.avro.io.DecoderFactory
 import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertThrows
 import org.junit.jupiter.api.Test
 import org.junit.jupiter.api.io.TempDir
 import org.radarbase.output.compression.IdentityCompression
 import org.radarbase.output.data.CsvAvroConverterTest.Companion.writeTestNumbers
 import org.radarbase.output.format.JsonAvroConverter
+import org.radarbase.output.format.JsonAvroDataConverter
 import java.io.IOException
 import java.io.InputStreamReader
 import java.io.StringReader
@@ -65,6 +70,57 @@ class JsonAvroConverterTest {
                 .forEach { assertEquals(expectedLines[it], resultLines[it]) }
     }
 
+    @Test
+    @Throws(IOException::class)
+    fun writeSameAsMapConversion() {
+        val parser = Parser()
+        val schema = parser.parse(javaClass.getResourceAsStream("full.avsc"))
+        val reader = GenericDatumReader<GenericRecord>(schema)
+        val decoder = DecoderFactory.get().jsonDecoder(schema, javaClass.getResourceAsStream("full.json"))
+        val record = reader.read(null, decoder)
+
+        val writer = StringWriter()
+        JsonAvroConverter.factory.converterFor(writer, record, false, StringReader("test")).use { converter ->
+            converter.writeRecord(record)
+            converter.writeRecord(record)
+        }
+
+        val mapWriter = ObjectMapper().writer()
+        val expected = mapWriter.writeValueAsString(JsonAvroDataConverter().convertRecord(record))
+        assertEquals("$expected\n$expected", writer.toString())
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun writeFailedRecord() {
+        val innerSchema = SchemaBuilder.record("inner").fields()
+                .name("b").type("string").noDefault()
+                .endRecord()
+        val schema = SchemaBuilder.record("outer").fields()
+                .name("a").type("string").noDefault()
+                .name("inner").type(innerSchema).noDefault()
+                .endRecord()
+        val record = GenericRecordBuilder(schema)
+                .set("a", "x")
+                .set("inner", GenericRecordBuilder(innerSchema).set("b", "y").build())
+                .build()
+        val invalidRecord = GenericData.Record(schema).apply {
+            put("a", "x")
+            put("inner", "not a record")
+        }
+
+        val writer = StringWriter()
+        JsonAvroConverter.factory.converterFor(writer, record, false, StringReader("test")).use { converter ->
+            converter.writeRecord(record)
+            assertThrows(ClassCastException::class.java) { converter.writeRecord(invalidRecord) }
+            converter.writeRecord(record)
+        }
+
+        // no part of the failed record is written
+        val expected = ObjectMapper().writer().writeValueAsString(JsonAvroDataConverter().convertRecord(record))
+        assertEquals("$expected\n$expected", writer.toString())
+    }
+
     @Test
     @Throws(IOException::class)
     fun deduplicate(@TempDir folder: Path) {
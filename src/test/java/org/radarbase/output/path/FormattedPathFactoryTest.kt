@@ -1,12 +1,19 @@
 package org.radarbase.output.path
 
+import org.apache.avro.SchemaBuilder
+import org.apache.avro.generic.GenericRecord
+import org.apache.avro.generic.GenericRecordBuilder
 import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertNull
+import org.junit.jupiter.api.Assertions.assertSame
 import org.junit.jupiter.api.Test
 import org.junit.jupiter.api.assertThrows
+import org.radarbase.output.util.TimeUtil
 import org.radarcns.kafka.ObservationKey
 import org.radarcns.passive.phone.PhoneLight
 import java.nio.file.Paths
 import java.time.Instant
+import java.time.temporal.ChronoUnit
 
 internal class FormattedPathFactoryTest {
     @Test
@@ -61,6 +68,77 @@ internal class FormattedPathFactoryTest {
         assertEquals(Paths.get("p/u/t/20210102_1000.csv.gz"), path)
     }
 
+    @Test
+    fun cachedOutputPath() {
+        val factory = createFactory(
+            format = "\${topic}/\${userId}/\${time:yyyyMMdd}/\${filename}"
+        ).apply {
+            root = Paths.get("/out")
+        }
+
+        fun organize(time: Instant, userId: String = "u", attempt: Int = 0) = factory.getRecordOrganization(
+            "t",
+            GenericRecordBuilder(RECORD_SCHEMA)
+                .set("key", ObservationKey("p", userId, "s"))
+                .set("value", PhoneLight(time.epochSecond.toDouble(), time.epochSecond.toDouble(), 1.0f))
+                .build(),
+            attempt,
+        ).path
+
+        val first = organize(Instant.parse("2021-01-02T10:05:00Z"))
+        assertEquals(Paths.get("/out/t/u/20210102/20210102_1000.csv.gz"), first)
+        assertSame(first, organize(Instant.parse("2021-01-02T10:59:59Z")))
+        assertEquals(Paths.get("/out/t/u/20210102/20210102_1100.csv.gz"), organize(Instant.parse("2021-01-02T11:00:00Z")))
+        assertEquals(Paths.get("/out/t/v/20210102/20210102_1000.csv.gz"), organize(Instant.parse("2021-01-02T10:05:00Z"), userId = "v"))
+        assertEquals(Paths.get("/out/t/u/20210102/20210102_1000_1.csv.gz"), organize(Instant.parse("2021-01-02T10:05:00Z"), attempt = 1))
+    }
+
+    @Test
+    fun subclassNotCached() {
+        val factory = object : FormattedPathFactory() {
+            override fun getRelativePath(topic: String, key: GenericRecord, value: GenericRecord, time: Instant?, attempt: Int) =
+                Paths.get(value.get("light").toString())
+        }.apply {
+            init(mapOf("format" to "\${topic}/\${userId}/\${filename}"))
+            extension = ".csv.gz"
+            root = Paths.get("/out")
+        }
+        val time = Instant.parse("2021-01-02T10:05:00Z").epochSecond.toDouble()
+
+        fun organize(light: Float) = factory.getRecordOrganization(
+            "t",
+            GenericRecordBuilder(RECORD_SCHEMA)
+                .set("key", ObservationKey("p", "u", "s"))
+                .set("value", PhoneLight(time, time, light))
+                .build(),
+            0,
+        ).path
+
+        assertEquals(Paths.get("/out/1.0"), organize(1.0f))
+        assertEquals(Paths.get("/out/2.0"), organize(2.0f))
+    }
+
+    @Test
+    fun patternResolution() {
+        assertEquals(ChronoUnit.HOURS, RecordPathFactory.patternResolution("yyyyMMdd_HH'00'"))
+        assertEquals(ChronoUnit.DAYS, RecordPathFactory.patternResolution("yyyyMM'ss'dd"))
+        assertEquals(ChronoUnit.MINUTES, RecordPathFactory.patternResolution("HHmm"))
+        assertNull(RecordPathFactory.patternResolution("HHmmss.SSS"))
+    }
+
+    @Test
+    fun valueFields() {
+        assertEquals(TimeUtil.valueTimeFields, FormattedPathFactory().valueFields)
+        assertEquals(TimeUtil.valueTimeFields, ObservationKeyPathFactory().valueFields)
+        val customFactory = object : RecordPathFactory() {
+            override fun getRelativePath(topic: String, key: GenericRecord, value: GenericRecord, time: Instant?, attempt: Int) =
+                Paths.get(value.get("light").toString())
+
+            override fun getCategory(key: GenericRecord, value: GenericRecord) = "c"
+        }
+        assertNull(customFactory.valueFields)
+    }
+
     @Test
     fun testMissingTopic() {
         assertThrows<IllegalArgumentException> {
@@ -93,6 +171,13 @@ internal class FormattedPathFactoryTest {
         }
     }
 
+    companion object {
+        private val RECORD_SCHEMA = SchemaBuilder.record("R").fields()
+            .name("key").type(ObservationKey.getClassSchema()).noDefault()
+            .name("value").type(PhoneLight.getClassSchema()).noDefault()
+            .endRecord()
+    }
+
     private fun createFactory(format: String): FormattedPathFactory = FormattedPathFactory().apply {
         init(mapOf(
             "format" to format,
@@ -0,0 +1,89 @@
+package org.radarbase.output.source
+
+import org.apache.avro.file.SeekableByteArrayInput
+import org.apache.avro.file.SeekableInput
+import org.hamcrest.MatcherAssert.assertThat
+import org.hamcrest.Matchers.equalTo
+import org.junit.jupiter.api.Test
+import java.nio.file.Paths
+import java.time.Instant
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+
+class PrefetchingSourceStorageReaderTest {
+    @Test
+    fun prefetchWithinBudget() {
+        val opened = ConcurrentHashMap.newKeySet<TopicFile>()
+        val closed = ConcurrentHashMap.newKeySet<TopicFile>()
+        val numOpen = AtomicInteger(0)
+        val maxOpen = AtomicInteger(0)
+        val reader = object : SourceStorage.SourceStorageReader {
+            override fun newInput(file: TopicFile): SeekableInput {
+                opened += file
+                maxOpen.accumulateAndGet(numOpen.incrementAndGet(), ::maxOf)
+                return object : SeekableByteArrayInput(ByteArray(file.sizeBytes!!.toInt())) {
+                    override fun close() {
+                        numOpen.decrementAndGet()
+                        closed += file
+                    }
+                }
+            }
+            override fun close() = Unit
+        }
+
+        val files = (0 until 5).map { i ->
+            val range = "t+0+${i * 10}+${i * 10 + 9}"
+            TopicFile("t", Paths.get("t/$range.avro"), Instant.now()).copy(sizeBytes = 10L)
+        }
+
+        PrefetchingSourceStorageReader(reader, 2, 25).use { prefetcher ->
+            prefetcher.prefetch(files)
+            prefetcher.newInput(files[0]).use { input ->
+                assertThat(input.length(), equalTo(10L))
+            }
+            prefetcher.newInput(files[1]).close()
+            prefetcher.newInput(files[2]).use { }
+            assertThat(closed.containsAll(files.subList(0, 3)), equalTo(true))
+        }
+        // the budget only allows one file to be opened ahead of the current file
+        assertThat(maxOpen.get() <= 2, equalTo(true))
+        // prefetched files that were not used are closed
+        assertThat(closed, equalTo(opened))
+    }
+
+    @Test
+    fun closeWhileOpening() {
+        val started = CountDownLatch(1)
+        val proceed = CountDownLatch(1)
+        val inputClosed = AtomicBoolean(false)
+        val inputClosedBeforeReader = AtomicBoolean(false)
+        val reader = object : SourceStorage.SourceStorageReader {
+            override fun newInput(file: TopicFile): SeekableInput {
+                started.countDown()
+                proceed.await(10, TimeUnit.SECONDS)
+                return object : SeekableByteArrayInput(ByteArray(10)) {
+                    override fun close() {
+                        inputClosed.set(true)
+                    }
+                }
+            }
+            override fun close() {
+                inputClosedBeforeReader.set(inputClosed.get())
+            }
+        }
+
+        val file = TopicFile("t", Paths.get("t/t+0+0+9.avro"), Instant.now()).copy(sizeBytes = 10L)
+        val prefetcher = PrefetchingSourceStorageReader(reader, 1, 25)
+        prefetcher.prefetch(listOf(file))
+        assertThat(started.await(10, TimeUnit.SECONDS), equalTo(true))
+        Thread { Thread.sleep(100L); proceed.countDown() }.start()
+        prefetcher.close()
+
+        // the file that was being opened is closed, before the underlying reader
+        assertThat(inputClosed.get(), equalTo(true))
+        assertThat(inputClosedBeforeReader.get(), equalTo(true))
+    }
+}
@@ -0,0 +1,49 @@
+package org.radarbase.output.source
+
+import org.apache.avro.SchemaBuilder
+import org.apache.avro.file.DataFileWriter
+import org.apache.avro.generic.GenericDatumWriter
+import org.apache.avro.generic.GenericRecord
+import org.apache.avro.generic.GenericRecordBuilder
+import org.hamcrest.MatcherAssert.assertThat
+import org.hamcrest.Matchers.equalTo
+import org.junit.jupiter.api.Test
+import org.radarbase.output.worker.RestructureWorker
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+
+class RangedSeekableInputTest {
+    @Test
+    fun readAvroInBlocks() {
+        val schema = SchemaBuilder.record("R").fields()
+                .requiredLong("a")
+                .requiredString("b")
+                .endRecord()
+
+        val bytes = ByteArrayOutputStream().use { out ->
+            DataFileWriter(GenericDatumWriter<GenericRecord>(schema)).use { writer ->
+                writer.create(schema, out)
+                repeat(1000) {
+                    writer.append(GenericRecordBuilder(schema)
+                            .set("a", it.toLong())
+                            .set("b", "value$it")
+                            .build())
+                }
+            }
+            out.toByteArray()
+        }
+
+        var numFetches = 0
+        val input = RangedSeekableInput(bytes.size.toLong(), 100, 2) { offset, length ->
+            numFetches++
+            ByteArrayInputStream(bytes, offset.toInt(), length)
+        }
+
+        val values = RestructureWorker.extractRecords(input) { records ->
+            records.map { it.get("a") as Long }.toList()
+        }
+        assertThat(values, equalTo((0L until 1000L).toList()))
+        // every block is fetched only once when reading sequentially
+        assertThat(numFetches, equalTo((bytes.size + 99) / 100))
+    }
+}
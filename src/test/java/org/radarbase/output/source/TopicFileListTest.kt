@@ -0,0 +1,36 @@
+package org.radarbase.output.source
+
+import org.hamcrest.MatcherAssert.assertThat
+import org.hamcrest.Matchers.containsInAnyOrder
+import org.hamcrest.Matchers.equalTo
+import org.junit.jupiter.api.Test
+import java.nio.file.Paths
+import java.time.Instant
+
+class TopicFileListTest {
+    private val lastModified = Instant.now()
+
+    @Test
+    fun splitByPartition() {
+        val fileList = TopicFileList("t", listOf(
+                topicFile("t+0+0+99"),
+                topicFile("t+1+0+9"),
+                topicFile("t+0+100+199"),
+                topicFile("t+2+0+149"),
+                topicFile("t+1+10+19")))
+
+        val lists = fileList.splitByPartition(2)
+        assertThat(lists.size, equalTo(2))
+        // partition 0 has most offsets so it gets its own worker
+        assertThat(lists[0].files.map { it.path.fileName.toString() },
+                equalTo(listOf("t+0+0+99.avro", "t+0+100+199.avro")))
+        assertThat(lists[1].files.map { it.path.fileName.toString() },
+                containsInAnyOrder("t+2+0+149.avro", "t+1+0+9.avro", "t+1+10+19.avro"))
+        assertThat(lists.sumOf { it.numberOfFiles }, equalTo(5))
+
+        assertThat(fileList.splitByPartition(1), equalTo(listOf(fileList)))
+        assertThat(fileList.splitByPartition(10).size, equalTo(3))
+    }
+
+    private fun topicFile(name: String) = TopicFile("t", Paths.get("in/t/$name.avro"), lastModified)
+}
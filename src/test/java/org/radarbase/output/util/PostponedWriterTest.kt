@@ -0,0 +1,76 @@
+package org.radarbase.output.util
+
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import java.time.Duration
+import java.util.concurrent.atomic.AtomicInteger
+
+internal class PostponedWriterTest {
+    private lateinit var scheduler: FlushScheduler
+
+    @BeforeEach
+    fun setUp() {
+        scheduler = FlushScheduler(2, Duration.ofMillis(50), Duration.ofMillis(150))
+    }
+
+    @AfterEach
+    fun tearDown() {
+        scheduler.close()
+    }
+
+    @Test
+    fun coalesceTriggers() {
+        val writer = CountingWriter(scheduler)
+        repeat(10) { writer.triggerWrite() }
+        Thread.sleep(300)
+        assertEquals(1, writer.writeCount.get())
+
+        writer.triggerWrite()
+        Thread.sleep(300)
+        assertEquals(2, writer.writeCount.get())
+        writer.close()
+        assertEquals(3, writer.writeCount.get())
+    }
+
+    @Test
+    fun maxLatency() {
+        val writer = CountingWriter(scheduler)
+        // keep triggering within the debounce time
+        repeat(40) {
+            writer.triggerWrite()
+            Thread.sleep(10)
+        }
+        assertTrue(writer.writeCount.get() >= 2) { "Writes ${writer.writeCount.get()} should respect maximum latency" }
+        writer.close()
+    }
+
+    @Test
+    fun flushCancelsPendingWrite() {
+        val writer = CountingWriter(scheduler)
+        writer.triggerWrite()
+        writer.flush()
+        assertEquals(1, writer.writeCount.get())
+        Thread.sleep(300)
+        assertEquals(1, writer.writeCount.get())
+
+        writer.close()
+        writer.triggerWrite()
+        Thread.sleep(300)
+        assertEquals(2, writer.writeCount.get())
+
+        val statistics = scheduler.drainStatistics()
+        assertEquals(2L, statistics.count)
+        assertEquals(0L, scheduler.drainStatistics().count)
+    }
+
+    private class CountingWriter(scheduler: FlushScheduler) : PostponedWriter("test", scheduler) {
+        val writeCount = AtomicInteger()
+
+        override fun doWrite() {
+            writeCount.incrementAndGet()
+        }
+    }
+}
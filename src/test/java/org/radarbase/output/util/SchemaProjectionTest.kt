@@ -0,0 +1,78 @@
+package org.radarbase.output.util
+
+import org.apache.avro.Schema
+import org.apache.avro.SchemaBuilder
+import org.apache.avro.file.DataFileWriter
+import org.apache.avro.file.SeekableByteArrayInput
+import org.apache.avro.generic.GenericDatumWriter
+import org.apache.avro.generic.GenericRecord
+import org.apache.avro.generic.GenericRecordBuilder
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+import org.radarbase.output.worker.RestructureWorker
+import java.io.ByteArrayOutputStream
+
+internal class SchemaProjectionTest {
+    private val keySchema = SchemaBuilder.record("Key").namespace("test").fields()
+            .name("userId").type("string").noDefault()
+            .endRecord()
+    private val valueSchema = SchemaBuilder.record("Value").namespace("test").fields()
+            .name("time").type("double").noDefault()
+            .name("light").type("float").noDefault()
+            .name("tags").type().array().items().stringType().noDefault()
+            .endRecord()
+    private val schema = SchemaBuilder.record("Record").namespace("test").fields()
+            .name("key").type(keySchema).noDefault()
+            .name("value").type(valueSchema).noDefault()
+            .endRecord()
+
+    @Test
+    fun project() {
+        val projection = SchemaProjection(setOf("time"))
+        val projected = projection.project(schema)
+        assertNotNull(projected)
+        projected!!
+        assertEquals(listOf("key", "value"), projected.fields.map { it.name() })
+        assertEquals(keySchema, projected.getField("key").schema())
+        assertEquals(listOf("time"), projected.getField("value").schema().fields.map { it.name() })
+        assertSame(projected, projection.project(schema))
+
+        // nothing to skip
+        assertNull(SchemaProjection(setOf("time", "light", "tags")).project(schema))
+        assertNull(projection.project(keySchema))
+    }
+
+    @Test
+    fun readProjected() {
+        val out = ByteArrayOutputStream()
+        DataFileWriter(GenericDatumWriter<GenericRecord>(schema)).use { writer ->
+            writer.create(schema, out)
+            repeat(3) { i ->
+                writer.append(GenericRecordBuilder(schema)
+                        .set("key", GenericRecordBuilder(keySchema).set("userId", "u$i").build())
+                        .set("value", GenericRecordBuilder(valueSchema)
+                                .set("time", i.toDouble())
+                                .set("light", 1.0f)
+                                .set("tags", listOf("a", "b"))
+                                .build())
+                        .build())
+            }
+        }
+
+        val projection = SchemaProjection(setOf("time"))
+        var writerSchema: Schema? = null
+        val records = RestructureWorker.extractRecords(SeekableByteArrayInput(out.toByteArray()), { s ->
+            writerSchema = s
+            projection.project(s)
+        }) { records ->
+            records.map { record ->
+                val value = record.get("value") as GenericRecord
+                assertNull(value.schema.getField("light"))
+                Pair((record.get("key") as GenericRecord).get("userId").toString(), value.get("time"))
+            }.toList()
+        }
+
+        assertEquals(schema, writerSchema)
+        assertEquals(listOf(Pair("u0", 0.0), Pair("u1", 1.0), Pair("u2", 2.0)), records)
+    }
+}
@@ -0,0 +1,121 @@
+package org.radarbase.output.worker
+
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertFalse
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import org.radarbase.output.accounting.OffsetRangeSet
+import org.radarbase.output.accounting.TopicPartitionOffsetRange
+import org.radarbase.output.cleaner.ExtractionManifest
+import org.radarbase.output.source.TopicFile
+import java.nio.file.Path
+import java.nio.file.Paths
+import java.time.Instant
+
+internal class RestructureWorkerTest {
+    private val lastModified = Instant.now()
+
+    @Test
+    fun seenOffsetsUnseen() {
+        val seenOffsets = OffsetRangeSet().apply {
+            add(TopicPartitionOffsetRange("t", 0, 20L, 29L, lastModified))
+            add(TopicPartitionOffsetRange("t", 1, 0L, 9L, lastModified))
+        }
+        val check = RestructureWorker.SeenOffsetsCheck(topicFile(0L, 9L), seenOffsets)
+        assertTrue(check.isUnseen)
+        (0L..9L).forEach { assertFalse(check.contains(it)) }
+    }
+
+    @Test
+    fun seenOffsetsPartiallySeen() {
+        val seenOffsets = OffsetRangeSet().apply {
+            add(TopicPartitionOffsetRange("t", 0, 3L, 5L, lastModified))
+        }
+        val check = RestructureWorker.SeenOffsetsCheck(topicFile(0L, 9L), seenOffsets)
+        assertFalse(check.isUnseen)
+        assertEquals(listOf(3L, 4L, 5L), (0L..9L).filter { check.contains(it) })
+    }
+
+    @Test
+    fun seenOffsetsFullySeen() {
+        val seenOffsets = OffsetRangeSet().apply {
+            add(TopicPartitionOffsetRange("t", 0, 0L, 19L, lastModified))
+        }
+        val check = RestructureWorker.SeenOffsetsCheck(topicFile(0L, 9L), seenOffsets)
+        assertFalse(check.isUnseen)
+        assertTrue((0L..9L).all { check.contains(it) })
+        // offsets beyond the expected range are checked individually
+        assertTrue(check.contains(15L))
+        assertFalse(check.contains(20L))
+    }
+
+    @Test
+    fun seenOffsetsUnknownEnd() {
+        val check = RestructureWorker.SeenOffsetsCheck(topicFile(0L, null), OffsetRangeSet())
+        assertFalse(check.isUnseen)
+        assertFalse(check.contains(0L))
+    }
+
+    @Test
+    fun pendingManifestsOnlyCommitted() {
+        val target = Paths.get("out/a.csv")
+        val committedFile = topicFile(0L, 9L)
+        val uncommittedFile = topicFile(10L, 19L)
+        val manifests = RestructureWorker.PendingManifests().apply {
+            add(committedFile, manifest(0L, 9L, target))
+            add(uncommittedFile, manifest(10L, 19L, target))
+        }
+        val committedOffsets = OffsetRangeSet().apply { add(committedFile.range) }
+
+        val requestedSizes = mutableListOf<Path>()
+        val result = manifests.drainCommitted(committedOffsets, { mapOf(target to 2L) }) { path ->
+            requestedSizes.add(path)
+            100L
+        }
+
+        assertEquals(mapOf("t" to mapOf(committedFile.path to ExtractionManifest(0L, 9L,
+                mapOf(target to ExtractionManifest.Target(10L, 100L, 2L))))), result)
+        assertEquals(listOf(target), requestedSizes)
+        assertTrue(manifests.isEmpty)
+    }
+
+    @Test
+    fun pendingManifestsBeforeCommit() {
+        val file = topicFile(0L, 9L)
+        val manifests = RestructureWorker.PendingManifests().apply {
+            add(file, manifest(0L, 9L, Paths.get("out/a.csv")))
+        }
+
+        // offsets were not committed yet, so no manifest may be written
+        assertEquals(emptyMap<String, Map<Path, ExtractionManifest>>(),
+                manifests.drainCommitted(OffsetRangeSet(), { emptyMap() }) { 100L })
+        assertTrue(manifests.isEmpty)
+    }
+
+    @Test
+    fun pendingManifestsMissingTarget() {
+        val file = topicFile(0L, 9L)
+        val otherFile = topicFile(10L, 19L)
+        val a = Paths.get("out/a.csv")
+        val b = Paths.get("out/b.csv")
+        val manifests = RestructureWorker.PendingManifests().apply {
+            add(file, manifest(0L, 9L, a))
+            add(otherFile, manifest(10L, 19L, b))
+        }
+        val committedOffsets = OffsetRangeSet().apply {
+            add(TopicPartitionOffsetRange("t", 0, 0L, 19L, lastModified))
+        }
+
+        val result = manifests.drainCommitted(committedOffsets, { emptyMap() }) { path -> if (path == a) null else 50L }
+
+        assertEquals(setOf(otherFile.path), result.getValue("t").keys)
+    }
+
+    private fun topicFile(from: Long, to: Long?) = TopicFile(
+            "t", Paths.get("in/t/partition=0/t+0+$from+$to.avro"), lastModified,
+            TopicPartitionOffsetRange("t", 0, from, to, lastModified))
+
+    private fun manifest(from: Long, to: Long, target: Path) = ExtractionManifest.Builder(from)
+            .apply { repeat((to - from + 1).toInt()) { add(target) } }
+            .build()
+}
@@ -0,0 +1,112 @@
+package org.radarbase.output.worker
+
+import com.nhaarman.mockitokotlin2.doReturn
+import com.nhaarman.mockitokotlin2.mock
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import org.radarbase.output.FileStoreFactory
+import org.radarbase.output.accounting.RemoteLockManager
+import java.nio.file.Paths
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+
+internal class TopicBatchProcessorTest {
+    private lateinit var lockManager: CountingLockManager
+    private lateinit var factory: FileStoreFactory
+    private lateinit var executor: ExecutorService
+
+    @BeforeEach
+    fun setUp() {
+        lockManager = CountingLockManager()
+        factory = mock {
+            on { remoteLockManager } doReturn lockManager
+            on { offsetPersistenceFactory } doReturn mock()
+        }
+        executor = Executors.newFixedThreadPool(4)
+    }
+
+    @AfterEach
+    fun tearDown() {
+        executor.shutdownNow()
+    }
+
+    @Test
+    fun overlapBatches() {
+        val processor = TopicBatchProcessor(factory, 1, AtomicBoolean(false), executor)
+        val lastProcessed = CountDownLatch(1)
+        val processed = ConcurrentHashMap.newKeySet<String>()
+        var waitedForLast = false
+
+        processor.process(listOf("a", "b", "c").map { Paths.get("in", it) }) { topic, topicPath, lock ->
+            assertEquals(topic, topicPath.fileName.toString())
+            assertTrue(lock.isActive)
+            // a slow topic does not prevent topics of later batches from being processed
+            when (topic) {
+                "a" -> waitedForLast = lastProcessed.await(10, TimeUnit.SECONDS)
+                "c" -> lastProcessed.countDown()
+            }
+            processed += topic
+        }
+
+        assertTrue(waitedForLast)
+        assertEquals(setOf("a", "b", "c"), processed)
+        assertEquals(0, lockManager.held.size)
+    }
+
+    @Test
+    fun lockAtMostTwoBatches() {
+        lockManager.lockedElsewhere += "t3"
+        val processor = TopicBatchProcessor(factory, 2, AtomicBoolean(false), executor)
+        val processed = ConcurrentHashMap.newKeySet<String>()
+
+        processor.process((0 until 8).map { Paths.get("in", "t$it") }) { topic, _, _ ->
+            Thread.sleep(20)
+            processed += topic
+        }
+
+        assertEquals((0 until 8).map { "t$it" }.toSet() - "t3", processed)
+        assertTrue(lockManager.maxHeld.get() <= 4)
+        assertEquals(0, lockManager.held.size)
+    }
+
+    @Test
+    fun stopWhenClosed() {
+        val isClosed = AtomicBoolean(false)
+        val processor = TopicBatchProcessor(factory, 1, isClosed, executor)
+        val processed = ConcurrentHashMap.newKeySet<String>()
+
+        processor.process((0 until 8).map { Paths.get("in", "t$it") }) { topic, _, _ ->
+            isClosed.set(true)
+            processed += topic
+        }
+
+        assertTrue(processed.size < 8)
+        assertEquals(0, lockManager.held.size)
+    }
+
+    private class CountingLockManager : RemoteLockManager {
+        val held: MutableSet<String> = ConcurrentHashMap.newKeySet()
+        val lockedElsewhere: MutableSet<String> = ConcurrentHashMap.newKeySet()
+        val maxHeld = AtomicInteger(0)
+
+        override fun acquireLock(name: String): RemoteLockManager.RemoteLock? {
+            if (name in lockedElsewhere || !held.add(name)) {
+                return null
+            }
+            maxHeld.accumulateAndGet(held.size, ::maxOf)
+            return object : RemoteLockManager.RemoteLock {
+                override fun close() {
+                    held.remove(name)
+                }
+            }
+        }
+    }
+}